@@ -0,0 +1,53 @@
+package client;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HtmlUtil のエスケープと改行挿入（ログ出力・描画のたびに呼ばれる）
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms512m", "-Xmx512m"})
+@State(Scope.Benchmark)
+public class HtmlUtilBench {
+    private static final String LINE = "今日は <b>晴れ</b> ですね、\"お昼\" は駅前 & 公園のどちらにしますか。 ";
+
+    @Param({"1", "20"})
+    public int repeat;
+
+    private String message;
+    private String escaped;
+    private final StringBuilder buffer = new StringBuilder(4096);
+
+    @Setup
+    public void setup() {
+        message = LINE.repeat(repeat);
+        escaped = HtmlUtil.escapeHTML(message);
+    }
+
+    @Benchmark
+    public String escapeHTML() {
+        return HtmlUtil.escapeHTML(message);
+    }
+
+    @Benchmark
+    public String wrapMessage() {
+        return HtmlUtil.wrapMessage(escaped, 30);
+    }
+
+    @Benchmark
+    public String escapeAndWrap() {
+        return HtmlUtil.wrapMessage(HtmlUtil.escapeHTML(message), 30);
+    }
+
+    /** 1回の走査で使い回しのバッファへ書く（HtmlLogger / MessageRenderer の使い方） */
+    @Benchmark
+    public StringBuilder appendEscapedWrapped() {
+        buffer.setLength(0);
+        return HtmlUtil.appendEscapedWrapped(buffer, message, 30);
+    }
+}
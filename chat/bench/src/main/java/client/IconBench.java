@@ -0,0 +1,56 @@
+package client;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.imageio.ImageIO;
+import javax.swing.ImageIcon;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * アイコン（Base64 の PNG）のデコード。キャッシュなしと ImageCache にある場合
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Djava.awt.headless=true", "-Xms512m", "-Xmx512m"})
+@State(Scope.Benchmark)
+public class IconBench {
+    @Param({"40", "256"})
+    public int size;
+
+    private String base64;
+    private ImageCache cache;
+
+    @Setup
+    public void setup() throws IOException {
+        // 乱数の種を固定して、毎回同じ画像にする
+        Random random = new Random(42);
+        BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                image.setRGB(x, y, (x * 4) << 16 | (y * 4) << 8 | random.nextInt(64));
+            }
+        }
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", png);
+        base64 = Base64.getEncoder().encodeToString(png.toByteArray());
+        cache = new ImageCache(32L * 1024 * 1024);
+        cache.fromBase64(base64, 40, 40);
+    }
+
+    @Benchmark
+    public ImageIcon iconFromBase64() {
+        return HtmlUtil.iconFromBase64(base64);
+    }
+
+    @Benchmark
+    public ImageIcon cachedIcon() {
+        return cache.fromBase64(base64, 40, 40);
+    }
+}
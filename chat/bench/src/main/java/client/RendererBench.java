@@ -0,0 +1,43 @@
+package client;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.swing.Icon;
+import javax.swing.ImageIcon;
+import javax.swing.JPanel;
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 1メッセージぶんのコンポーネントの生成と、レイアウトに必要な大きさの計算（HTML の解析を含む）
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Djava.awt.headless=true", "-Xms512m", "-Xmx512m"})
+@State(Scope.Benchmark)
+public class RendererBench {
+    @Param({"1", "20"})
+    public int repeat;
+
+    private Icon avatar;
+    private String message;
+
+    @Setup
+    public void setup() {
+        avatar = new ImageIcon(new BufferedImage(40, 40, BufferedImage.TYPE_INT_ARGB));
+        message = "今日は <b>晴れ</b> ですね、お昼は駅前 & 公園のどちらにしますか。 ".repeat(repeat);
+    }
+
+    @Benchmark
+    public JPanel render() {
+        return MessageRenderer.render("[12:34]", "alice", "テニス", avatar, message, false);
+    }
+
+    @Benchmark
+    public Dimension renderAndMeasure() {
+        return MessageRenderer.render("[12:34]", "alice", "テニス", avatar, message, false).getPreferredSize();
+    }
+}
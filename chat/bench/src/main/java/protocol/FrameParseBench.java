@@ -0,0 +1,55 @@
+package protocol;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 受信した1メッセージの解析
+ *   legacySplit … 従来クライアントの split("\\|\\|\\|", 6)
+ *   lineCodec   … 行形式（LineCodec.fromLine）
+ *   binary      … バイナリ形式（BinaryCodec.decodePayload）
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms512m", "-Xmx512m"})
+@State(Scope.Benchmark)
+public class FrameParseBench {
+    // 完全形式ではアイコン（40x40 の PNG を Base64 にしたもの、数KB）が毎回付く
+    @Param({"0", "4096"})
+    public int avatarBytes;
+
+    private String line;
+    private ByteBuffer binary;
+
+    @Setup
+    public void setup() {
+        byte[] avatar = new byte[avatarBytes];
+        new Random(42).nextBytes(avatar);
+        Frame frame = Frame.of(Frame.TEXT, "今日は晴れですね、お昼はどうしますか。", "[12:34]", "alice", "テニス",
+                Base64.getEncoder().encodeToString(avatar));
+        line = LineCodec.toLine(frame);
+        binary = BinaryCodec.encode(frame);
+    }
+
+    @Benchmark
+    public String[] legacySplit() {
+        return line.split("\\|\\|\\|", 6);
+    }
+
+    @Benchmark
+    public Frame lineCodec() {
+        return LineCodec.fromLine(line);
+    }
+
+    @Benchmark
+    public Frame binary() throws ProtocolException {
+        return BinaryCodec.decodePayload(binary.duplicate().position(BinaryCodec.HEADER_SIZE));
+    }
+}
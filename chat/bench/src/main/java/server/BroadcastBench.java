@@ -0,0 +1,87 @@
+package server;
+
+import org.openjdk.jmh.annotations.*;
+import protocol.BinaryCodec;
+import protocol.Frame;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ルームの参加者 N 人への配信（通信形式ごとのエンコードと、各接続の送信キューへの積み込み）
+ * 接続はソケットを持たないメモリ上の受け手で、積まれたフレームはすぐに取り出して捨てる
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms512m", "-Xmx512m"})
+@State(Scope.Benchmark)
+public class BroadcastBench {
+    @Param({"10", "100", "1000"})
+    public int sinks;
+
+    /** BINARY / LINE / MIXED（半分ずつ） */
+    @Param({"BINARY", "LINE", "MIXED"})
+    public String format;
+
+    private ChatServer server;
+    private Room room;
+    private Frame frame;
+
+    @Setup
+    public void setup() throws ProtocolException {
+        server = new ChatServer(new ServerConfig().setMetricsInterval(0).setMetricsJmx(false));
+        room = new Room(Frame.DEFAULT_ROOM);
+        ByteBuffer hello = BinaryCodec.encode(Frame.of(Frame.HELLO, "", String.valueOf(BinaryCodec.VERSION)));
+        for (int i = 0; i < sinks; i++) {
+            Sink sink = new Sink(server);
+            boolean binary = format.equals("BINARY") || (format.equals("MIXED") && i % 2 == 0);
+            // 行形式は何も受信していない接続の既定
+            if (binary) sink.onBytes(hello.duplicate());
+            room.members.add(sink);
+        }
+        frame = new Frame(Frame.TEXT, new String[]{"[12:34]", "1"},
+                "今日は晴れですね、お昼はどうしますか。".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public void broadcast() {
+        server.broadcast(room, frame);
+    }
+
+    /**
+     * 送信キューに積まれたものをすぐに捨てる接続
+     */
+    static final class Sink extends Connection {
+        private final ByteBuffer[] batch = new ByteBuffer[64];
+
+        Sink(ChatServer server) {
+            super(server);
+        }
+
+        @Override
+        protected void onQueued() {
+            while (outbound.drainTo(batch) > 0) {
+                // 捨てる
+            }
+        }
+
+        @Override
+        protected void onIngestAvailable() {
+            // 受信しない
+        }
+
+        @Override
+        void close() {
+            outbound.close();
+        }
+
+        @Override
+        String remoteAddress() {
+            return "bench";
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package server;
+
+import client.ChatConnection;
+import client.TransferManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import protocol.BinaryCodec;
+import protocol.Frame;
+import protocol.WireFormat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * LocalCluster で3ノードを起動し、ノード間の中継を確かめる
+ *   - あるノードの発言が、ほかのノードの接続にちょうど1回ずつ届く
+ *   - 同じ送信元から同じ（か古い）通し番号で中継されたメッセージは捨てる
+ *   - ほかのノードで送られた添付を、本体を取り寄せてダウンロードできる
+ */
+class LocalClusterTest {
+    private static final int NODES = 3;
+    private static final int RELAY_PORT_OFFSET = 100;
+    private static final long TIMEOUT_SECONDS = 10;
+    // 重複が届かないことを確かめるために待つ時間
+    private static final long QUIET_MILLIS = 500;
+
+    @TempDir
+    Path dataDir;
+
+    private LocalCluster cluster;
+    private int basePort;
+    private final List<ChatConnection> connections = new ArrayList<>();
+
+    @BeforeEach
+    void start() throws IOException {
+        basePort = freeBasePort();
+        System.setProperty("chat.dataDir", dataDir.toString());
+        System.setProperty("chat.metrics.interval", "0");
+        System.setProperty("chat.metrics.jmx", "false");
+        try {
+            cluster = new LocalCluster(NODES, basePort);
+        } finally {
+            System.clearProperty("chat.dataDir");
+            System.clearProperty("chat.metrics.interval");
+            System.clearProperty("chat.metrics.jmx");
+        }
+        cluster.start();
+    }
+
+    @AfterEach
+    void stop() {
+        for (ChatConnection c : connections) {
+            c.close();
+        }
+        if (cluster != null) cluster.stop();
+    }
+
+    @Test
+    void relaysMessagesToEveryNodeOnce() throws Exception {
+        Client[] clients = new Client[NODES];
+        for (int i = 0; i < NODES; i++) {
+            clients[i] = connect(basePort + i, "user" + i);
+        }
+        clients[0].send("hello from n1");
+        for (Client c : clients) {
+            assertEquals("hello from n1", c.nextText());
+        }
+        clients[2].send("hello from n3");
+        for (Client c : clients) {
+            assertEquals("hello from n3", c.nextText());
+        }
+        for (Client c : clients) {
+            c.assertNoMoreTexts();
+        }
+    }
+
+    @Test
+    void dropsRepeatedSequenceFromSameOrigin() throws Exception {
+        Client client = connect(basePort, "watcher");
+        // ほかのノードのふりをして n1 の中継ポートへ直接送る
+        try (Socket relay = new Socket("localhost", basePort + RELAY_PORT_OFFSET)) {
+            OutputStream out = relay.getOutputStream();
+            Frame profile = new Frame(Frame.PROFILE, new String[]{"x.1", "remote", "golf"}, new byte[]{1});
+            write(out, relayFrame("x", 1, ClusterRelay.PROFILE, "", profile));
+            write(out, relayFrame("x", 10, ClusterRelay.MESSAGE, Frame.DEFAULT_ROOM, text("first", "x.1")));
+            write(out, relayFrame("x", 10, ClusterRelay.MESSAGE, Frame.DEFAULT_ROOM, text("same seq", "x.1")));
+            write(out, relayFrame("x", 9, ClusterRelay.MESSAGE, Frame.DEFAULT_ROOM, text("older seq", "x.1")));
+            // 番号は送信元ごとなので、ほかの送信元の小さい番号は受け入れる
+            write(out, relayFrame("y", 1, ClusterRelay.PROFILE, "", profile));
+            write(out, relayFrame("y", 5, ClusterRelay.MESSAGE, Frame.DEFAULT_ROOM, text("other origin", "x.1")));
+            write(out, relayFrame("x", 11, ClusterRelay.MESSAGE, Frame.DEFAULT_ROOM, text("next", "x.1")));
+            out.flush();
+
+            assertEquals("first", client.nextText());
+            assertEquals("other origin", client.nextText());
+            assertEquals("next", client.nextText());
+            client.assertNoMoreTexts();
+        }
+    }
+
+    @Test
+    void downloadsAttachmentSentOnAnotherNode() throws Exception {
+        Client sender = connect(basePort, "sender");
+        Client receiver = connect(basePort + 1, "receiver");
+        // 何回かに分けて取り寄せる大きさにする
+        byte[] content = new byte[3 * Frame.CHUNK_SIZE + 123];
+        new Random(1).nextBytes(content);
+        Path source = dataDir.resolve("upload.bin");
+        Files.write(source, content);
+
+        sender.transfers.upload(source, Frame.FILE, "[00:00]", (done, total) -> {})
+                .get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        Frame attachment = receiver.attachments.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertNotNull(attachment, "ATTACHMENT が届きません");
+        Path target = dataDir.resolve("download.bin");
+        receiver.transfers.download(attachment.getField(3), Long.parseLong(attachment.getField(5)), target,
+                (done, total) -> {}).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertArrayEquals(content, Files.readAllBytes(target));
+    }
+
+    private Client connect(int port, String nickname) throws Exception {
+        ChatConnection c = new ChatConnection("localhost", port, WireFormat.BINARY);
+        connections.add(c);
+        Client client = new Client(c);
+        c.start(client::onFrame);
+        c.send(new Frame(Frame.PROFILE, new String[]{nickname, "test"}, new byte[]{(byte) port}));
+        client.id = client.welcome.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertNotNull(client.id, "WELCOME が届きません: " + nickname);
+        return client;
+    }
+
+    private static Frame text(String body, String senderId) {
+        return Frame.of(Frame.TEXT, body, "[00:00]", senderId);
+    }
+
+    private static ByteBuffer relayFrame(String origin, long seq, String kind, String room, Frame inner) {
+        ByteBuffer encoded = BinaryCodec.encode(inner);
+        byte[] body = new byte[encoded.remaining()];
+        encoded.get(body);
+        return BinaryCodec.encode(new Frame(ClusterRelay.RELAY, new String[]{origin, String.valueOf(seq), kind, room},
+                body));
+    }
+
+    private static void write(OutputStream out, ByteBuffer buf) throws IOException {
+        byte[] bytes = new byte[buf.remaining()];
+        buf.get(bytes);
+        out.write(bytes);
+    }
+
+    // クライアント用と中継用のポート（先頭から NODES 個ずつ）がすべて空いている先頭のポート
+    private static int freeBasePort() throws IOException {
+        for (int attempt = 0; attempt < 20; attempt++) {
+            int base;
+            try (ServerSocket probe = new ServerSocket(0)) {
+                base = probe.getLocalPort();
+            }
+            if (base + RELAY_PORT_OFFSET + NODES > 65535) continue;
+            if (allFree(base)) return base;
+        }
+        throw new IOException("空いているポートが見つかりません");
+    }
+
+    private static boolean allFree(int base) {
+        for (int i = 0; i < NODES; i++) {
+            for (int port : new int[]{base + i, base + RELAY_PORT_OFFSET + i}) {
+                try (ServerSocket ignored = new ServerSocket(port)) {
+                    // 空いている
+                } catch (IOException e) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static final class Client {
+        final ChatConnection connection;
+        final TransferManager transfers;
+        final BlockingQueue<String> welcome = new LinkedBlockingQueue<>();
+        final BlockingQueue<String> texts = new LinkedBlockingQueue<>();
+        final BlockingQueue<Frame> attachments = new LinkedBlockingQueue<>();
+        String id;
+
+        Client(ChatConnection connection) {
+            this.connection = connection;
+            this.transfers = new TransferManager(connection);
+        }
+
+        void onFrame(Frame frame) {
+            if (transfers.handle(frame)) return;
+            if (Frame.WELCOME.equals(frame.getType())) {
+                welcome.add(frame.getField(0));
+            } else if (Frame.TEXT.equals(frame.getType())) {
+                texts.add(frame.getBodyText());
+            } else if (Frame.ATTACHMENT.equals(frame.getType())) {
+                attachments.add(frame);
+            }
+        }
+
+        void send(String text) throws IOException {
+            connection.send(Frame.of(Frame.TEXT, text, "[00:00]", id));
+        }
+
+        String nextText() throws InterruptedException {
+            String text = texts.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            assertNotNull(text, "メッセージが届きません");
+            return text;
+        }
+
+        void assertNoMoreTexts() throws InterruptedException {
+            String extra = texts.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS);
+            assertNull(extra, "重複して届きました: " + extra);
+        }
+    }
+}
@@ -1,22 +1,72 @@
 package client;
 
+import protocol.Frame;
+
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
-import java.net.*;
 import java.nio.file.Files;
-import java.text.SimpleDateFormat;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Base64;
-import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
 
 public class ChatClientPanel extends JFrame {
-    private final JPanel messageContainer = new JPanel();
+    private static final int SEARCH_PAGE = 20;
+    // 切断後の再接続の間隔（失敗するたびに倍にする）
+    private static final long RECONNECT_MIN_MILLIS = 500;
+    private static final long RECONNECT_MAX_MILLIS = 30_000;
+    // 送信するメッセージの時刻（サーバーは自分の時計で付け直すので、従来サーバー向け）
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("'['HH:mm:ss']'");
+    // -Dchat.debug=true なら終了時にログの場所と画像キャッシュ・圧縮の統計を標準出力に出す
+    private static final boolean DEBUG = Boolean.getBoolean("chat.debug");
+    // 閉じるときに送信キューの書き出しを待つ上限
+    private static final long CLOSE_TIMEOUT_MILLIS = 1000;
+
+    // メッセージは JList で表示し、画面に見えている行だけを描画する
+    private final JList<ChatMessage> messageList = new JList<>();
+    private MessageTimeline timeline;
+    private MessageCellRenderer cellRenderer;
+    private MessageDecoder decoder;
+    // 受信スレッドなどから届いたものを EDT でまとめて反映する
+    private final EdtBatcher<ChatMessage> incoming = new EdtBatcher<>(this::addMessages);
+    private final EdtBatcher<ChatMessage> refreshed = new EdtBatcher<>(messages -> timeline.changed(messages));
+    private boolean paging;
     private final JTextArea inputArea = new JTextArea(3, 30);
     private final JScrollPane scrollPane;
-    private PrintWriter out;
+    private volatile ChatConnection connection;
+    // ウィンドウを閉じた後は切断されても繋ぎ直さない
+    private volatile boolean closing;
     private final Profile profile;
     private final HtmlLogger logger = new HtmlLogger();
+    // サーバーから通知されたプロフィール（ユーザーID → プロフィール）
+    private final Map<String, Profile> profiles = new ConcurrentHashMap<>();
+    private volatile String myId;
+    private volatile TransferManager transfers;
+    // 今いるルームと、受け取ったメッセージの最大の通し番号（再接続時に JOIN で伝え、未受信の分だけを受け取る）
+    private volatile String currentRoom = Frame.DEFAULT_ROOM;
+    private volatile long lastSeq = -1;
+    private final JLabel statusLabel = new JLabel();
+    // 進行中の転送（1件1行。進捗バーと中止ボタン）
+    private final JPanel transferPanel = new JPanel();
+    // 届いた検索結果（終わりの SEARCH が届くまでためる。受信スレッドだけが触る）
+    private final List<String> searchHits = new ArrayList<>();
+    // 受信した添付の置き場所（内容のハッシュごと）と履歴ファイル
+    private Path attachmentDir;
+    // 元の画像を受信中の添付（内容のハッシュ。EDT だけが触る）
+    private final Set<String> openingImages = new HashSet<>();
 
     public ChatClientPanel(String host, int port) {
         profile = ProfileDialog.show(this);
@@ -25,7 +75,7 @@ public class ChatClientPanel extends JFrame {
             System.exit(0);
         }
 
-        setTitle("Chat - " + profile.getNickname());
+        setTitle("Chat - " + profile.getNickname() + " #" + Frame.DEFAULT_ROOM);
         setDefaultCloseOperation(EXIT_ON_CLOSE);
         setSize(800, 800);
         setLayout(new BorderLayout());
@@ -39,9 +89,34 @@ public class ChatClientPanel extends JFrame {
         profilePanel.add(nameLabel);
         add(profilePanel, BorderLayout.NORTH);
 
-        // チャット表示エリア
-        messageContainer.setLayout(new BoxLayout(messageContainer, BoxLayout.Y_AXIS));
-        scrollPane = new JScrollPane(messageContainer);
+        // チャット表示エリア（メモリに持つのは -Dchat.timeline.maxRows 件まで。残りは履歴ファイルから読み込む）
+        try {
+            attachmentDir = Files.createTempDirectory("chat-client");
+            timeline = new MessageTimeline(attachmentDir.resolve("history.bin"),
+                    Integer.getInteger("chat.timeline.maxRows", 500));
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(this, "一時ファイルを作成できませんでした。", "エラー", JOptionPane.ERROR_MESSAGE);
+            System.exit(1);
+        }
+        decoder = new MessageDecoder(attachmentDir,
+                Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1)), refreshed::add);
+        cellRenderer = new MessageCellRenderer(attachmentDir, decoder);
+        messageList.setModel(timeline);
+        messageList.setCellRenderer(cellRenderer);
+        messageList.setSelectionModel(new DefaultListSelectionModel() {
+            @Override
+            public void setSelectionInterval(int index0, int index1) {
+                // 行の選択はしない
+            }
+        });
+        messageList.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                onListClicked(e.getPoint());
+            }
+        });
+        scrollPane = new JScrollPane(messageList);
+        scrollPane.getVerticalScrollBar().addAdjustmentListener(e -> onScrolled());
         add(scrollPane, BorderLayout.CENTER);
 
         // 入力エリア
@@ -67,10 +142,19 @@ public class ChatClientPanel extends JFrame {
         JButton fileButton = new JButton("📎 ファイル");
         fileButton.addActionListener(e -> sendBinary("FILE"));
 
+        JButton roomButton = new JButton("# ルーム");
+        roomButton.addActionListener(e -> changeRoom());
+
+        JButton searchButton = new JButton("🔍 検索");
+        searchButton.addActionListener(e -> search());
+
         JButton imageButton = new JButton("🖼 画像");
         imageButton.addActionListener(e -> sendBinary("IMAGE"));
 
         JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        buttonPanel.add(statusLabel);
+        buttonPanel.add(roomButton);
+        buttonPanel.add(searchButton);
         buttonPanel.add(fileButton);
         buttonPanel.add(imageButton);
         buttonPanel.add(sendButton);
@@ -79,12 +163,33 @@ public class ChatClientPanel extends JFrame {
         inputPanel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
         inputPanel.add(new JScrollPane(inputArea), BorderLayout.CENTER);
         inputPanel.add(buttonPanel, BorderLayout.EAST);
+        transferPanel.setLayout(new BoxLayout(transferPanel, BoxLayout.Y_AXIS));
+        inputPanel.add(transferPanel, BorderLayout.NORTH);
         add(inputPanel, BorderLayout.SOUTH);
 
         addWindowListener(new WindowAdapter() {
             @Override
             public void windowClosing(WindowEvent e) {
-                logger.save(ChatClientPanel.this);
+                closing = true;
+                ChatConnection conn = connection;
+                String compression = conn != null ? conn.getCompressionStats() : null;
+                if (conn != null) {
+                    try {
+                        conn.close(CLOSE_TIMEOUT_MILLIS);
+                    } catch (InterruptedException ignored) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                logger.close();
+                decoder.shutdown();
+                try {
+                    timeline.close();
+                } catch (IOException ignored) {}
+                if (DEBUG) {
+                    if (logger.getCurrentFile() != null) System.out.println("ログ: " + logger.getCurrentFile().toAbsolutePath());
+                    System.out.println(ImageCache.shared());
+                    if (compression != null) System.out.println(compression);
+                }
             }
         });
 
@@ -94,170 +199,493 @@ public class ChatClientPanel extends JFrame {
 
     private void connect(String host, int port) {
         try {
-            Socket sock = new Socket(host, port);
-            BufferedReader in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-            out = new PrintWriter(sock.getOutputStream(), true);
-
-            new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        String line;
-                        while ((line = in.readLine()) != null) {
-                            String[] parts = line.split("\\|\\|\\|", 6);
-                            if (parts.length < 6) continue;
-
-                            String type = parts[0];
-                            String time = parts[1], user = parts[2], hobby = parts[3], img64 = parts[4], content = parts[5];
-                            boolean isMe = user.equals(profile.getNickname());
-
-                            JPanel rendered = null;
-                            switch (type) {
-                                case "TEXT":
-                                    rendered = MessageRenderer.render(time, user, hobby, img64, content, isMe);
-                                    if (isMe) logger.append(time, user, hobby, img64, content, true);
-                                    break;
-                                case "FILE":
-                                    rendered = renderFileMessage(time, user, hobby, img64, content, isMe);
-                                    if (isMe) logger.append(time, user, hobby, img64, "[ファイル]", true);
-                                    break;
-                                case "IMAGE":
-                                    rendered = renderImageMessage(time, user, hobby, img64, content, isMe);
-                                    if (isMe) logger.append(time, user, hobby, img64, "[画像]", true);
-                                    break;
-                                default:
-                                    break;
-                            }
-
-                            if (rendered != null) {
-                                JPanel finalRendered = rendered;
-                                SwingUtilities.invokeLater(() -> {
-                                    messageContainer.add(finalRendered);
-                                    messageContainer.revalidate();
-                                    messageContainer.repaint();
-                                    scrollPane.getVerticalScrollBar().setValue(scrollPane.getVerticalScrollBar().getMaximum());
-                                });
-                            }
-                        }
-                    } catch (IOException ignored) {}
-                }
-            }).start();
+            open(host, port);
         } catch (IOException e) {
             JOptionPane.showMessageDialog(this, "サーバーに接続できませんでした。", "接続エラー", JOptionPane.ERROR_MESSAGE);
+            reconnect(host, port);
         }
     }
 
-    private void sendMessage(String text) {
-        String txt = text.trim();
-        if (txt.isEmpty()) return;
-        String time = new SimpleDateFormat("HH:mm:ss").format(new Date());
-        String safeText = txt.replace("|||", "｜｜｜");
-        String payload = String.join("|||", "TEXT", "[" + time + "]",
-                profile.getNickname(), profile.getHobby(), profile.getBase64Image(), safeText);
-        out.println(payload);
+    /**
+     * 接続して PROFILE を登録する（以後のメッセージはアイコンを載せずユーザーIDで送れる）
+     * 再接続なら先に今のルームと最後に受け取った通し番号を JOIN で伝え、切れていた間のメッセージだけを送り直してもらう
+     * 受信スレッドは送り終えてから始める（途中で失敗しても、切断の処理が二重に走らないように）
+     */
+    private void open(String host, int port) throws IOException {
+        ChatConnection conn = new ChatConnection(host, port);
+        try {
+            long seq = lastSeq;
+            String room = currentRoom;
+            if (seq >= 0) {
+                conn.send(new Frame(Frame.JOIN, new String[]{room, String.valueOf(seq)}, null));
+            } else if (!Frame.DEFAULT_ROOM.equals(room)) {
+                conn.send(new Frame(Frame.JOIN, new String[]{room}, null));
+            }
+            conn.send(new Frame(Frame.PROFILE, new String[]{profile.getNickname(), profile.getHobby()},
+                    Base64.getDecoder().decode(profile.getBase64Image())));
+        } catch (IOException e) {
+            conn.close();
+            throw e;
+        }
+        TransferManager tm = new TransferManager(conn);
+        transfers = tm;
+        connection = conn;
+        conn.start(this::onFrame, () -> onDisconnected(host, port, tm));
     }
 
-    private void sendBinary(String type) {
-        JFileChooser chooser = new JFileChooser();
-        if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) return;
-        File file = chooser.getSelectedFile();
+    // 受信スレッドから呼ばれる。進行中の転送を終わらせてから接続し直す
+    private void onDisconnected(String host, int port, TransferManager old) {
+        old.disconnected();
+        if (closing) return;
+        myId = null; // 再登録で WELCOME が届くまでは完全形式で送る
+        reconnect(host, port);
+    }
 
+    /**
+     * 間隔を延ばしながら（ゆらぎを加えて、全員が同時に繋ぎ直さないように）接続できるまで繰り返す
+     */
+    private void reconnect(String host, int port) {
+        Thread t = new Thread(() -> {
+            long delay = RECONNECT_MIN_MILLIS;
+            while (true) {
+                long wait = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+                showStatus("切断されました。" + (wait + 999) / 1000 + " 秒後に再接続します");
+                try {
+                    Thread.sleep(wait);
+                    open(host, port);
+                    showStatus("再接続しました");
+                    return;
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException e) {
+                    delay = Math.min(delay * 2, RECONNECT_MAX_MILLIS);
+                }
+            }
+        }, "chat-reconnect");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private static long parseSeq(String seq) {
         try {
-            if (type.equals("IMAGE")) {
-                String mimeType = Files.probeContentType(file.toPath());
-                if (mimeType == null || !mimeType.startsWith("image/")) {
-                    JOptionPane.showMessageDialog(this, "画像ファイルを選択してください。", "エラー", JOptionPane.ERROR_MESSAGE);
+            return seq.isEmpty() ? -1 : Long.parseLong(seq);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void showStatus(String text) {
+        SwingUtilities.invokeLater(() -> statusLabel.setText(text));
+    }
+
+    /**
+     * 受信スレッドから呼ばれる
+     */
+    private void onFrame(Frame frame) {
+        if (transfers.handle(frame)) return;
+        String type = frame.getType();
+        switch (type) {
+            case Frame.WELCOME:
+                myId = frame.getField(0);
+                return;
+            case Frame.JOIN:
+                String room = frame.getField(0);
+                // 別のルームなら送り直しは古い番号から始まる。参加時点の番号が受け取り済みより前なら、サーバーの番号が振り直されている
+                long joinedSeq = parseSeq(frame.getField(1));
+                if (!room.equals(currentRoom) || (joinedSeq >= 0 && joinedSeq <= lastSeq)) lastSeq = -1;
+                currentRoom = room;
+                SwingUtilities.invokeLater(() -> setTitle("Chat - " + profile.getNickname() + " #" + room));
+                return;
+            case Frame.PROFILE:
+                profiles.put(frame.getField(0), new Profile(frame.getField(1), frame.getField(2),
+                        Base64.getEncoder().encodeToString(frame.getBody())));
+                return;
+            case Frame.SEARCH_HIT:
+                Profile author = profiles.get(frame.getField(3));
+                searchHits.add(frame.getField(2) + " " + (author != null ? author.getNickname() : "?")
+                        + ": " + frame.getBodyText());
+                return;
+            case Frame.SEARCH:
+                List<String> hits = new ArrayList<>(searchHits);
+                searchHits.clear();
+                SwingUtilities.invokeLater(() -> showSearchResults(frame.getField(0), frame.getField(1), hits));
+                return;
+            default:
+                break;
+        }
+
+        String time = frame.getField(0), user, hobby, img64;
+        boolean isMe;
+        if (frame.isCompact() || Frame.ATTACHMENT.equals(type)) {
+            long seq = frame.getSeq();
+            if (seq >= 0) {
+                // 再接続の前後で重なって届いた受け取り済みのメッセージは捨てる
+                if (seq <= lastSeq) return;
+                lastSeq = seq;
+            }
+            Profile sender = profiles.get(frame.getField(1));
+            if (sender == null) return;
+            user = sender.getNickname();
+            hobby = sender.getHobby();
+            img64 = sender.getBase64Image();
+            isMe = frame.getField(1).equals(myId);
+        } else {
+            if (frame.getFieldCount() < 4) return;
+            user = frame.getField(1);
+            hobby = frame.getField(2);
+            img64 = frame.getField(3);
+            isMe = user.equals(profile.getNickname());
+        }
+
+        ChatMessage message;
+        switch (type) {
+            case Frame.TEXT:
+                String content = frame.getBodyText();
+                message = ChatMessage.text(time, user, hobby, img64, isMe, content);
+                if (isMe) logger.append(time, user, hobby, img64, content, true);
+                break;
+            case Frame.FILE:
+            case Frame.IMAGE: {
+                // 本文ごと届いた添付も、ハッシュ名のファイルにしてメモリには持たない
+                byte[] data = frame.getBody();
+                String hash = TransferManager.contentHash(data);
+                try {
+                    Path file = attachmentDir.resolve(hash);
+                    if (!Files.exists(file)) Files.write(file, data);
+                } catch (IOException e) {
+                    System.err.println("添付の保存に失敗しました: " + e.getMessage());
                     return;
                 }
+                message = ChatMessage.attachment(type, time, user, hobby, img64, isMe, "", data.length, hash, "");
+                if (isMe) logger.append(time, user, hobby, img64, Frame.IMAGE.equals(type) ? "[画像]" : "[ファイル]", true);
+                break;
             }
+            case Frame.ATTACHMENT:
+                message = attachment(frame, time, user, hobby, img64, isMe);
+                if (message == null) return;
+                if (isMe) {
+                    String label = Frame.IMAGE.equals(message.getKind()) ? "[画像]" : "[ファイル]";
+                    logger.append(time, user, hobby, img64, label, true);
+                }
+                break;
+            default:
+                return;
+        }
+
+        incoming.add(message);
+    }
 
-            byte[] data = Files.readAllBytes(file.toPath());
-            String encoded = Base64.getEncoder().encodeToString(data);
-            String time = new SimpleDateFormat("HH:mm:ss").format(new Date());
-            String payload = String.join("|||", type, "[" + time + "]",
-                    profile.getNickname(), profile.getHobby(), profile.getBase64Image(), encoded);
-            out.println(payload);
+    /**
+     * 受信したメッセージをまとめてタイムラインに加える（EDT）。最下部を表示中なら新着に追従する
+     */
+    private void addMessages(List<ChatMessage> messages) {
+        JScrollBar bar = scrollPane.getVerticalScrollBar();
+        boolean atBottom = bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum();
+        try {
+            paging = true;
+            if (timeline.appendAll(messages) && atBottom) {
+                scrollPane.validate();
+                messageList.ensureIndexIsVisible(timeline.getSize() - 1);
+            }
         } catch (IOException e) {
-            JOptionPane.showMessageDialog(this, "送信に失敗しました。", "エラー", JOptionPane.ERROR_MESSAGE);
+            System.err.println("履歴の書き込みに失敗しました: " + e.getMessage());
+        } finally {
+            paging = false;
         }
     }
 
-    private JPanel renderFileMessage(String time, String user, String hobby, String img64, String fileBase64, boolean isMe) {
-        byte[] fileData = Base64.getDecoder().decode(fileBase64);
-        JPanel panel = new JPanel(new BorderLayout());
-        panel.setOpaque(false);
-        panel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
-
-        JLabel info = new JLabel("<html><b>" + HtmlUtil.escapeHTML(user) + "</b>（趣味: " + HtmlUtil.escapeHTML(hobby)
-                + "）[" + HtmlUtil.escapeHTML(time) + "]</html>");
-        JLabel fileInfo = new JLabel("ファイルサイズ: " + fileData.length + " バイト");
-
-        JButton saveButton = new JButton("ファイル保存");
-        saveButton.addActionListener(e -> {
-            JFileChooser chooser = new JFileChooser();
-            if (chooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
-                try (FileOutputStream fos = new FileOutputStream(chooser.getSelectedFile())) {
-                    fos.write(fileData);
-                } catch (IOException ex) {
-                    JOptionPane.showMessageDialog(this, "ファイルの保存に失敗しました。", "エラー", JOptionPane.ERROR_MESSAGE);
-                }
+    /**
+     * 表示範囲の端までスクロールされたら、履歴ファイルから続きを読み込む
+     */
+    private void onScrolled() {
+        if (paging) return;
+        JScrollBar bar = scrollPane.getVerticalScrollBar();
+        if (bar.getValue() == bar.getMinimum() && timeline.hasOlder()) {
+            loadPage(timeline::pageOlder);
+        } else if (bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum() && !timeline.isAtLatest()) {
+            loadPage(timeline::pageNewer);
+        }
+    }
+
+    private interface PageLoader {
+        int load() throws IOException;
+    }
+
+    // 読み込みの前後で、画面の一番上に見えていたメッセージが同じ位置に見えるようにする
+    private void loadPage(PageLoader loader) {
+        JViewport viewport = scrollPane.getViewport();
+        Point pos = viewport.getViewPosition();
+        int index = messageList.locationToIndex(pos);
+        ChatMessage anchor = index >= 0 ? timeline.getElementAt(index) : null;
+        int offset = index >= 0 ? pos.y - messageList.getCellBounds(index, index).y : 0;
+        paging = true;
+        try {
+            loader.load();
+            scrollPane.validate();
+            int moved = anchor != null ? timeline.indexOf(anchor) : -1;
+            if (moved >= 0) {
+                viewport.setViewPosition(new Point(pos.x, messageList.getCellBounds(moved, moved).y + offset));
             }
-        });
+        } catch (IOException e) {
+            System.err.println("履歴の読み込みに失敗しました: " + e.getMessage());
+        } finally {
+            paging = false;
+        }
+    }
+
+    /**
+     * ファイル行の保存ボタンが押されたら保存する
+     */
+    private void onListClicked(Point p) {
+        int index = messageList.locationToIndex(p);
+        if (index < 0) return;
+        Rectangle cell = messageList.getCellBounds(index, index);
+        ChatMessage m = timeline.getElementAt(index);
+        if (!cell.contains(p) || m.view == null || Frame.TEXT.equals(m.getKind())) return;
+        Component hit = SwingUtilities.getDeepestComponentAt(m.view, p.x - cell.x, p.y - cell.y);
+        if (Frame.FILE.equals(m.getKind())) {
+            if (hit instanceof JButton) saveAttachment(m);
+        } else if (hit instanceof JLabel && ((JLabel) hit).getIcon() != null && hit.getParent() != m.view) {
+            openImage(m); // アイコンではなく画像をクリックしたとき
+        }
+    }
 
-        JPanel content = new JPanel();
-        content.setLayout(new BoxLayout(content, BoxLayout.Y_AXIS));
-        content.setOpaque(false);
-        content.add(info);
-        content.add(fileInfo);
-        content.add(Box.createVerticalStrut(5));
-        content.add(saveButton);
+    /**
+     * 添付画像を原寸で開く。縮小版しか受信していなければ、ここで元の画像を受信する
+     */
+    private void openImage(ChatMessage m) {
+        Path local = attachmentDir.resolve(m.getHash());
+        if (Files.exists(local)) {
+            showImage(m, local);
+            return;
+        }
+        if (transfers == null || !openingImages.add(m.getHash())) return;
+        track("受信中", m.getFileName(), progress -> transfers.download(m.getHash(), m.getSize(), local, progress))
+                .whenComplete((path, error) -> SwingUtilities.invokeLater(() -> {
+                    openingImages.remove(m.getHash());
+                    if (error instanceof CancellationException) return;
+                    if (error != null) {
+                        JOptionPane.showMessageDialog(this, "画像を受信できませんでした。", "エラー", JOptionPane.ERROR_MESSAGE);
+                        return;
+                    }
+                    showImage(m, local);
+                }));
+    }
 
-        JLabel avatar = new JLabel(HtmlUtil.iconFromBase64(img64));
-        avatar.setPreferredSize(new Dimension(50, 50));
+    // 原寸の画像のデコードは EDT の外で行う
+    private void showImage(ChatMessage m, Path file) {
+        CompletableFuture.supplyAsync(() -> new ImageIcon(file.toString()))
+                .thenAccept(icon -> SwingUtilities.invokeLater(() -> {
+                    if (icon.getIconWidth() <= 0) {
+                        JOptionPane.showMessageDialog(this, "画像を表示できませんでした。", "エラー", JOptionPane.ERROR_MESSAGE);
+                        return;
+                    }
+                    JScrollPane pane = new JScrollPane(new JLabel(icon));
+                    pane.setPreferredSize(new Dimension(Math.min(icon.getIconWidth() + 20, 1000),
+                            Math.min(icon.getIconHeight() + 20, 750)));
+                    JOptionPane.showMessageDialog(this, pane, m.getFileName(), JOptionPane.PLAIN_MESSAGE);
+                }));
+    }
 
-        if (isMe) {
-            panel.add(content, BorderLayout.EAST);
-            panel.add(avatar, BorderLayout.WEST);
-        } else {
-            panel.add(avatar, BorderLayout.WEST);
-            panel.add(content, BorderLayout.CENTER);
+    private void saveAttachment(ChatMessage m) {
+        JFileChooser chooser = new JFileChooser();
+        if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) return;
+        Path target = chooser.getSelectedFile().toPath();
+        Path local = attachmentDir.resolve(m.getHash());
+        if (Files.exists(local)) {
+            try {
+                Files.copy(local, target, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException ex) {
+                JOptionPane.showMessageDialog(this, "ファイルの保存に失敗しました。", "エラー", JOptionPane.ERROR_MESSAGE);
+            }
+            return;
         }
+        track("受信中", m.getFileName(), progress -> transfers.download(m.getHash(), m.getSize(), target, progress))
+                .whenComplete((path, error) -> SwingUtilities.invokeLater(() -> {
+                    if (error != null && !(error instanceof CancellationException)) {
+                        JOptionPane.showMessageDialog(this, "ファイルの保存に失敗しました。", "エラー", JOptionPane.ERROR_MESSAGE);
+                    }
+                }));
+    }
 
-        return panel;
+    /**
+     * 別のルームへ移る（空欄なら既定のルームに戻る）
+     */
+    private void changeRoom() {
+        String name = JOptionPane.showInputDialog(this, "ルーム名（空欄でロビーに戻る）:");
+        if (name == null) return;
+        name = name.trim();
+        send(name.isEmpty() ? new Frame(Frame.LEAVE, null, null) : new Frame(Frame.JOIN, new String[]{name}, null));
     }
 
-    private JPanel renderImageMessage(String time, String user, String hobby, String img64, String imageBase64, boolean isMe) {
-        byte[] imageData = Base64.getDecoder().decode(imageBase64);
-        ImageIcon imageIcon = new ImageIcon(imageData);
-        Image scaled = imageIcon.getImage().getScaledInstance(200, -1, Image.SCALE_SMOOTH);
-        JLabel imageLabel = new JLabel(new ImageIcon(scaled));
+    /**
+     * 今いるルームのメッセージをサーバーで検索する（新しい順に SEARCH_PAGE 件ずつ）
+     */
+    private void search() {
+        String query = JOptionPane.showInputDialog(this, "検索語:");
+        if (query == null || query.trim().isEmpty()) return;
+        send(new Frame(Frame.SEARCH, new String[]{query.trim(), "", String.valueOf(SEARCH_PAGE)}, null));
+    }
 
-        JLabel info = new JLabel("<html><b>" + HtmlUtil.escapeHTML(user) + "</b>（趣味: " + HtmlUtil.escapeHTML(hobby)
-                + "）[" + HtmlUtil.escapeHTML(time) + "]</html>");
+    private void showSearchResults(String query, String next, List<String> hits) {
+        if (hits.isEmpty()) {
+            JOptionPane.showMessageDialog(this, "「" + query + "」に一致するメッセージはありません。");
+            return;
+        }
+        JTextArea area = new JTextArea(String.join("\n", hits));
+        area.setEditable(false);
+        area.setLineWrap(true);
+        JScrollPane pane = new JScrollPane(area);
+        pane.setPreferredSize(new Dimension(500, 300));
+        if (next.isEmpty()) {
+            JOptionPane.showMessageDialog(this, pane, "検索: " + query, JOptionPane.PLAIN_MESSAGE);
+            return;
+        }
+        String[] options = {"さらに前を検索", "閉じる"};
+        int choice = JOptionPane.showOptionDialog(this, pane, "検索: " + query, JOptionPane.DEFAULT_OPTION,
+                JOptionPane.PLAIN_MESSAGE, null, options, options[1]);
+        if (choice == 0) send(new Frame(Frame.SEARCH, new String[]{query, next, String.valueOf(SEARCH_PAGE)}, null));
+    }
 
-        JPanel content = new JPanel();
-        content.setLayout(new BoxLayout(content, BoxLayout.Y_AXIS));
-        content.setOpaque(false);
-        content.add(info);
-        content.add(Box.createVerticalStrut(5));
-        content.add(imageLabel);
+    private void sendMessage(String text) {
+        String txt = text.trim();
+        if (txt.isEmpty()) return;
+        send(Frame.of(Frame.TEXT, txt, senderFields(LocalTime.now().format(TIME))));
+        showLatest();
+    }
 
-        JLabel avatar = new JLabel(HtmlUtil.iconFromBase64(img64));
-        avatar.setPreferredSize(new Dimension(50, 50));
+    /**
+     * 自分が送信したら、過去の履歴を表示中でも最新に戻して最下部へスクロールする（EDT。届いた自分の発言に追従する）
+     */
+    private void showLatest() {
+        paging = true;
+        try {
+            timeline.showLatest();
+            scrollPane.validate();
+            if (timeline.getSize() > 0) messageList.ensureIndexIsVisible(timeline.getSize() - 1);
+        } catch (IOException e) {
+            System.err.println("履歴の読み込みに失敗しました: " + e.getMessage());
+        } finally {
+            paging = false;
+        }
+    }
 
-        JPanel panel = new JPanel(new BorderLayout());
-        panel.setOpaque(false);
-        panel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
+    /**
+     * メッセージのヘッダ項目。ID をもらえていれば短縮形式、まだなら従来の完全形式
+     */
+    private String[] senderFields(String time) {
+        String id = myId;
+        if (id != null) {
+            return new String[]{time, id};
+        }
+        return new String[]{time, profile.getNickname(), profile.getHobby(), profile.getBase64Image()};
+    }
 
-        if (isMe) {
-            panel.add(content, BorderLayout.EAST);
-            panel.add(avatar, BorderLayout.WEST);
-        } else {
-            panel.add(avatar, BorderLayout.WEST);
-            panel.add(content, BorderLayout.CENTER);
+    private void send(Frame frame) {
+        if (connection == null) return;
+        try {
+            connection.send(frame);
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(this, "送信に失敗しました。", "エラー", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    /**
+     * 添付ファイルの通知。画像はすぐに取りに行き、ファイルは保存ボタンが押されてから取りに行く
+     */
+    private ChatMessage attachment(Frame frame, String time, String user, String hobby, String img64, boolean isMe) {
+        String kind = frame.getField(2), hash = frame.getField(3), name = frame.getField(4), mime = frame.getField(6);
+        long size;
+        try {
+            size = Long.parseLong(frame.getField(5));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        ChatMessage message = ChatMessage.attachment(Frame.IMAGE.equals(kind) ? Frame.IMAGE : Frame.FILE, time, user,
+                hobby, img64, isMe, name, size, hash, mime);
+
+        Path cached = attachmentDir.resolve(hash);
+        if (!Frame.IMAGE.equals(kind) || Files.exists(cached)) return message;
+        // サーバーが縮小版を載せてきたら、それだけを保存して表示する（元の画像は開いたときに受信する）
+        byte[] thumbnail = frame.getBody();
+        if (thumbnail != null && thumbnail.length > 0) {
+            Path thumb = MessageDecoder.thumbnailFile(attachmentDir, hash);
+            try {
+                if (!Files.exists(thumb)) Files.write(thumb, thumbnail);
+            } catch (IOException e) {
+                cellRenderer.imageFailed(hash);
+            }
+            return message;
         }
+        // 縮小版がなければ元の画像を受信する。内容のハッシュで保存するので、同じ画像は一度しか受信しない
+        transfers.download(hash, size, cached, (done, total) -> {})
+                .whenComplete((path, error) -> {
+                    if (error != null) cellRenderer.imageFailed(hash);
+                    refreshed.add(message);
+                });
+        return message;
+    }
+
+    /**
+     * 転送を始め、終わるまで進捗バーと中止ボタンの行を出しておく（EDT）
+     * 進捗は転送スレッドから届くので、割合が変わったときだけ EDT に渡す
+     */
+    private <T> CompletableFuture<T> track(String action, String name,
+                                           Function<TransferManager.Progress, CompletableFuture<T>> start) {
+        JProgressBar bar = new JProgressBar(0, 100);
+        bar.setStringPainted(true);
+        JButton cancel = new JButton("中止");
+        JPanel row = new JPanel(new BorderLayout(5, 0));
+        row.add(new JLabel(action + " " + name), BorderLayout.WEST);
+        row.add(bar, BorderLayout.CENTER);
+        row.add(cancel, BorderLayout.EAST);
+        transferPanel.add(row);
+        transferPanel.revalidate();
+
+        int[] shown = {-1};
+        CompletableFuture<T> future = start.apply((done, total) -> {
+            int percent = total == 0 ? 100 : (int) (done * 100 / total);
+            if (percent == shown[0]) return;
+            shown[0] = percent;
+            SwingUtilities.invokeLater(() -> bar.setValue(percent));
+        });
+        cancel.addActionListener(e -> future.cancel(false));
+        future.whenComplete((result, error) -> SwingUtilities.invokeLater(() -> {
+            transferPanel.remove(row);
+            transferPanel.revalidate();
+            transferPanel.repaint();
+        }));
+        return future;
+    }
 
-        return panel;
+    private void sendBinary(String type) {
+        if (transfers == null) return;
+        JFileChooser chooser = new JFileChooser();
+        if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) return;
+        File file = chooser.getSelectedFile();
+
+        try {
+            if (type.equals("IMAGE")) {
+                String mimeType = Files.probeContentType(file.toPath());
+                if (mimeType == null || !mimeType.startsWith("image/")) {
+                    JOptionPane.showMessageDialog(this, "画像ファイルを選択してください。", "エラー", JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
+            }
+
+            // ファイルは分割して送るので、全体をメモリに読み込まない（読み込みとハッシュ計算も転送スレッドで行う）
+            String time = LocalTime.now().format(TIME);
+            track("送信中", file.getName(), progress -> transfers.upload(file.toPath(), type, time, progress))
+                    .whenComplete((done, error) -> SwingUtilities.invokeLater(() -> {
+                        if (error != null && !(error instanceof CancellationException)) {
+                            JOptionPane.showMessageDialog(this, "送信に失敗しました。もう一度送ると続きから再開します。",
+                                    "エラー", JOptionPane.ERROR_MESSAGE);
+                        }
+                    }));
+            showLatest();
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(this, "送信に失敗しました。", "エラー", JOptionPane.ERROR_MESSAGE);
+        }
     }
 
     public static void main(String[] args) {
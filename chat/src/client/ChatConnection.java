@@ -0,0 +1,177 @@
+package client;
+
+import protocol.BinaryCodec;
+import protocol.Frame;
+import protocol.FrameCompressor;
+import protocol.FrameDecoder;
+import protocol.WireFormat;
+
+import java.io.*;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+
+/**
+ * サーバーとの接続。フレームの送信と、受信スレッドでのフレーム解析を受け持つ
+ * 送信は送信キューに積むだけで、エンコード・圧縮・書き込みは送信スレッドが行う（EDT を止めない）
+ * 送信スレッドは続けて積まれているフレームをまとめて書き、最後に一度だけ flush する
+ * 通信形式はシステムプロパティ chat.wire=binary|line で選ぶ（既定はバイナリ）
+ * バイナリ形式では HELLO で deflate を求め、サーバーが HELLO で応じたら送信も圧縮する
+ *   -Dchat.compress=true|false      圧縮を求めるか（既定 true）
+ *   -Dchat.compress.threshold=64    これより小さいペイロードは圧縮しない
+ *   -Dchat.maxFrameSize=16777216    受信する1フレームの上限（超えたら切断する。サーバーの既定と同じ）
+ */
+public class ChatConnection {
+    private static final int MAX_FRAME_SIZE = Integer.getInteger("chat.maxFrameSize", 16 * 1024 * 1024);
+    // 送信スレッドを終わらせる印
+    private static final Frame CLOSED = new Frame("", null, null);
+
+    private final Socket sock;
+    private final OutputStream out;
+    private final WireFormat format;
+    private final FrameDecoder decoder;
+    private final BlockingQueue<Frame> outbound = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private volatile boolean closed;
+    private final int compressThreshold = Integer.getInteger("chat.compress.threshold", 64);
+    // サーバーが圧縮に応じるまでは null
+    private volatile FrameCompressor compressor;
+
+    public ChatConnection(String host, int port) throws IOException {
+        this(host, port, WireFormat.parse(System.getProperty("chat.wire", "binary")));
+    }
+
+    public ChatConnection(String host, int port, WireFormat format) throws IOException {
+        this.sock = new Socket(host, port);
+        this.out = new BufferedOutputStream(sock.getOutputStream());
+        this.format = format;
+        this.decoder = new FrameDecoder(format, MAX_FRAME_SIZE);
+        this.writer = new Thread(this::writeLoop, "chat-writer");
+        writer.setDaemon(true);
+        writer.start();
+        if (format == WireFormat.BINARY) {
+            // 最初のバイトでサーバーに形式を知らせる
+            String version = String.valueOf(BinaryCodec.VERSION);
+            boolean compress = Boolean.parseBoolean(System.getProperty("chat.compress", "true"));
+            send(compress ? Frame.of(Frame.HELLO, "", version, BinaryCodec.DEFLATE) : Frame.of(Frame.HELLO, "", version));
+        }
+    }
+
+    public WireFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * 圧縮の統計（サーバーが圧縮に応じていなければ null）
+     */
+    public String getCompressionStats() {
+        FrameCompressor c = compressor;
+        if (c == null) return null;
+        long in = decoder.getCompressedBytes();
+        return String.format("送信 %s, 受信 %d → %d バイト (%.1f%%)", c, decoder.getInflatedBytes(), in,
+                in == 0 ? 100.0 : 100.0 * in / decoder.getInflatedBytes());
+    }
+
+    public void start(Consumer<Frame> onFrame) {
+        start(onFrame, () -> {});
+    }
+
+    /**
+     * 受信スレッドを開始する。切断されたら onClosed を呼んでスレッドは終了する
+     * サーバーからの HELLO（圧縮の応答）はここで処理し、onFrame には渡さない
+     */
+    public void start(Consumer<Frame> onFrame, Runnable onClosed) {
+        Consumer<Frame> handler = frame -> {
+            if (Frame.HELLO.equals(frame.getType())) {
+                if (frame.getFieldCount() > 1 && BinaryCodec.DEFLATE.equals(frame.getField(1))) {
+                    compressor = new FrameCompressor(compressThreshold);
+                }
+                return;
+            }
+            onFrame.accept(frame);
+        };
+        Thread reader = new Thread(() -> {
+            byte[] buf = new byte[8192];
+            try (InputStream in = sock.getInputStream()) {
+                int n;
+                while ((n = in.read(buf)) >= 0) {
+                    decoder.feed(ByteBuffer.wrap(buf, 0, n), handler);
+                }
+            } catch (ProtocolException e) {
+                System.err.println("プロトコルエラー: " + e.getMessage());
+            } catch (IOException ignored) {}
+            decoder.close();
+            abort();
+            onClosed.run();
+        }, "chat-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * 送信キューに積む（書き込みは待たない）。既に切断されていれば IOException
+     */
+    public void send(Frame frame) throws IOException {
+        if (closed) throw new IOException("接続が切れています");
+        outbound.add(frame);
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                Frame frame = outbound.take();
+                do {
+                    if (frame == CLOSED) {
+                        out.flush();
+                        sock.close();
+                        return;
+                    }
+                    write(frame);
+                } while ((frame = outbound.poll()) != null);
+                out.flush();
+            }
+        } catch (IOException e) {
+            abort(); // 受信スレッドも終わり、切断として扱われる
+        } catch (InterruptedException ignored) {
+        } finally {
+            FrameCompressor c = compressor;
+            if (c != null) c.close();
+        }
+    }
+
+    private void write(Frame frame) throws IOException {
+        ByteBuffer buf = format.encode(frame);
+        FrameCompressor c = compressor;
+        if (c != null) buf = c.compress(buf);
+        out.write(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+    }
+
+    /**
+     * 送信キューに積んだものを書き終えてから閉じる
+     */
+    public void close() {
+        closed = true;
+        outbound.add(CLOSED);
+    }
+
+    /**
+     * close してから、書き終えて閉じるまで最大 timeoutMillis 待つ（終了直前に呼ぶ。送信スレッドはデーモンなので）
+     */
+    public void close(long timeoutMillis) throws InterruptedException {
+        close();
+        writer.join(timeoutMillis);
+    }
+
+    // 送信キューに残ったものは捨ててすぐに閉じる
+    private void abort() {
+        closed = true;
+        outbound.clear();
+        outbound.add(CLOSED);
+        try {
+            sock.close();
+        } catch (IOException ignored) {}
+    }
+}
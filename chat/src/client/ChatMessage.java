@@ -0,0 +1,114 @@
+package client;
+
+import protocol.Frame;
+
+import java.awt.*;
+import java.nio.charset.StandardCharsets;
+import java.util.function.IntFunction;
+
+/**
+ * タイムラインの1件分のメッセージ
+ * 添付の本体は持たず、内容の SHA-256 だけを持つ（本体は添付の置き場所かサーバーにある）
+ */
+public class ChatMessage {
+    private final String kind;
+    private final String time;
+    private final String user;
+    private final String hobby;
+    private final String img64;
+    private final boolean me;
+    private final String text;
+    private final String fileName;
+    private final long size;
+    private final String hash;
+    private final String mime;
+
+    // 描画済みのコンポーネント（表示範囲から外れたメッセージごと捨てられる）
+    Component view;
+
+    private ChatMessage(String kind, String time, String user, String hobby, String img64, boolean me,
+                        String text, String fileName, long size, String hash, String mime) {
+        this.kind = kind;
+        this.time = time;
+        this.user = user;
+        this.hobby = hobby;
+        this.img64 = img64;
+        this.me = me;
+        this.text = text;
+        this.fileName = fileName;
+        this.size = size;
+        this.hash = hash;
+        this.mime = mime;
+    }
+
+    public static ChatMessage text(String time, String user, String hobby, String img64, boolean me, String text) {
+        return new ChatMessage(Frame.TEXT, time, user, hobby, img64, me, text, "", 0, "", "");
+    }
+
+    /**
+     * 添付（kind は Frame.FILE または Frame.IMAGE）
+     */
+    public static ChatMessage attachment(String kind, String time, String user, String hobby, String img64,
+                                         boolean me, String fileName, long size, String hash, String mime) {
+        return new ChatMessage(kind, time, user, hobby, img64, me, "", fileName, size, hash, mime);
+    }
+
+    /**
+     * 履歴ファイル用のフレームにする（アイコンは番号で持つ）
+     */
+    Frame toFrame(int avatarId) {
+        return new Frame(kind, new String[]{time, user, hobby, String.valueOf(avatarId), me ? "1" : "0",
+                fileName, String.valueOf(size), hash, mime}, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static ChatMessage fromFrame(Frame frame, IntFunction<String> avatars) {
+        return new ChatMessage(frame.getType(), frame.getField(0), frame.getField(1), frame.getField(2),
+                avatars.apply(Integer.parseInt(frame.getField(3))), "1".equals(frame.getField(4)),
+                frame.getBodyText(), frame.getField(5), Long.parseLong(frame.getField(6)), frame.getField(7),
+                frame.getField(8));
+    }
+
+    public String getKind() {
+        return kind;
+    }
+
+    public String getTime() {
+        return time;
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    public String getHobby() {
+        return hobby;
+    }
+
+    public String getImg64() {
+        return img64;
+    }
+
+    public boolean isMe() {
+        return me;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    public String getMime() {
+        return mime;
+    }
+}
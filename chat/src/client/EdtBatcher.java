@@ -0,0 +1,41 @@
+package client;
+
+import javax.swing.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * 任意のスレッドから積まれたものを、EDT でまとめて sink に渡す
+ * invokeLater は積まれていない状態から最初の1件が来たときだけ呼ぶので、
+ * 大量に届いても EDT のタスクは1回の処理で済む
+ */
+public class EdtBatcher<T> {
+    private final Queue<T> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final Consumer<List<T>> sink;
+
+    public EdtBatcher(Consumer<List<T>> sink) {
+        this.sink = sink;
+    }
+
+    public void add(T item) {
+        pending.add(item);
+        if (scheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(this::flush);
+        }
+    }
+
+    private void flush() {
+        // 先に印を下ろしてから取り出すので、取り出し中に積まれたものは次の flush で拾われる
+        scheduled.set(false);
+        List<T> batch = new ArrayList<>();
+        for (T item; (item = pending.poll()) != null; ) {
+            batch.add(item);
+        }
+        if (!batch.isEmpty()) sink.accept(batch);
+    }
+}
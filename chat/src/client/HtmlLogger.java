@@ -1,19 +1,35 @@
 package client;
 
-import javax.swing.*;
-import java.awt.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.text.SimpleDateFormat;
+import java.util.BitSet;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
- * チャットログをHTML形式で保存するクラス
+ * チャットログをHTML形式で書き出すクラス
+ * 1件ごとにファイルへ書き足し、flushEvery 件ごとか一定時間ごとにディスクへ書き出す
+ * アイコンはファイルごとに最初の1回だけ CSS として書き、各メッセージからはクラス名で参照する
+ * ファイルが maxBytes を超えたら次のファイル（chatlog_日時_2.html ...）に切り替える
+ * 1件ぶんの HTML は使い回しのバッファにエスケープしながら直接組み立て、使い回しのエンコーダで UTF-8 にして書く
+ *   -Dchat.log.dir        出力先（既定 chat-logs）
+ *   -Dchat.log.maxBytes   1ファイルの上限（既定 10MB）
+ *   -Dchat.log.flushEvery 何件ごとに書き出すか（既定 20）
  */
-public class HtmlLogger {
-    private final StringBuilder html = new StringBuilder();
-
-    public HtmlLogger() {
-        html.append("""
+public class HtmlLogger implements Closeable {
+    private static final long FLUSH_INTERVAL_MILLIS = 2000;
+    private static final String HEADER = """
             <!DOCTYPE html>
             <html>
             <head>
@@ -25,38 +41,157 @@ public class HtmlLogger {
                 .bubble { padding: 10px 14px; border-radius: 12px; max-width: 300px; display: inline-block; word-wrap: break-word; }
                 .me { background-color: #d4f0ff; }
                 .other { background-color: #f0f0f0; }
-                img.avatar { vertical-align: middle; width: 40px; height: 40px; border-radius: 50%; }
+                .avatar { display: inline-block; vertical-align: middle; width: 40px; height: 40px; border-radius: 50%; background-size: cover; }
               </style>
             </head>
             <body>
-        """);
-    }
-
-    public void append(String time, String user, String hobby, String img64, String msg, boolean isMe) {
-        String sideClass = isMe ? "me" : "other";
-        html.append("<div class='message'>\n");
-        html.append(String.format("<img class='avatar' src='data:image/png;base64,%s'> ", img64));
-        html.append(String.format("<strong>%s</strong>（%s） [%s]<br>\n",
-                HtmlUtil.escapeHTML(user),
-                HtmlUtil.escapeHTML(hobby),
-                HtmlUtil.escapeHTML(time)));
-        html.append(String.format("<div class='bubble %s'>%s</div>\n", sideClass,
-                HtmlUtil.wrapMessage(HtmlUtil.escapeHTML(msg), 30)));
-        html.append("</div>\n");
-    }
-
-    public void save(Component parent) {
-        html.append("</body>\n</html>");
-        JFileChooser chooser = new JFileChooser();
-        String timestamp = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
-        chooser.setSelectedFile(new File("chatlog_" + timestamp + ".html"));
-        if (chooser.showSaveDialog(parent) == JFileChooser.APPROVE_OPTION) {
-            try (Writer w = new BufferedWriter(
-                    new OutputStreamWriter(new FileOutputStream(chooser.getSelectedFile()), "UTF-8"))) {
-                w.write(html.toString());
-            } catch (IOException e) {
-                JOptionPane.showMessageDialog(parent, "ログの保存に失敗しました。", "エラー", JOptionPane.ERROR_MESSAGE);
+            """;
+    private static final String FOOTER = "</body>\n</html>\n";
+
+    private final Path dir;
+    private final long maxBytes;
+    private final int flushEvery;
+    private final String baseName = "chatlog_" + new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "chat-log-flush");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // アイコン（Base64）→ 番号。CSS のクラス名 a<番号> で参照する
+    private final Map<String, Integer> avatarIds = new HashMap<>();
+    // 今のファイルに書き済みのアイコン
+    private final BitSet writtenAvatars = new BitSet();
+    // 1件ぶんの HTML と、それを UTF-8 にしたもの（どちらも使い回す）
+    private final StringBuilder html = new StringBuilder(1024);
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final ByteBuffer encoded = ByteBuffer.allocate(8192);
+    private OutputStream out;
+    private Path current;
+    private int part;
+    private long written;
+    private int unflushed;
+    private boolean closed;
+
+    public HtmlLogger() {
+        this(Path.of(System.getProperty("chat.log.dir", "chat-logs")),
+                Long.getLong("chat.log.maxBytes", 10L * 1024 * 1024),
+                Integer.getInteger("chat.log.flushEvery", 20));
+    }
+
+    public HtmlLogger(Path dir, long maxBytes, int flushEvery) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.flushEvery = Math.max(1, flushEvery);
+        flusher.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL_MILLIS, FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void append(String time, String user, String hobby, String img64, String msg, boolean isMe) {
+        if (closed) return;
+        try {
+            if (out == null || written >= maxBytes) rotate();
+            int avatar = avatarId(img64);
+            html.setLength(0);
+            if (!writtenAvatars.get(avatar)) {
+                html.append("<style>.a").append(avatar)
+                        .append(" { background-image: url('data:image/png;base64,").append(img64).append("'); }</style>\n");
+                writtenAvatars.set(avatar);
             }
+            String sideClass = isMe ? "me" : "other";
+            html.append("<div class='message'>\n");
+            html.append("<span class='avatar a").append(avatar).append("'></span> ");
+            html.append("<strong>");
+            HtmlUtil.appendEscaped(html, user).append("</strong>（");
+            HtmlUtil.appendEscaped(html, hobby).append("） [");
+            HtmlUtil.appendEscaped(html, time).append("]<br>\n");
+            html.append("<div class='bubble ").append(sideClass).append("'>");
+            HtmlUtil.appendEscapedWrapped(html, msg, 30).append("</div>\n");
+            html.append("</div>\n");
+            write(html);
+            if (++unflushed >= flushEvery) flush();
+        } catch (IOException e) {
+            System.err.println("ログの書き込みに失敗しました: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 書き込み済みの内容をディスクへ書き出す
+     */
+    public synchronized void flush() {
+        if (out == null || unflushed == 0) return;
+        try {
+            out.flush();
+            unflushed = 0;
+        } catch (IOException e) {
+            System.err.println("ログの書き込みに失敗しました: " + e.getMessage());
         }
     }
+
+    /**
+     * 今書いているファイル（まだ何も書いていなければ null）
+     */
+    public synchronized Path getCurrentFile() {
+        return current;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        flusher.shutdownNow();
+        try {
+            finishPart();
+        } catch (IOException e) {
+            System.err.println("ログの書き込みに失敗しました: " + e.getMessage());
+        }
+    }
+
+    private int avatarId(String img64) {
+        Integer id = avatarIds.get(img64);
+        if (id == null) {
+            id = avatarIds.size();
+            avatarIds.put(img64, id);
+        }
+        return id;
+    }
+
+    private void rotate() throws IOException {
+        finishPart();
+        Files.createDirectories(dir);
+        part++;
+        current = dir.resolve(baseName + (part == 1 ? "" : "_" + part) + ".html");
+        out = new BufferedOutputStream(Files.newOutputStream(current));
+        written = 0;
+        writtenAvatars.clear();
+        write(HEADER);
+    }
+
+    private void finishPart() throws IOException {
+        if (out == null) return;
+        write(FOOTER);
+        out.close();
+        out = null;
+        unflushed = 0;
+    }
+
+    // String.getBytes(UTF_8) と同じバイト列を書く（不正なサロゲートは ? にする）
+    private void write(CharSequence s) throws IOException {
+        CharBuffer in = CharBuffer.wrap(s);
+        encoder.reset();
+        while (encoder.encode(in, encoded, true).isOverflow()) {
+            drainEncoded();
+        }
+        while (encoder.flush(encoded).isOverflow()) {
+            drainEncoded();
+        }
+        drainEncoded();
+    }
+
+    private void drainEncoded() throws IOException {
+        out.write(encoded.array(), 0, encoded.position());
+        written += encoded.position();
+        encoded.clear();
+    }
 }
@@ -5,6 +5,7 @@ import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.Base64;
 import javax.imageio.ImageIO;
 
@@ -14,32 +15,129 @@ import javax.imageio.ImageIO;
 public class HtmlUtil {
 
     /**
-     * HTMLエスケープ処理
+     * HTMLエスケープ処理（エスケープする文字がなければ s をそのまま返す）
      */
     public static String escapeHTML(String s) {
         if (s == null) return "";
-        return s.replace("&", "&amp;")
-                .replace("<", "&lt;")
-                .replace(">", "&gt;")
-                .replace("\"", "&quot;")
-                .replace("'", "&#x27;");
+        int first = firstEscape(s);
+        if (first < 0) return s;
+        StringBuilder sb = new StringBuilder(s.length() + 16);
+        sb.append(s, 0, first);
+        appendEscaped(sb, s, first);
+        return sb.toString();
     }
 
     /**
      * メッセージを指定文字数で改行（日本語向けに句読点やスペースで改行）
      */
     public static String wrapMessage(String msg, int maxChars) {
-        StringBuilder sb = new StringBuilder();
+        if (msg.length() < maxChars) return msg; // 改行が入る位置まで届かない
+        return wrap(new StringBuilder(msg.length() + 16), msg, maxChars, false).toString();
+    }
+
+    /**
+     * escapeHTML した結果を out に書き足す（途中の文字列を作らない）
+     */
+    public static StringBuilder appendEscaped(StringBuilder out, CharSequence s) {
+        if (s != null) appendEscaped(out, s, 0);
+        return out;
+    }
+
+    public static <A extends Appendable> A appendEscaped(A out, CharSequence s) throws IOException {
+        if (s != null) {
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                String entity = entity(c);
+                if (entity != null) out.append(entity); else out.append(c);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * wrapMessage(escapeHTML(msg), maxChars) と同じものを1回の走査で out に書き足す
+     * 文字数はエスケープ後の文字で数える（従来どおり &amp; は5文字）
+     */
+    public static StringBuilder appendEscapedWrapped(StringBuilder out, CharSequence msg, int maxChars) {
+        return wrap(out, msg, maxChars, true);
+    }
+
+    public static <A extends Appendable> A appendEscapedWrapped(A out, CharSequence msg, int maxChars) throws IOException {
+        return wrap(out, msg, maxChars, true);
+    }
+
+    /**
+     * escapeHTML したときの c の文字数（改行位置を HTML 表示と揃えるときに使う）
+     */
+    public static int escapedLength(char c) {
+        String entity = entity(c);
+        return entity != null ? entity.length() : 1;
+    }
+
+    /**
+     * appendEscapedWrapped がこの文字の直後に改行を入れてよいか
+     */
+    public static boolean isBreak(char c) {
+        return c == '。' || c == '、' || c == ' ';
+    }
+
+    private static StringBuilder wrap(StringBuilder out, CharSequence msg, int maxChars, boolean escape) {
+        try {
+            wrap((Appendable) out, msg, maxChars, escape);
+            return out;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // StringBuilder には起きない
+        }
+    }
+
+    private static <A extends Appendable> A wrap(A out, CharSequence msg, int maxChars, boolean escape) throws IOException {
+        if (msg == null) return out; // escapeHTML(null) と同じく空
         int count = 0;
-        for (char c : msg.toCharArray()) {
-            sb.append(c);
+        for (int i = 0; i < msg.length(); i++) {
+            char c = msg.charAt(i);
+            String entity = escape ? entity(c) : null;
+            if (entity != null) {
+                out.append(entity);
+                count += entity.length();
+                continue;
+            }
+            out.append(c);
             count++;
-            if (count >= maxChars && (c == '。' || c == '、' || c == ' ')) {
-                sb.append("<br>");
+            if (count >= maxChars && isBreak(c)) {
+                out.append("<br>");
                 count = 0;
             }
         }
-        return sb.toString();
+        return out;
+    }
+
+    private static void appendEscaped(StringBuilder out, CharSequence s, int from) {
+        int start = from;
+        for (int i = from; i < s.length(); i++) {
+            String entity = entity(s.charAt(i));
+            if (entity == null) continue;
+            out.append(s, start, i).append(entity);
+            start = i + 1;
+        }
+        out.append(s, start, s.length());
+    }
+
+    private static int firstEscape(CharSequence s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (entity(s.charAt(i)) != null) return i;
+        }
+        return -1;
+    }
+
+    private static String entity(char c) {
+        switch (c) {
+            case '&': return "&amp;";
+            case '<': return "&lt;";
+            case '>': return "&gt;";
+            case '"': return "&quot;";
+            case '\'': return "&#x27;";
+            default: return null;
+        }
     }
 
     /**
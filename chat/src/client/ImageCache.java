@@ -0,0 +1,165 @@
+package client;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * デコード・縮小済みの画像を使い回すキャッシュ（LRU、使用メモリに上限あり）
+ * キーは画像の内容（アイコンは Base64 文字列そのもの、添付画像は SHA-256）と表示サイズ
+ * 上限は -Dchat.imageCache.maxBytes（既定 32MB）
+ */
+public class ImageCache {
+    private static final ImageCache SHARED =
+            new ImageCache(Long.getLong("chat.imageCache.maxBytes", 32L * 1024 * 1024));
+
+    private final long maxBytes;
+    private final LinkedHashMap<Key, ImageIcon> icons = new LinkedHashMap<>(64, 0.75f, true);
+    private long usedBytes;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public ImageCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public static ImageCache shared() {
+        return SHARED;
+    }
+
+    /**
+     * Base64 の画像を width x height に縮小したもの（-1 は縦横比を保つ、両方 -1 なら元の大きさ）
+     */
+    public ImageIcon fromBase64(String base64, int width, int height) {
+        return get(base64, width, height, () -> HtmlUtil.iconFromBase64(base64).getImage());
+    }
+
+    /**
+     * ファイルに保存された画像（hash はその内容の SHA-256）を縮小したもの
+     */
+    public ImageIcon fromFile(String hash, Path file, int width, int height) {
+        return get(hash, width, height, () -> new ImageIcon(file.toString()).getImage());
+    }
+
+    /**
+     * メモリ上の画像（key はその内容を表す文字列）を縮小したもの
+     */
+    public ImageIcon fromBytes(String key, byte[] data, int width, int height) {
+        return get(key, width, height, () -> new ImageIcon(data).getImage());
+    }
+
+    /**
+     * デコード済みなら返す（なければ null。デコードはしない）
+     */
+    public ImageIcon peekBase64(String base64, int width, int height) {
+        return peek(base64, width, height);
+    }
+
+    public ImageIcon peekFile(String hash, int width, int height) {
+        return peek(hash, width, height);
+    }
+
+    private synchronized ImageIcon peek(String content, int width, int height) {
+        ImageIcon cached = icons.get(new Key(content, width, height));
+        if (cached != null) hits.incrementAndGet();
+        return cached;
+    }
+
+    private ImageIcon get(String content, int width, int height, Supplier<Image> loader) {
+        Key key = new Key(content, width, height);
+        synchronized (this) {
+            ImageIcon cached = icons.get(key);
+            if (cached != null) {
+                hits.incrementAndGet();
+                return cached;
+            }
+        }
+        misses.incrementAndGet();
+
+        // デコードと縮小はロックの外で行う（同時に同じ画像を読むことはまれなので重複は許す）
+        ImageIcon icon = render(loader.get(), width, height);
+        if (icon.getIconWidth() <= 0) return icon;
+        long bytes = 4L * icon.getIconWidth() * icon.getIconHeight();
+        synchronized (this) {
+            if (icons.put(key, icon) == null) usedBytes += bytes;
+            Iterator<Map.Entry<Key, ImageIcon>> it = icons.entrySet().iterator();
+            while (usedBytes > maxBytes && icons.size() > 1 && it.hasNext()) {
+                ImageIcon eldest = it.next().getValue();
+                it.remove();
+                usedBytes -= 4L * eldest.getIconWidth() * eldest.getIconHeight();
+            }
+        }
+        return icon;
+    }
+
+    // 従来と同じ SCALE_SMOOTH で縮小し、描画のたびに縮小し直さないよう BufferedImage に焼き付ける
+    private static ImageIcon render(Image source, int width, int height) {
+        Image scaled = width < 0 && height < 0 ? source : source.getScaledInstance(width, height, Image.SCALE_SMOOTH);
+        ImageIcon loaded = new ImageIcon(scaled);
+        int w = loaded.getIconWidth(), h = loaded.getIconHeight();
+        if (w <= 0 || h <= 0) return new ImageIcon();
+        BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = img.createGraphics();
+        g.drawImage(loaded.getImage(), 0, 0, null);
+        g.dispose();
+        return new ImageIcon(img);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public synchronized int size() {
+        return icons.size();
+    }
+
+    @Override
+    public String toString() {
+        return "ImageCache{" +
+                "hits=" + getHits() +
+                ", misses=" + getMisses() +
+                ", entries=" + size() +
+                ", usedBytes=" + getUsedBytes() +
+                ", maxBytes=" + maxBytes +
+                '}';
+    }
+
+    private static final class Key {
+        final String content;
+        final int width;
+        final int height;
+
+        Key(String content, int width, int height) {
+            this.content = content;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            return width == k.width && height == k.height && content.equals(k.content);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(content, width, height);
+        }
+    }
+}
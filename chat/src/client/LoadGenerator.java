@@ -0,0 +1,453 @@
+package client;
+
+import protocol.BinaryCodec;
+import protocol.Frame;
+import protocol.FrameCompressor;
+import protocol.FrameDecoder;
+import protocol.WireFormat;
+import util.Histogram;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 画面を持たない負荷試験用のクライアント
+ * 1つの JVM から多数の接続を開き、本物のクライアントと同じ手順（HELLO, PROFILE, JOIN、添付は UPLOAD + CHUNK）で話す
+ * メッセージに送信時刻を埋め込み、受信した側で配信までの時間を測る（送信側と受信側が同じ JVM なので時計がずれない）
+ * 時刻欄はサーバーが付け直すので、TEXT は本文の1行目、添付はファイル名に埋め込む
+ *   java client.LoadGenerator [ホスト=localhost] [ポート=12345]
+ *   -Dload.clients=1000            接続数
+ *   -Dload.nodes=1                 接続先のポート数（LocalCluster なら ポート〜ポート+nodes-1 に振り分ける）
+ *   -Dload.rooms=10                ルーム数（接続を load-1 .. load-N に均等に分ける）
+ *   -Dload.rate=1000               全体で毎秒送るメッセージ数。カンマ区切りなら順に段階的に上げる
+ *   -Dload.duration=30             1段階の計測時間（秒）
+ *   -Dload.warmup=5                各段階の最初に計測から外す時間（秒）
+ *   -Dload.mix=text:90,image:5,file:5
+ *   -Dload.textBytes=100 -Dload.imageBytes=32768 -Dload.fileBytes=262144
+ *   -Dload.threads=4               送受信スレッド数
+ *   -Dload.compress=false          HELLO で圧縮を求めるか
+ * 段階ごとに送信数・配信数・遅延の p50 / p99 / p999・未着数を出すので、配信が追いつかなくなる点（飽和点）がわかる
+ */
+public class LoadGenerator {
+    // 埋め込む印の形式: "lg <実行ID> <段階（ウォームアップ中は -1）> <送信時の nanoTime>"
+    private static final String TAG = "lg";
+    // 送信待ちがこれを超えた接続には新しいメッセージを積まない（サーバーが読めていない）
+    private static final int MAX_PENDING_BYTES = 4 * 1024 * 1024;
+    private static final long DRAIN_MILLIS = 3000;
+    // 受信する1フレームの上限（サーバーの chat.maxFrameSize の既定と同じ）
+    private static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    private final String host;
+    private final int basePort;
+    private final int clientCount = Integer.getInteger("load.clients", 1000);
+    private final int nodes = Math.max(1, Integer.getInteger("load.nodes", 1));
+    private final int roomCount = Math.max(1, Integer.getInteger("load.rooms", 10));
+    private final int[] rates = parseRates(System.getProperty("load.rate", "1000"));
+    private final int duration = Integer.getInteger("load.duration", 30);
+    private final int warmup = Integer.getInteger("load.warmup", 5);
+    private final int textBytes = Integer.getInteger("load.textBytes", 100);
+    private final int imageBytes = Integer.getInteger("load.imageBytes", 32 * 1024);
+    private final int fileBytes = Integer.getInteger("load.fileBytes", 256 * 1024);
+    private final boolean compress = Boolean.getBoolean("load.compress");
+    // 種別ごとの累積の重み（text, image, file）
+    private final int[] mix = parseMix(System.getProperty("load.mix", "text:90,image:5,file:5"));
+
+    private final String runId = Long.toString(System.nanoTime() & 0xFFFFFF, 36);
+    private final byte[] avatar = Base64.getDecoder().decode(HtmlUtil.createDefaultAvatarBase64(40, 40));
+    private final int[] roomSizes = new int[roomCount];
+    private final Worker[] workers;
+
+    // 段階ごとの集計
+    private final Histogram[] latency;
+    private final LongAdder[] sent;
+    private final LongAdder[] expected;
+    private final LongAdder[] delivered;
+    private final LongAdder skipped = new LongAdder();
+    // 1秒ごとの経過表示用
+    private final Histogram recent = new Histogram();
+    private final LongAdder recentSent = new LongAdder();
+    private final LongAdder recentDelivered = new LongAdder();
+    private final AtomicInteger ready = new AtomicInteger();
+
+    private volatile int step = -1;
+    private volatile double ratePerWorker;
+
+    public LoadGenerator(String host, int basePort) throws IOException {
+        this.host = host;
+        this.basePort = basePort;
+        this.workers = new Worker[Math.max(1, Integer.getInteger("load.threads",
+                Math.max(1, Runtime.getRuntime().availableProcessors() / 2)))];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(i);
+        }
+        latency = new Histogram[rates.length];
+        sent = new LongAdder[rates.length];
+        expected = new LongAdder[rates.length];
+        delivered = new LongAdder[rates.length];
+        for (int i = 0; i < rates.length; i++) {
+            latency[i] = new Histogram();
+            sent[i] = new LongAdder();
+            expected[i] = new LongAdder();
+            delivered[i] = new LongAdder();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 12345;
+        new LoadGenerator(host, port).run();
+        System.exit(0);
+    }
+
+    public void run() throws IOException, InterruptedException {
+        for (Worker worker : workers) {
+            new Thread(worker, "load-" + worker.index).start();
+        }
+        connectAll();
+        System.out.printf("接続 %d（%d ノード, %d ルーム, %d スレッド）%n", clientCount, nodes, roomCount, workers.length);
+
+        for (int i = 0; i < rates.length; i++) {
+            ratePerWorker = (double) rates[i] / workers.length;
+            step = -1;
+            System.out.printf("--- 段階 %d: %d 件/s（ウォームアップ %d 秒, 計測 %d 秒）%n", i + 1, rates[i], warmup, duration);
+            for (int s = 0; s < warmup + duration; s++) {
+                if (s == warmup) step = i;
+                Thread.sleep(1000);
+                progress();
+            }
+        }
+        ratePerWorker = 0;
+        step = -1;
+        Thread.sleep(DRAIN_MILLIS);
+        report();
+        for (Worker worker : workers) {
+            worker.stop();
+        }
+    }
+
+    private void connectAll() throws IOException, InterruptedException {
+        for (int i = 0; i < clientCount; i++) {
+            int room = i % roomCount;
+            roomSizes[room]++;
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, basePort + i % nodes));
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.configureBlocking(false);
+            workers[i % workers.length].add(new Bot(i, room, channel));
+        }
+        long deadline = System.currentTimeMillis() + 60_000;
+        while (ready.get() < clientCount) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IOException("参加を待ちきれませんでした（" + ready.get() + " / " + clientCount + "）");
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    private void progress() {
+        long[] counts = new long[Histogram.BUCKETS];
+        long n = recent.drainTo(counts);
+        System.out.printf("送信 %d 件/s, 配信 %d 件/s, 遅延 p50 %.2f p99 %.2f ms%s%n", recentSent.sumThenReset(),
+                recentDelivered.sumThenReset(), Histogram.percentile(counts, n, 0.50) / 1e6,
+                Histogram.percentile(counts, n, 0.99) / 1e6, step < 0 ? "（ウォームアップ）" : "");
+    }
+
+    private void report() {
+        System.out.println();
+        System.out.println("目標 件/s | 送信 件/s | 配信 件/s | p50 ms | p99 ms | p999 ms | 最大 ms | 未着");
+        for (int i = 0; i < rates.length; i++) {
+            long[] counts = new long[Histogram.BUCKETS];
+            long n = latency[i].drainTo(counts);
+            System.out.printf("%9d | %9.1f | %9.1f | %6.2f | %6.2f | %7.2f | %7.2f | %d%n", rates[i],
+                    sent[i].sum() / (double) duration, delivered[i].sum() / (double) duration,
+                    Histogram.percentile(counts, n, 0.50) / 1e6, Histogram.percentile(counts, n, 0.99) / 1e6,
+                    Histogram.percentile(counts, n, 0.999) / 1e6, Histogram.percentile(counts, n, 1.0) / 1e6,
+                    expected[i].sum() - delivered[i].sum());
+        }
+        if (skipped.sum() > 0) {
+            System.out.println("送信待ちがあふれて送らなかったメッセージ: " + skipped.sum());
+        }
+    }
+
+    private static int[] parseRates(String spec) {
+        return Arrays.stream(spec.split(",")).map(String::trim).filter(s -> !s.isEmpty())
+                .mapToInt(Integer::parseInt).toArray();
+    }
+
+    private static int[] parseMix(String spec) {
+        int[] weights = new int[3];
+        for (String part : spec.split(",")) {
+            String[] kv = part.trim().split(":");
+            int weight = Integer.parseInt(kv[1].trim());
+            switch (kv[0].trim().toLowerCase()) {
+                case "text":
+                    weights[0] = weight;
+                    break;
+                case "image":
+                    weights[1] = weight;
+                    break;
+                case "file":
+                    weights[2] = weight;
+                    break;
+                default:
+                    throw new IllegalArgumentException("不明な種別: " + kv[0]);
+            }
+        }
+        weights[1] += weights[0];
+        weights[2] += weights[1];
+        if (weights[2] <= 0) throw new IllegalArgumentException("load.mix の重みがすべて 0 です");
+        return weights;
+    }
+
+    /**
+     * 担当する接続の送受信と、担当ぶんのメッセージの送信を行うスレッド（1つのセレクタを使う）
+     */
+    private class Worker implements Runnable {
+        final int index;
+        final Selector selector;
+        final List<Bot> bots = new ArrayList<>();
+        final Queue<Bot> added = new ConcurrentLinkedQueue<>();
+        // 乱数の種を固定して、同じ設定なら同じ順で送る
+        final Random random;
+        final ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+        volatile boolean running = true;
+        double due;
+
+        Worker(int index) throws IOException {
+            this.index = index;
+            this.selector = Selector.open();
+            this.random = new Random(42 + index);
+        }
+
+        void add(Bot bot) {
+            added.add(bot);
+            selector.wakeup();
+        }
+
+        void stop() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            long last = System.nanoTime();
+            try {
+                while (running) {
+                    selector.select(1);
+                    Bot bot;
+                    while ((bot = added.poll()) != null) {
+                        bot.key = bot.channel.register(selector, SelectionKey.OP_READ, bot);
+                        bots.add(bot);
+                        bot.handshake();
+                    }
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        Bot b = (Bot) key.attachment();
+                        if (key.isValid() && key.isReadable()) b.read(readBuffer);
+                        if (key.isValid() && key.isWritable()) b.flush();
+                    }
+                    selector.selectedKeys().clear();
+
+                    long now = System.nanoTime();
+                    due += ratePerWorker * (now - last) / 1e9;
+                    last = now;
+                    while (due >= 1 && !bots.isEmpty()) {
+                        due--;
+                        bots.get(random.nextInt(bots.size())).sendMessage(random);
+                    }
+                    if (bots.isEmpty()) due = 0;
+                }
+            } catch (IOException e) {
+                System.err.println("負荷試験スレッドのエラー: " + e.getMessage());
+            } finally {
+                for (Bot b : bots) {
+                    b.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * 1つの接続（Worker のスレッドからのみ使う）
+     */
+    private class Bot {
+        final int index;
+        final int room;
+        final SocketChannel channel;
+        final FrameDecoder decoder = new FrameDecoder(WireFormat.BINARY, MAX_FRAME_SIZE);
+        final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+        SelectionKey key;
+        FrameCompressor compressor;
+        long pendingBytes;
+        String userId;
+        boolean joined;
+        long uploads;
+
+        Bot(int index, int room, SocketChannel channel) {
+            this.index = index;
+            this.room = room;
+            this.channel = channel;
+        }
+
+        void handshake() {
+            String version = String.valueOf(BinaryCodec.VERSION);
+            send(compress ? Frame.of(Frame.HELLO, "", version, BinaryCodec.DEFLATE) : Frame.of(Frame.HELLO, "", version));
+            send(new Frame(Frame.PROFILE, new String[]{"bot" + index, "load"}, avatar));
+            send(new Frame(Frame.JOIN, new String[]{"load-" + (room + 1)}, null));
+        }
+
+        void sendMessage(Random random) {
+            if (!joined) return;
+            if (pendingBytes > MAX_PENDING_BYTES) {
+                skipped.increment();
+                return;
+            }
+            int current = step;
+            String tag = TAG + " " + runId + " " + current + " " + System.nanoTime();
+            int pick = random.nextInt(mix[2]);
+            if (pick < mix[0]) {
+                byte[] mark = (tag + "\n").getBytes(StandardCharsets.UTF_8);
+                byte[] body = payload(random, Math.max(textBytes, mark.length), true);
+                System.arraycopy(mark, 0, body, 0, mark.length);
+                send(new Frame(Frame.TEXT, new String[]{tag, userId}, body));
+            } else {
+                upload(random, pick < mix[1] ? Frame.IMAGE : Frame.FILE, tag);
+            }
+            recentSent.increment();
+            if (current >= 0) {
+                sent[current].increment();
+                expected[current].add(roomSizes[room]);
+            }
+        }
+
+        // 本物のクライアントと同じく UPLOAD に続けて CHUNK を送る（内容は毎回変えて、サーバーの重複排除で省かれないようにする）
+        private void upload(Random random, String kind, String tag) {
+            int size = Frame.IMAGE.equals(kind) ? imageBytes : fileBytes;
+            byte[] data = payload(random, size, false);
+            String id = "lg-" + runId + "-" + index + "-" + (uploads++);
+            send(new Frame(Frame.UPLOAD, new String[]{id, kind, tag, String.valueOf(size), tag,
+                    Frame.IMAGE.equals(kind) ? "image/png" : "application/octet-stream",
+                    TransferManager.contentHash(data)}, null));
+            for (int off = 0; off < size; off += Frame.CHUNK_SIZE) {
+                send(new Frame(Frame.CHUNK, new String[]{id, String.valueOf(off)},
+                        Arrays.copyOfRange(data, off, Math.min(size, off + Frame.CHUNK_SIZE))));
+            }
+        }
+
+        private byte[] payload(Random random, int size, boolean text) {
+            byte[] data = new byte[size];
+            if (text) {
+                Arrays.fill(data, (byte) 'a');
+                for (int i = 0; i < size; i += 7) {
+                    data[i] = ' ';
+                }
+            } else {
+                random.nextBytes(data);
+            }
+            return data;
+        }
+
+        void send(Frame frame) {
+            ByteBuffer buf = BinaryCodec.encode(frame);
+            if (compressor != null) buf = compressor.compress(buf);
+            pending.add(buf);
+            pendingBytes += buf.remaining();
+            flush();
+        }
+
+        void flush() {
+            try {
+                ByteBuffer head;
+                while ((head = pending.peek()) != null) {
+                    channel.write(head);
+                    if (head.hasRemaining()) {
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    pending.poll();
+                    pendingBytes -= head.limit();
+                }
+                key.interestOps(SelectionKey.OP_READ);
+            } catch (IOException e) {
+                System.err.println("送信エラー（bot" + index + "）: " + e.getMessage());
+                close();
+            }
+        }
+
+        void read(ByteBuffer buf) {
+            try {
+                buf.clear();
+                int n = channel.read(buf);
+                if (n < 0) {
+                    System.err.println("サーバーが切断しました（bot" + index + "）");
+                    close();
+                    return;
+                }
+                decoder.feed(buf.flip(), this::onFrame);
+            } catch (IOException e) {
+                System.err.println("受信エラー（bot" + index + "）: " + e.getMessage());
+                close();
+            }
+        }
+
+        private void onFrame(Frame frame) {
+            switch (frame.getType()) {
+                case Frame.HELLO:
+                    if (frame.getFieldCount() > 1 && BinaryCodec.DEFLATE.equals(frame.getField(1))) {
+                        compressor = new FrameCompressor(64);
+                    }
+                    return;
+                case Frame.WELCOME:
+                    userId = frame.getField(0);
+                    return;
+                case Frame.JOIN:
+                    if (!joined && frame.getField(0).equals("load-" + (room + 1))) {
+                        joined = true;
+                        ready.incrementAndGet();
+                    }
+                    return;
+                case Frame.TEXT: {
+                    byte[] body = frame.getBody();
+                    int end = 0;
+                    while (end < body.length && body[end] != '\n') end++;
+                    record(new String(body, 0, end, StandardCharsets.UTF_8));
+                    return;
+                }
+                case Frame.ATTACHMENT:
+                    record(frame.getField(4));
+                    return;
+                default:
+            }
+        }
+
+        // 埋め込んだ送信時刻から配信までの時間を記録する（ほかの実行のメッセージは無視する）
+        private void record(String tag) {
+            long now = System.nanoTime();
+            String[] parts = tag.split(" ");
+            if (parts.length != 4 || !TAG.equals(parts[0]) || !runId.equals(parts[1])) return;
+            long elapsed = now - Long.parseLong(parts[3]);
+            int at = Integer.parseInt(parts[2]);
+            recent.record(elapsed);
+            recentDelivered.increment();
+            if (at >= 0) {
+                latency[at].record(elapsed);
+                delivered[at].increment();
+            }
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package client;
+
+import javax.swing.*;
+import java.awt.*;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * メッセージ本文の吹き出し（角の丸い背景、折り返した本文、右下に時刻）
+ * HTML の JLabel と違い、文書モデルを作らずに自分で行を割り付けて描く
+ * 行の割り付けは幅ごとに1回だけ計算し、同じ幅のあいだは使い回す
+ *
+ * 改行は従来の HTML 表示と同じく、WRAP_CHARS 文字（エスケープ後の文字数）を超えたあとの句読点かスペースで入れる
+ * それでも MAX_WIDTH を超える行（区切りのない長い英数字など）は幅で折り返す
+ */
+class MessageBubble extends JComponent {
+    static final int WRAP_CHARS = 40;
+    static final int MAX_WIDTH = 600;
+    private static final int PAD_X = 14;
+    private static final int PAD_Y = 10;
+    private static final int ARC = 30;
+    // 本文と時刻のあいだ
+    private static final int TIME_GAP = 6;
+    private static final Font TEXT_FONT = new Font("SansSerif", Font.PLAIN, 14);
+    // HTML 表示の font-size:10px と同じ大きさ（Swing の CSS は px を 1.3 倍する）
+    private static final Font TIME_FONT = new Font("SansSerif", Font.PLAIN, 13);
+    private static final Color TIME_COLOR = new Color(0x888888);
+    private static final Color ME_COLOR = new Color(0xd4f0ff);
+    private static final Color OTHER_COLOR = new Color(0xf0f0f0);
+
+    private final char[] text;
+    private final String time;
+    private final Color background;
+
+    // 割り付けの結果（layoutWidth の幅で割り付けたときの各行の範囲 [starts[i], ends[i])）
+    private int layoutWidth = -1;
+    private int[] starts;
+    private int[] ends;
+    private int textWidth;
+
+    MessageBubble(String msg, String time, boolean isMe) {
+        this.text = msg != null ? msg.toCharArray() : new char[0];
+        this.time = time != null ? time : "";
+        this.background = isMe ? ME_COLOR : OTHER_COLOR;
+        setOpaque(false);
+        setFont(TEXT_FONT);
+        setForeground(UIManager.getColor("Label.foreground"));
+    }
+
+    @Override
+    public Dimension getPreferredSize() {
+        if (isPreferredSizeSet()) return super.getPreferredSize();
+        FontMetrics fm = getFontMetrics(getFont());
+        FontMetrics tm = getFontMetrics(TIME_FONT);
+        layout(fm, MAX_WIDTH - PAD_X * 2);
+        int width = Math.max(textWidth, tm.stringWidth(time));
+        return new Dimension(width + PAD_X * 2, starts.length * fm.getHeight() + TIME_GAP + tm.getHeight() + PAD_Y * 2);
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        Graphics2D g2 = (Graphics2D) g.create();
+        try {
+            Map<?, ?> hints = (Map<?, ?>) Toolkit.getDefaultToolkit().getDesktopProperty("awt.font.desktophints");
+            if (hints != null) g2.addRenderingHints(hints);
+            g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g2.setColor(background);
+            g2.fillRoundRect(0, 0, getWidth(), getHeight(), ARC, ARC);
+
+            FontMetrics fm = getFontMetrics(getFont());
+            layout(fm, Math.min(getWidth(), MAX_WIDTH) - PAD_X * 2);
+            g2.setFont(getFont());
+            g2.setColor(getForeground());
+            int y = PAD_Y + fm.getAscent();
+            for (int i = 0; i < starts.length; i++) {
+                g2.drawChars(text, starts[i], ends[i] - starts[i], PAD_X, y);
+                y += fm.getHeight();
+            }
+
+            FontMetrics tm = getFontMetrics(TIME_FONT);
+            g2.setFont(TIME_FONT);
+            g2.setColor(TIME_COLOR);
+            g2.drawString(time, getWidth() - PAD_X - tm.stringWidth(time), y - fm.getAscent() + TIME_GAP + tm.getAscent());
+        } finally {
+            g2.dispose();
+        }
+    }
+
+    /**
+     * 本文を幅 width に割り付ける
+     * 前回の結果の最も長い行から前回の幅までのあいだなら、割り付けは変わらないので何もしない
+     */
+    private void layout(FontMetrics fm, int width) {
+        if (starts != null && width <= layoutWidth && width >= textWidth) return;
+        int[] s = new int[8];
+        int[] e = new int[8];
+        int lines = 0;
+        int max = 0;
+        int start = 0;
+        int count = 0;      // 前の改行からの文字数（エスケープ後）
+        int lineWidth = 0;
+        int lastBreak = -1; // この行で最後に改行してよい位置（その文字の直後）
+        for (int i = 0; i < text.length; i++) {
+            char c = text[i];
+            int end = -1;
+            int next = i + 1;
+            if (c == '\n') {
+                end = i;
+            } else {
+                lineWidth += fm.charWidth(c);
+                count += HtmlUtil.escapedLength(c);
+                if (HtmlUtil.isBreak(c)) {
+                    lastBreak = next;
+                    if (count >= WRAP_CHARS) end = next;
+                }
+                if (end < 0 && lineWidth > width && i > start) {
+                    // 幅を超えた：最後の区切りか、この文字の前で折り返す
+                    end = lastBreak > start ? lastBreak : (Character.isLowSurrogate(c) && i - 1 > start ? i - 1 : i);
+                    next = end;
+                }
+            }
+            if (end < 0) continue;
+            if (lines == s.length) {
+                s = Arrays.copyOf(s, lines * 2);
+                e = Arrays.copyOf(e, lines * 2);
+            }
+            s[lines] = start;
+            e[lines] = end;
+            max = Math.max(max, fm.charsWidth(text, start, end - start));
+            lines++;
+            start = next;
+            i = next - 1;
+            count = 0;
+            lineWidth = 0;
+            lastBreak = -1;
+        }
+        if (start < text.length || lines == 0) {
+            if (lines == s.length) {
+                s = Arrays.copyOf(s, lines + 1);
+                e = Arrays.copyOf(e, lines + 1);
+            }
+            s[lines] = start;
+            e[lines] = text.length;
+            max = Math.max(max, fm.charsWidth(text, start, text.length - start));
+            lines++;
+        }
+        starts = Arrays.copyOf(s, lines);
+        ends = Arrays.copyOf(e, lines);
+        textWidth = max;
+        layoutWidth = width;
+    }
+}
@@ -0,0 +1,74 @@
+package client;
+
+import protocol.Frame;
+
+import javax.swing.*;
+import java.awt.*;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * タイムラインの1行を描画する
+ * コンポーネントは表示されたときに初めて作り、メッセージが表示範囲から外れるまで使い回す
+ * 画像がまだデコードされていなければ場所だけ空けて描画し、デコードは MessageDecoder に頼む
+ */
+public class MessageCellRenderer implements ListCellRenderer<ChatMessage> {
+    private final Path attachmentDir;
+    private final MessageDecoder decoder;
+    // 受信できなかった画像（内容のハッシュ）
+    private final Set<String> failedImages = ConcurrentHashMap.newKeySet();
+
+    public MessageCellRenderer(Path attachmentDir, MessageDecoder decoder) {
+        this.attachmentDir = attachmentDir;
+        this.decoder = decoder;
+    }
+
+    @Override
+    public Component getListCellRendererComponent(JList<? extends ChatMessage> list, ChatMessage message, int index,
+                                                  boolean isSelected, boolean cellHasFocus) {
+        if (message.view != null) return message.view;
+        Component view = build(message);
+        // デコードを受け付けてもらえなかったときは使い回さず、次の描画で頼み直す
+        if (!needsDecode(message) || decoder.request(message)) message.view = view;
+        return view;
+    }
+
+    private boolean needsDecode(ChatMessage m) {
+        ImageCache cache = ImageCache.shared();
+        if (Frame.TEXT.equals(m.getKind())) return cache.peekBase64(m.getImg64(), 40, 40) == null;
+        if (cache.peekBase64(m.getImg64(), -1, -1) == null) return true;
+        return Frame.IMAGE.equals(m.getKind()) && MessageDecoder.imageFile(attachmentDir, m.getHash()) != null
+                && cache.peekFile(m.getHash(), 200, -1) == null;
+    }
+
+    public void imageFailed(String hash) {
+        failedImages.add(hash);
+    }
+
+    private Component build(ChatMessage m) {
+        ImageCache cache = ImageCache.shared();
+        switch (m.getKind()) {
+            case Frame.TEXT:
+                return MessageRenderer.render(m.getTime(), m.getUser(), m.getHobby(),
+                        cache.peekBase64(m.getImg64(), 40, 40), m.getText(), m.isMe());
+            case Frame.IMAGE: {
+                ImageIcon icon = cache.peekFile(m.getHash(), 200, -1);
+                JLabel image;
+                if (icon != null) {
+                    image = new JLabel(icon);
+                } else {
+                    image = new JLabel(failedImages.contains(m.getHash()) ? "画像を受信できませんでした" : "読み込み中...");
+                }
+                return MessageRenderer.renderImage(m.getTime(), m.getUser(), m.getHobby(),
+                        cache.peekBase64(m.getImg64(), -1, -1), image, m.isMe());
+            }
+            default: {
+                String name = m.getFileName().isEmpty() ? null
+                        : m.getMime().isEmpty() ? m.getFileName() : m.getFileName() + "（" + m.getMime() + "）";
+                return MessageRenderer.renderFile(m.getTime(), m.getUser(), m.getHobby(),
+                        cache.peekBase64(m.getImg64(), -1, -1), name, m.getSize(), m.isMe());
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package client;
+
+import protocol.Frame;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/**
+ * アイコンと添付画像のデコードを EDT の外で行う上限付きのワーカー
+ * デコード結果は ImageCache に入り、終わったメッセージを onDecoded に渡す（描画し直してもらう）
+ */
+public class MessageDecoder {
+    private static final int QUEUE_CAPACITY = 1024;
+
+    private final Path attachmentDir;
+    private final Consumer<ChatMessage> onDecoded;
+    private final ThreadPoolExecutor pool;
+    // 同じメッセージを二重に頼まないよう、デコード中のものを覚えておく
+    private final Set<ChatMessage> inFlight = ConcurrentHashMap.newKeySet();
+
+    public MessageDecoder(Path attachmentDir, int threads, Consumer<ChatMessage> onDecoded) {
+        this.attachmentDir = attachmentDir;
+        this.onDecoded = onDecoded;
+        this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE_CAPACITY), r -> {
+            Thread t = new Thread(r, "chat-decode");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * デコードを頼む。キューがいっぱいで受け付けられなかったら false（次の描画で頼み直す）
+     */
+    public boolean request(ChatMessage message) {
+        if (!inFlight.add(message)) return true;
+        try {
+            pool.execute(() -> {
+                try {
+                    decode(message);
+                } catch (RuntimeException e) {
+                    System.err.println("画像のデコードに失敗しました: " + e.getMessage());
+                } finally {
+                    inFlight.remove(message);
+                    onDecoded.accept(message);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            inFlight.remove(message);
+            return false;
+        }
+    }
+
+    private void decode(ChatMessage m) {
+        ImageCache cache = ImageCache.shared();
+        if (Frame.TEXT.equals(m.getKind())) {
+            cache.fromBase64(m.getImg64(), 40, 40);
+            return;
+        }
+        cache.fromBase64(m.getImg64(), -1, -1);
+        Path file = Frame.IMAGE.equals(m.getKind()) ? imageFile(attachmentDir, m.getHash()) : null;
+        if (file != null) cache.fromFile(m.getHash(), file, 200, -1);
+    }
+
+    /**
+     * 添付画像の縮小版を保存するファイル（サーバーが ATTACHMENT に載せてきたもの）
+     */
+    public static Path thumbnailFile(Path attachmentDir, String hash) {
+        return attachmentDir.resolve(hash + ".thumb");
+    }
+
+    /**
+     * タイムラインに表示する画像のファイル。元の画像が手元にあればそれ、なければ縮小版（どちらもなければ null）
+     */
+    public static Path imageFile(Path attachmentDir, String hash) {
+        Path original = attachmentDir.resolve(hash);
+        if (Files.exists(original)) return original;
+        Path thumbnail = thumbnailFile(attachmentDir, hash);
+        return Files.exists(thumbnail) ? thumbnail : null;
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+}
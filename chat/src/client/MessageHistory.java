@@ -0,0 +1,83 @@
+package client;
+
+import protocol.BinaryCodec;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * セッション中の全メッセージを書き足していくファイル
+ * 1件ごとにバイナリ形式（BinaryCodec）のフレームで保存し、メモリには各件の開始位置だけを持つ
+ * アイコンは同じものを何度も書かないよう、番号に置き換えてメモリ上の表に1つずつ持つ
+ */
+class MessageHistory implements Closeable {
+    private final FileChannel channel;
+    private long[] offsets = new long[1024];
+    private int count;
+    private long end;
+    private final List<String> avatars = new ArrayList<>();
+    private final Map<String, Integer> avatarIds = new HashMap<>();
+
+    MessageHistory(Path file) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+    }
+
+    /**
+     * 書き足して、その通し番号を返す
+     */
+    int append(ChatMessage message) throws IOException {
+        Integer avatar = avatarIds.get(message.getImg64());
+        if (avatar == null) {
+            avatar = avatars.size();
+            avatars.add(message.getImg64());
+            avatarIds.put(message.getImg64(), avatar);
+        }
+        ByteBuffer buf = BinaryCodec.encode(message.toFrame(avatar));
+        if (count == offsets.length) offsets = Arrays.copyOf(offsets, count * 2);
+        offsets[count] = end;
+        while (buf.hasRemaining()) {
+            end += channel.write(buf, end);
+        }
+        return count++;
+    }
+
+    /**
+     * 通し番号 from 以上 to 未満を読み出す
+     */
+    List<ChatMessage> read(int from, int to) throws IOException {
+        long start = offsets[from];
+        long stop = to < count ? offsets[to] : end;
+        ByteBuffer buf = ByteBuffer.allocate((int) (stop - start));
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, start + buf.position()) < 0) throw new IOException("履歴ファイルが壊れています");
+        }
+        buf.flip();
+        List<ChatMessage> messages = new ArrayList<>(to - from);
+        while (buf.hasRemaining()) {
+            int payload = buf.getInt(buf.position() + 3);
+            ByteBuffer frame = buf.slice(buf.position() + BinaryCodec.HEADER_SIZE, payload);
+            messages.add(ChatMessage.fromFrame(BinaryCodec.decodePayload(frame), avatars::get));
+            buf.position(buf.position() + BinaryCodec.HEADER_SIZE + payload);
+        }
+        return messages;
+    }
+
+    int size() {
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
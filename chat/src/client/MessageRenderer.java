@@ -2,23 +2,21 @@ package client;
 
 import javax.swing.*;
 import java.awt.*;
-import java.util.Base64;
 
 /**
  * チャットメッセージをSwingコンポーネントとして描画するクラス
  */
 public class MessageRenderer {
 
-    public static JPanel render(String time, String user, String hobby, String img64, String msg, boolean isMe) {
-        // アバター画像
-        ImageIcon avatarIcon = HtmlUtil.iconFromBase64(img64);
-        Image scaledImage = avatarIcon.getImage().getScaledInstance(40, 40, Image.SCALE_SMOOTH);
-        JLabel avatar = new JLabel(new ImageIcon(scaledImage));
+    /**
+     * avatarIcon は 40x40 に縮小済みのアイコン（デコード待ちなら null。場所だけ空けておく）
+     */
+    public static JPanel render(String time, String user, String hobby, Icon avatarIcon, String msg, boolean isMe) {
+        JLabel avatar = new JLabel(avatarIcon);
         avatar.setPreferredSize(new Dimension(40, 40));
 
         // 名前と趣味ラベル
-        JLabel nameLabel = new JLabel("<html><b>" + HtmlUtil.escapeHTML(user) + "</b>（趣味: " + HtmlUtil.escapeHTML(hobby) + "）</html>");
-        nameLabel.setFont(new Font("SansSerif", Font.PLAIN, 12));
+        JComponent nameLabel = nameLabel(user, "（趣味: " + hobby + "）", new Font("SansSerif", Font.PLAIN, 12));
 
         // 上段：アイコン＋名前
         JPanel headerPanel = new JPanel(new FlowLayout(isMe ? FlowLayout.RIGHT : FlowLayout.LEFT, 5, 0));
@@ -31,14 +29,8 @@ public class MessageRenderer {
             headerPanel.add(nameLabel);
         }
 
-        // メッセージ吹き出し
-        String bubbleStyle = "padding:10px 14px; border-radius:15px; box-shadow:2px 2px 5px rgba(0,0,0,0.1);"
-                + "background-color:" + (isMe ? "#d4f0ff" : "#f0f0f0") + "; max-width:400px; word-wrap:break-word;";
-        String html = "<html><div style='" + bubbleStyle + "'>" + HtmlUtil.wrapMessage(HtmlUtil.escapeHTML(msg), 40)
-                + "<div style='text-align:right; font-size:10px; color:#888;'>"
-                + HtmlUtil.escapeHTML(time) + "</div></div></html>";
-        JLabel messageLabel = new JLabel(html);
-        messageLabel.setFont(new Font("SansSerif", Font.PLAIN, 14));
+        // メッセージ吹き出し（HTML を使わずに自分で描く）
+        MessageBubble messageLabel = new MessageBubble(msg, time, isMe);
 
         // 下段：メッセージ
         JPanel messagePanel = new JPanel(new FlowLayout(isMe ? FlowLayout.RIGHT : FlowLayout.LEFT, 5, 2));
@@ -56,5 +48,80 @@ public class MessageRenderer {
 
         return wrapper;
     }
-}
 
+    /**
+     * ファイル添付のメッセージ。保存ボタンは描画用で、押下はタイムライン側で判定する
+     */
+    public static JPanel renderFile(String time, String user, String hobby, Icon avatar, String fileName,
+                                    long fileSize, boolean isMe) {
+        JComponent info = nameLabel(user, "（趣味: " + hobby + "）[" + time + "]", null);
+        JLabel fileInfo = new JLabel((fileName != null ? fileName + " " : "") + "ファイルサイズ: " + fileSize + " バイト");
+
+        JPanel content = new JPanel();
+        content.setLayout(new BoxLayout(content, BoxLayout.Y_AXIS));
+        content.setOpaque(false);
+        content.add(info);
+        content.add(fileInfo);
+        content.add(Box.createVerticalStrut(5));
+        content.add(new JButton("ファイル保存"));
+
+        return attachmentPanel(avatar, content, isMe);
+    }
+
+    /**
+     * 画像添付のメッセージ
+     */
+    public static JPanel renderImage(String time, String user, String hobby, Icon avatar, JLabel imageLabel,
+                                     boolean isMe) {
+        JComponent info = nameLabel(user, "（趣味: " + hobby + "）[" + time + "]", null);
+
+        JPanel content = new JPanel();
+        content.setLayout(new BoxLayout(content, BoxLayout.Y_AXIS));
+        content.setOpaque(false);
+        content.add(info);
+        content.add(Box.createVerticalStrut(5));
+        content.add(imageLabel);
+
+        return attachmentPanel(avatar, content, isMe);
+    }
+
+    /**
+     * 太字のユーザー名に続けて rest を並べたラベル（font が null なら既定のフォント）
+     */
+    private static JComponent nameLabel(String user, String rest, Font font) {
+        JLabel name = new JLabel(user);
+        JLabel detail = new JLabel(rest);
+        // 以前は HTML でエスケープしていたので、"<html>" で始まる名前もそのまま表示する
+        name.putClientProperty("html.disable", Boolean.TRUE);
+        detail.putClientProperty("html.disable", Boolean.TRUE);
+        if (font != null) detail.setFont(font);
+        name.setFont(detail.getFont().deriveFont(Font.BOLD));
+
+        JPanel label = new JPanel();
+        label.setLayout(new BoxLayout(label, BoxLayout.X_AXIS));
+        label.setOpaque(false);
+        label.setAlignmentX(Component.LEFT_ALIGNMENT);
+        label.add(name);
+        label.add(detail);
+        return label;
+    }
+
+    private static JPanel attachmentPanel(Icon avatarIcon, JPanel content, boolean isMe) {
+        JLabel avatar = new JLabel(avatarIcon);
+        avatar.setPreferredSize(new Dimension(50, 50));
+
+        JPanel panel = new JPanel(new BorderLayout());
+        panel.setOpaque(false);
+        panel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
+
+        if (isMe) {
+            panel.add(content, BorderLayout.EAST);
+            panel.add(avatar, BorderLayout.WEST);
+        } else {
+            panel.add(avatar, BorderLayout.WEST);
+            panel.add(content, BorderLayout.CENTER);
+        }
+
+        return panel;
+    }
+}
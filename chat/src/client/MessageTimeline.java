@@ -0,0 +1,144 @@
+package client;
+
+import javax.swing.*;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * タイムラインの表示用モデル
+ * 全メッセージは MessageHistory に書き足し、メモリには連続した最大 maxRows 件だけを持つ
+ * 範囲の端までスクロールされたら pageOlder / pageNewer で PAGE 件ずつ読み込み、反対側を捨てる
+ * EDT からのみ使う
+ */
+public class MessageTimeline extends AbstractListModel<ChatMessage> {
+    static final int PAGE = 100;
+
+    private final MessageHistory history;
+    private final int maxRows;
+    private final List<ChatMessage> window = new ArrayList<>();
+    // window の先頭の通し番号
+    private int first;
+
+    public MessageTimeline(Path historyFile, int maxRows) throws IOException {
+        this.history = new MessageHistory(historyFile);
+        this.maxRows = Math.max(maxRows, 2 * PAGE);
+    }
+
+    @Override
+    public int getSize() {
+        return window.size();
+    }
+
+    @Override
+    public ChatMessage getElementAt(int index) {
+        return window.get(index);
+    }
+
+    /**
+     * 新着をまとめて追加する。最新の範囲を表示中なら表示にも加えて true を返す
+     * 変更の通知は1回だけなので、レイアウトも1回で済む
+     */
+    public boolean appendAll(List<ChatMessage> messages) throws IOException {
+        boolean latest = isAtLatest();
+        for (ChatMessage message : messages) {
+            history.append(message);
+        }
+        if (!latest || messages.isEmpty()) return false;
+        int from = window.size();
+        window.addAll(messages);
+        fireIntervalAdded(this, from, window.size() - 1);
+        if (window.size() > maxRows) dropFront(Math.max(PAGE, window.size() - maxRows));
+        return true;
+    }
+
+    public boolean isAtLatest() {
+        return first + window.size() == history.size();
+    }
+
+    public boolean hasOlder() {
+        return first > 0;
+    }
+
+    /**
+     * 古いメッセージを先頭に読み込み、読み込んだ件数を返す
+     */
+    public int pageOlder() throws IOException {
+        int n = Math.min(PAGE, first);
+        if (n == 0) return 0;
+        window.addAll(0, history.read(first - n, first));
+        first -= n;
+        fireIntervalAdded(this, 0, n - 1);
+        if (window.size() > maxRows) dropBack(window.size() - maxRows);
+        return n;
+    }
+
+    /**
+     * 新しいメッセージを末尾に読み込み、先頭から捨てた件数を返す
+     */
+    public int pageNewer() throws IOException {
+        int end = first + window.size();
+        int n = Math.min(PAGE, history.size() - end);
+        if (n == 0) return 0;
+        int from = window.size();
+        window.addAll(history.read(end, end + n));
+        fireIntervalAdded(this, from, window.size() - 1);
+        if (window.size() <= maxRows) return 0;
+        int dropped = window.size() - maxRows;
+        dropFront(dropped);
+        return dropped;
+    }
+
+    /**
+     * 最新の PAGE 件だけを表示する（自分が送信したときなど）
+     */
+    public void showLatest() throws IOException {
+        if (isAtLatest()) return;
+        if (!window.isEmpty()) {
+            int last = window.size() - 1;
+            window.clear();
+            fireIntervalRemoved(this, 0, last);
+        }
+        int end = history.size();
+        first = Math.max(0, end - PAGE);
+        window.addAll(history.read(first, end));
+        if (!window.isEmpty()) fireIntervalAdded(this, 0, window.size() - 1);
+    }
+
+    /**
+     * 表示内容が変わったメッセージ（画像の受信・デコード完了など）をまとめて描画し直す
+     */
+    public void changed(Collection<ChatMessage> messages) {
+        int min = Integer.MAX_VALUE, max = -1;
+        for (ChatMessage message : messages) {
+            message.view = null;
+            int index = window.indexOf(message);
+            if (index < 0) continue;
+            min = Math.min(min, index);
+            max = Math.max(max, index);
+        }
+        if (max >= 0) fireContentsChanged(this, min, max);
+    }
+
+    public int indexOf(ChatMessage message) {
+        return window.indexOf(message);
+    }
+
+    public void close() throws IOException {
+        history.close();
+    }
+
+    private void dropFront(int n) {
+        window.subList(0, n).clear();
+        first += n;
+        fireIntervalRemoved(this, 0, n - 1);
+    }
+
+    private void dropBack(int n) {
+        int size = window.size();
+        window.subList(size - n, size).clear();
+        fireIntervalRemoved(this, size - n, size - 1);
+    }
+}
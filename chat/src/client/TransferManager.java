@@ -0,0 +1,316 @@
+package client;
+
+import protocol.ContentProof;
+import protocol.Frame;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * 分割ファイル転送（アップロードとダウンロード）
+ * ファイル全体をメモリに読み込まず、Frame.CHUNK_SIZE ごとに読み書きする
+ * 同じファイルを送り直すと同じ転送IDになり、サーバーが受け取り済みの位置から再開する
+ * ファイルは内容の SHA-256 で識別し、サーバーが同じ内容を持っていれば本体の代わりに内容の証明（ContentProof）を送る
+ */
+public class TransferManager {
+    // 確認応答を待たずに送ってよい断片の数
+    private static final int UPLOAD_WINDOW = 8;
+    private static final long ACK_TIMEOUT_SECONDS = 30;
+    // 切断されたときに確認応答の代わりに積む印
+    private static final long DISCONNECTED = -1;
+
+    /**
+     * 進捗の通知（転送スレッド / 受信スレッドから呼ばれる）
+     */
+    public interface Progress {
+        void update(long done, long total);
+    }
+
+    private final ChatConnection connection;
+    private final ExecutorService uploader = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "chat-upload");
+        t.setDaemon(true);
+        return t;
+    });
+    private final Map<String, BlockingQueue<Long>> uploadAcks = new ConcurrentHashMap<>();
+    // 転送ID → UPLOAD_ACK で受け取ったチャレンジ（サーバーが同じ内容を持っているとき）
+    private final Map<String, String> challenges = new ConcurrentHashMap<>();
+    // ハッシュと保存先 → 受信中のダウンロード
+    private final Map<String, Download> downloads = new ConcurrentHashMap<>();
+
+    public TransferManager(ChatConnection connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * ファイルを送る。送信はバックグラウンドで行い、完了または失敗で future が終わる
+     * future を cancel すると次の断片から送るのをやめる（サーバーは受け取った分を残すので、送り直せば続きから再開する）
+     */
+    public CompletableFuture<Void> upload(Path file, String kind, String time, Progress progress) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        try {
+            uploader.execute(() -> {
+                try {
+                    doUpload(file, kind, time, progress, result);
+                    result.complete(null);
+                } catch (Exception e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(new IOException("接続が切れました"));
+        }
+        return result;
+    }
+
+    private void doUpload(Path file, String kind, String time, Progress progress, Future<?> result)
+            throws IOException, InterruptedException, TimeoutException {
+        long size = Files.size(file);
+        String id = transferId(file, size);
+        String mime = Files.probeContentType(file);
+        BlockingQueue<Long> acks = new LinkedBlockingQueue<>();
+        uploadAcks.put(id, acks);
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            String hash = contentHash(ch, size);
+            if (result.isCancelled()) return;
+            connection.send(new Frame(Frame.UPLOAD, new String[]{id, kind, file.getFileName().toString(),
+                    String.valueOf(size), time, mime != null ? mime : "application/octet-stream", hash}, null));
+            long acked = awaitAck(acks);
+            String challenge = challenges.remove(id);
+            if (challenge != null && acked < size) {
+                // 合わなければサーバーは受け取り済みの位置を返すので、そのまま本体を送る
+                connection.send(new Frame(Frame.PROOF, new String[]{id,
+                        ContentProof.compute(challenge, size, (offset, buf) -> readFully(ch, offset, buf))}, null));
+                acked = awaitAck(acks);
+            }
+            long sent = acked;
+            progress.update(acked, size);
+            while (acked < size) {
+                if (result.isCancelled()) return;
+                while (sent < size && sent - acked < (long) UPLOAD_WINDOW * Frame.CHUNK_SIZE) {
+                    ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(Frame.CHUNK_SIZE, size - sent));
+                    readFully(ch, sent, chunk);
+                    connection.send(new Frame(Frame.CHUNK, new String[]{id, String.valueOf(sent)}, chunk.array()));
+                    sent += chunk.capacity();
+                }
+                long next = awaitAck(acks);
+                if (next == acked) {
+                    sent = next; // サーバーと位置がずれたので、受け取り済みの位置から送り直す
+                    acks.clear();
+                }
+                acked = next;
+                progress.update(acked, size);
+            }
+        } finally {
+            uploadAcks.remove(id);
+            challenges.remove(id);
+        }
+    }
+
+    private static void readFully(FileChannel ch, long offset, ByteBuffer buf) throws IOException {
+        int start = buf.position();
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, offset + buf.position() - start) < 0) throw new IOException("ファイルが短くなりました");
+        }
+    }
+
+    private static long awaitAck(BlockingQueue<Long> acks)
+            throws IOException, InterruptedException, TimeoutException {
+        Long offset = acks.poll(ACK_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        if (offset == null) throw new TimeoutException("サーバーからの応答がありません");
+        if (offset == DISCONNECTED) throw new IOException("接続が切れました");
+        return offset;
+    }
+
+    /**
+     * 接続が切れたら呼ぶ（受信スレッドが終わった後）。進行中の転送は失敗で終わる
+     * 同じファイルは再接続後に送り直せば、サーバーが受け取り済みの位置から再開する
+     */
+    public void disconnected() {
+        for (BlockingQueue<Long> acks : uploadAcks.values()) {
+            acks.add(DISCONNECTED);
+        }
+        for (Download d : downloads.values()) {
+            d.finish(new IOException("接続が切れました"));
+        }
+        uploader.shutdown();
+    }
+
+    /**
+     * サーバーに保存されたファイル（SHA-256 で指定）を target にダウンロードする
+     * 受信中は target.part に書き、途中までのデータがあれば続きから受け取る
+     * future を cancel すると次の断片を要求しない（target.part は残すので、次は続きから受け取る）
+     */
+    public CompletableFuture<Path> download(String hash, long size, Path target, Progress progress) {
+        String key = hash + "|" + target.toAbsolutePath();
+        Download existing = downloads.get(key);
+        if (existing != null && !existing.result.isDone()) return existing.result;
+        Download d = new Download(key, hash, size, target, progress);
+        try {
+            d.channel = FileChannel.open(d.part, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            d.received = Math.min(d.channel.size(), size);
+            d.channel.truncate(d.received);
+            if (d.received == size) {
+                d.finish(null);
+                return d.result;
+            }
+            downloads.put(key, d);
+            // 取り消されたら表から外してファイルを閉じる（次の断片を待たない）
+            d.result.whenComplete((path, error) -> {
+                if (d.result.isCancelled()) d.finish(null);
+            });
+            d.request();
+        } catch (IOException e) {
+            d.finish(e);
+        }
+        return d.result;
+    }
+
+    /**
+     * 転送関連のフレームなら処理して true を返す（受信スレッドから呼ばれる）
+     * 数値の壊れたフレームは読み飛ばす
+     */
+    public boolean handle(Frame frame) {
+        try {
+            switch (frame.getType()) {
+                case Frame.UPLOAD_ACK: {
+                    BlockingQueue<Long> acks = uploadAcks.get(frame.getField(0));
+                    if (acks == null) return true;
+                    long offset = Long.parseLong(frame.getField(1));
+                    if (frame.getFieldCount() > 2) challenges.put(frame.getField(0), frame.getField(2));
+                    acks.add(offset);
+                    return true;
+                }
+                case Frame.DATA: {
+                    String hash = frame.getField(0);
+                    long offset = Long.parseLong(frame.getField(1));
+                    // 同じファイルを別の場所へ受信中なら、オフセットの合うものだけが受け取る
+                    for (Download d : downloads.values()) {
+                        if (d.id.equals(hash)) d.onData(offset, frame.getBody());
+                    }
+                    return true;
+                }
+                default:
+                    return false;
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("不正な転送フレームを無視しました: " + frame.getType());
+            return true;
+        }
+    }
+
+    // ファイルの場所・サイズ・更新日時から決まるID（送り直しで再開できるように）
+    private static String transferId(Path file, long size) throws IOException {
+        String key = file.toAbsolutePath() + "|" + size + "|" + Files.getLastModifiedTime(file).toMillis();
+        return toHex(sha256().digest(key.getBytes(StandardCharsets.UTF_8))).substring(0, 32);
+    }
+
+    // 内容の SHA-256（CHUNK_SIZE ずつ読むのでメモリは一定）
+    private static String contentHash(FileChannel ch, long size) throws IOException {
+        MessageDigest md = sha256();
+        ByteBuffer buf = ByteBuffer.allocate(Frame.CHUNK_SIZE);
+        for (long pos = 0; pos < size; ) {
+            buf.clear();
+            int n = ch.read(buf, pos);
+            if (n < 0) break;
+            buf.flip();
+            md.update(buf);
+            pos += n;
+        }
+        return toHex(md.digest());
+    }
+
+    /**
+     * メモリ上のデータの SHA-256（16進）
+     */
+    static String contentHash(byte[] data) {
+        return toHex(sha256().digest(data));
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] digest) {
+        StringBuilder sb = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    private class Download {
+        final String key;
+        final String id;
+        final long size;
+        final Path target;
+        final Path part;
+        final Progress progress;
+        final CompletableFuture<Path> result = new CompletableFuture<>();
+        FileChannel channel;
+        long received;
+        long windowEnd;
+
+        Download(String key, String id, long size, Path target, Progress progress) {
+            this.key = key;
+            this.id = id;
+            this.size = size;
+            this.target = target;
+            this.part = target.resolveSibling(target.getFileName() + ".part");
+            this.progress = progress;
+        }
+
+        void request() throws IOException {
+            windowEnd = received + (long) Frame.DOWNLOAD_WINDOW * Frame.CHUNK_SIZE;
+            connection.send(new Frame(Frame.DOWNLOAD, new String[]{id, String.valueOf(received)}, null));
+        }
+
+        void onData(long offset, byte[] data) {
+            if (result.isDone() || offset != received) return;
+            try {
+                if (data.length == 0) throw new IOException("サーバーにファイルがありません");
+                ByteBuffer buf = ByteBuffer.wrap(data);
+                while (buf.hasRemaining()) {
+                    channel.write(buf, offset + buf.position());
+                }
+                received += data.length;
+                progress.update(received, size);
+                if (received >= size) {
+                    finish(null);
+                } else if (received >= windowEnd) {
+                    request();
+                }
+            } catch (IOException e) {
+                finish(e);
+            }
+        }
+
+        void finish(IOException error) {
+            downloads.remove(key, this);
+            try {
+                if (channel != null) channel.close();
+                if (error == null && !result.isCancelled()) {
+                    Files.move(part, target, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } catch (IOException e) {
+                if (error == null) error = e;
+            }
+            if (error != null) {
+                result.completeExceptionally(error);
+            } else {
+                result.complete(target);
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package protocol;
+
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 長さプレフィックス付きのバイナリ形式
+ *
+ *   ヘッダ（7バイト）
+ *     u8    MAGIC (0xFB)  … 行形式の先頭には現れない値。これで形式を判別する
+ *     u8    VERSION
+ *     u8    flags（bit0: ペイロードを deflate で圧縮している。ほかは予約）
+ *     i32   以降のペイロード長（圧縮している場合は圧縮後の長さ）
+ *   ペイロード
+ *     u8    種別の長さ, 種別（US-ASCII）
+ *     u8    項目数
+ *     項目ごとに i32 長さ + UTF-8 文字列
+ *     残りすべてが本文（生バイト列。Base64 にはしない）
+ *
+ * 圧縮は HELLO で両者が deflate に対応していると確認できた接続でだけ使う（FrameCompressor を参照）
+ */
+public final class BinaryCodec {
+    public static final byte MAGIC = (byte) 0xFB;
+    public static final byte VERSION = 1;
+    public static final int HEADER_SIZE = 7;
+    public static final byte FLAG_DEFLATE = 0x01;
+    /** HELLO で対応を知らせる圧縮方式の名前 */
+    public static final String DEFLATE = "deflate";
+
+    private BinaryCodec() {}
+
+    public static ByteBuffer encode(Frame frame) {
+        return encode(frame, false);
+    }
+
+    /**
+     * direct=true なら direct バッファに直接エンコードする（ソケットへ書くときに JDK 内でのコピーが要らない）
+     */
+    public static ByteBuffer encode(Frame frame, boolean direct) {
+        byte[] type = frame.getType().getBytes(StandardCharsets.US_ASCII);
+        byte[][] fields = new byte[frame.getFieldCount()][];
+        int payload = 1 + type.length + 1;
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = frame.getField(i).getBytes(StandardCharsets.UTF_8);
+            payload += 4 + fields[i].length;
+        }
+        payload += frame.getBody().length;
+
+        ByteBuffer buf = direct ? ByteBuffer.allocateDirect(HEADER_SIZE + payload) : ByteBuffer.allocate(HEADER_SIZE + payload);
+        buf.put(MAGIC).put(VERSION).put((byte) 0).putInt(payload);
+        buf.put((byte) type.length).put(type);
+        buf.put((byte) fields.length);
+        for (byte[] field : fields) {
+            buf.putInt(field.length).put(field);
+        }
+        buf.put(frame.getBody());
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * ペイロード部分（ヘッダを除く）を解析する
+     */
+    public static Frame decodePayload(ByteBuffer payload) throws ProtocolException {
+        try {
+            String type = readString(payload, payload.get() & 0xFF, true);
+            String[] fields = new String[payload.get() & 0xFF];
+            for (int i = 0; i < fields.length; i++) {
+                int len = payload.getInt();
+                if (len < 0 || len > payload.remaining()) throw new ProtocolException("項目長が不正です: " + len);
+                fields[i] = readString(payload, len, false);
+            }
+            byte[] body = new byte[payload.remaining()];
+            payload.get(body);
+            return new Frame(type, fields, body);
+        } catch (BufferUnderflowException e) {
+            throw new ProtocolException("フレームが途中で切れています");
+        }
+    }
+
+    private static String readString(ByteBuffer buf, int len, boolean ascii) {
+        byte[] bytes = new byte[len];
+        buf.get(bytes);
+        return new String(bytes, ascii ? StandardCharsets.US_ASCII : StandardCharsets.UTF_8);
+    }
+}
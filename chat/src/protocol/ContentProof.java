@@ -0,0 +1,83 @@
+package protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * アップロードの重複排除で、ハッシュだけでなく内容そのものを持っていることの証明
+ * サーバーが渡した乱数（チャレンジ）から読む位置を SAMPLES か所決め、チャレンジとその位置の SAMPLE_SIZE バイトずつを
+ * つないだ SHA-256 を証明とする。位置はチャレンジごとに変わるので、ハッシュを知っているだけでは作れず使い回しもできない
+ * SAMPLES × SAMPLE_SIZE 以下のファイルは全体をつなぐ
+ */
+public final class ContentProof {
+    public static final int SAMPLES = 16;
+    public static final int SAMPLE_SIZE = 4096;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /**
+     * 指定位置からバッファが埋まるまで読む（ファイルの終わりで足りなければ IOException）
+     */
+    public interface Source {
+        void read(long offset, ByteBuffer buf) throws IOException;
+    }
+
+    private ContentProof() {}
+
+    /**
+     * 新しいチャレンジ（16進の乱数）
+     */
+    public static String newChallenge() {
+        byte[] nonce = new byte[16];
+        RANDOM.nextBytes(nonce);
+        return toHex(nonce);
+    }
+
+    /**
+     * size バイトの内容について、challenge に対する証明（16進）を計算する
+     */
+    public static String compute(String challenge, long size, Source source) throws IOException {
+        MessageDigest md = sha256();
+        md.update(challenge.getBytes(StandardCharsets.UTF_8));
+        if (size <= (long) SAMPLES * SAMPLE_SIZE) {
+            ByteBuffer buf = ByteBuffer.allocate((int) size);
+            source.read(0, buf);
+            buf.flip();
+            md.update(buf);
+        } else {
+            ByteBuffer buf = ByteBuffer.allocate(SAMPLE_SIZE);
+            for (int i = 0; i < SAMPLES; i++) {
+                buf.clear();
+                source.read(sampleOffset(challenge, i, size), buf);
+                buf.flip();
+                md.update(buf);
+            }
+        }
+        return toHex(md.digest());
+    }
+
+    // チャレンジと番号から決まる i 番目の読み取り位置（0 〜 size - SAMPLE_SIZE）
+    private static long sampleOffset(String challenge, int i, long size) {
+        byte[] d = sha256().digest((challenge + ":" + i).getBytes(StandardCharsets.UTF_8));
+        return Math.floorMod(ByteBuffer.wrap(d).getLong(), size - SAMPLE_SIZE + 1);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
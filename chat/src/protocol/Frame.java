@@ -0,0 +1,180 @@
+package protocol;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * クライアントとサーバーの間でやり取りする1メッセージ
+ *   type   : TEXT / FILE / IMAGE などの種別
+ *   fields : 文字列のヘッダ項目（TEXT なら 時刻, ユーザー, 趣味, アイコン）
+ *   body   : 本文（TEXT は UTF-8 文字列、FILE / IMAGE は生のバイト列）
+ * 行形式（|||区切り）でもバイナリ形式でも同じ Frame に変換される
+ *
+ * TEXT / FILE / IMAGE の fields は2通り
+ *   完全形式: 時刻, ニックネーム, 趣味, アイコン(Base64)   … 従来クライアント
+ *   短縮形式: 時刻, ユーザーID[, 通し番号]                 … PROFILE を登録したクライアント
+ * サーバーが配信するメッセージの時刻はサーバーの時計で付け直し、短縮形式と ATTACHMENT には
+ * 配信順の通し番号を付ける（再接続したクライアントは最後に受け取った番号より後だけを受け取る）
+ */
+public final class Frame {
+    public static final String TEXT = "TEXT";
+    public static final String FILE = "FILE";
+    public static final String IMAGE = "IMAGE";
+    /** 接続直後にバイナリ形式のクライアントが送る挨拶（fields: プロトコルバージョン） */
+    public static final String HELLO = "HELLO";
+    /**
+     * プロフィール登録 / 通知（body: アイコンのPNG）
+     *   クライアント → サーバー fields: ニックネーム, 趣味
+     *   サーバー → クライアント fields: ユーザーID, ニックネーム, 趣味
+     */
+    public static final String PROFILE = "PROFILE";
+    /** PROFILE 登録への応答（fields: 自分のユーザーID） */
+    public static final String WELCOME = "WELCOME";
+
+    // 分割ファイル転送（CHUNK_SIZE ごとに送り、途中から再開できる）
+    /**
+     * アップロード開始 / 再開（fields: 転送ID, FILE|IMAGE, ファイル名, サイズ, 時刻, MIME, SHA-256）
+     * サーバーが同じ SHA-256 の内容を持っていれば、UPLOAD_ACK でチャレンジを返し、PROOF が合えば本体を送らずに完了する
+     */
+    public static final String UPLOAD = "UPLOAD";
+    /**
+     * サーバーが受け取り済みのオフセット（fields: 転送ID, オフセット[, チャレンジ]）
+     * チャレンジがあれば、クライアントは本体の代わりに PROOF を送ってよい（送らなければそのまま CHUNK を送る）
+     */
+    public static final String UPLOAD_ACK = "UPLOAD_ACK";
+    /**
+     * 内容を持っていることの証明（fields: 転送ID, ContentProof.compute の結果）
+     * 合えばサーバーはサイズと同じオフセットの UPLOAD_ACK で完了を知らせ、合わなければ受け取り済みのオフセットを返す
+     */
+    public static final String PROOF = "PROOF";
+    /** アップロードの断片（fields: 転送ID, オフセット / body: データ） */
+    public static final String CHUNK = "CHUNK";
+    /**
+     * 添付ファイルの到着通知（fields: 時刻, ユーザーID, FILE|IMAGE, SHA-256, ファイル名, サイズ, MIME, 通し番号
+     * / body: IMAGE ならサーバーが作った幅200pxの縮小版。作れなかったときは空）
+     * 本体は含まないので、必要になったら DOWNLOAD で取りに行く
+     */
+    public static final String ATTACHMENT = "ATTACHMENT";
+    /** ダウンロード要求（fields: SHA-256, オフセット） */
+    public static final String DOWNLOAD = "DOWNLOAD";
+    /** ダウンロードの断片（fields: SHA-256, オフセット / body: データ。空なら存在しない） */
+    public static final String DATA = "DATA";
+
+    // ルーム（接続ごとに1つのルームに属し、メッセージはそのルームの参加者にだけ届く）
+    /**
+     * ルームへの移動（fields: ルーム名[, 最後に受け取った通し番号]）。前のルームからは抜ける
+     * サーバーは移動後のルーム名と参加時点の通し番号を JOIN で返し（fields: ルーム名, 通し番号）、
+     * そのルームのそれより前の直近のメッセージを送り直す。以降のメッセージは配信で届く
+     * 通し番号があれば、それより後のメッセージだけを送り直す（再接続時。PROFILE より先に送れば登録時に送る）
+     */
+    public static final String JOIN = "JOIN";
+    /** 今のルームから抜けて既定のルームに戻る（応答は JOIN） */
+    public static final String LEAVE = "LEAVE";
+    // 全文検索（今いるルームの TEXT メッセージから探す。大文字と小文字は区別しない）
+    /**
+     * 検索要求（fields: 検索語, この通し番号より前を探す（空なら最新から）, 件数）
+     * サーバーは一致したメッセージを新しい順に SEARCH_HIT で送り、最後に
+     * SEARCH（fields: 検索語, 次のページを求めるときの通し番号（なければ空）, 件数）で終わりを知らせる
+     */
+    public static final String SEARCH = "SEARCH";
+    /** 検索に一致したメッセージ（fields: 検索語, 通し番号, 時刻, ユーザーID / body: 本文） */
+    public static final String SEARCH_HIT = "SEARCH_HIT";
+    /** 接続直後に属するルーム（ルームに対応していないクライアントもここで話す） */
+    public static final String DEFAULT_ROOM = "lobby";
+
+    /** 分割転送の1断片の大きさ */
+    public static final int CHUNK_SIZE = 64 * 1024;
+    /** 1回の DOWNLOAD 要求に対してサーバーが返す断片の数 */
+    public static final int DOWNLOAD_WINDOW = 16;
+
+    private static final String[] NO_FIELDS = new String[0];
+    private static final byte[] EMPTY = new byte[0];
+
+    private final String type;
+    private final String[] fields;
+    private final byte[] body;
+
+    public Frame(String type, String[] fields, byte[] body) {
+        this.type = type;
+        this.fields = fields != null ? fields : NO_FIELDS;
+        this.body = body != null ? body : EMPTY;
+    }
+
+    /**
+     * 本文が文字列のフレームを生成
+     */
+    public static Frame of(String type, String text, String... fields) {
+        return new Frame(type, fields, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 本文が生バイト列の種別か（行形式では Base64 で運ぶ）
+     */
+    public static boolean hasBinaryBody(String type) {
+        return FILE.equals(type) || IMAGE.equals(type) || PROFILE.equals(type)
+                || CHUNK.equals(type) || DATA.equals(type) || ATTACHMENT.equals(type);
+    }
+
+    /**
+     * 短縮形式（時刻, ユーザーID[, 通し番号]）のメッセージか
+     */
+    public boolean isCompact() {
+        return fields.length == 2 || fields.length == 3;
+    }
+
+    /**
+     * 通し番号を入れる fields の位置（短縮形式のメッセージと ATTACHMENT の最後）
+     */
+    public static int seqIndex(String type) {
+        return ATTACHMENT.equals(type) ? 7 : 2;
+    }
+
+    /**
+     * サーバーが配信時に付けた通し番号（付いていなければ -1）。短縮形式のメッセージと ATTACHMENT だけが持つ
+     */
+    public long getSeq() {
+        if (!isCompact() && !ATTACHMENT.equals(type)) return -1;
+        String seq = getField(seqIndex(type));
+        try {
+            return seq.isEmpty() ? -1 : Long.parseLong(seq);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public int getFieldCount() {
+        return fields.length;
+    }
+
+    /**
+     * i 番目のヘッダ項目（存在しなければ空文字）
+     */
+    public String getField(int i) {
+        return i < fields.length ? fields[i] : "";
+    }
+
+    public String[] getFields() {
+        return fields.clone();
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+
+    public String getBodyText() {
+        return new String(body, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        return "Frame{" +
+                "type='" + type + '\'' +
+                ", fields=" + Arrays.toString(fields) +
+                ", body(length)=" + body.length +
+                '}';
+    }
+}
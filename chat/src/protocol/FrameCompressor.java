@@ -0,0 +1,94 @@
+package protocol;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * 1接続ぶんの送信側の圧縮（バイナリ形式のみ）
+ * 接続ごとに1つの deflate ストリームを使い続け、フレームごとに SYNC_FLUSH で区切る
+ * 前のフレームの内容が辞書として効くので、毎回同じ時刻・ユーザーID・ニックネームが並ぶ行はよく縮む
+ * ペイロードが threshold バイト未満のフレームは圧縮せずそのまま送る（ストリームにも通さない）
+ * 受信側は FrameDecoder が同じ順序で伸長する。フレームの順序を入れ替えずに書く側のスレッドから呼ぶこと
+ * deflate のネイティブのバッファは最初に圧縮するときに確保し、close で解放する（close も書く側のスレッドから呼ぶ）
+ */
+public class FrameCompressor {
+    private final int threshold;
+    private Deflater deflater;
+    private boolean closed;
+    private byte[] out = new byte[8192];
+
+    // 圧縮したフレームの、圧縮前と圧縮後のペイロードの合計
+    private volatile long rawBytes;
+    private volatile long compressedBytes;
+    private volatile long frames;
+
+    public FrameCompressor(int threshold) {
+        this.threshold = Math.max(1, threshold);
+    }
+
+    /**
+     * エンコード済みのフレームを必要なら圧縮して返す（小さいもの、圧縮済みのものは frame をそのまま返す）
+     */
+    public ByteBuffer compress(ByteBuffer frame) {
+        int start = frame.position();
+        int payload = frame.remaining() - BinaryCodec.HEADER_SIZE;
+        if (payload < threshold || frame.get(start) != BinaryCodec.MAGIC
+                || (frame.get(start + 2) & BinaryCodec.FLAG_DEFLATE) != 0) {
+            return frame;
+        }
+        if (closed) return frame;
+        if (deflater == null) deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(frame.duplicate().position(start + BinaryCodec.HEADER_SIZE));
+        int len = 0;
+        while (true) {
+            len += deflater.deflate(out, len, out.length - len, Deflater.SYNC_FLUSH);
+            if (len < out.length) break;
+            out = Arrays.copyOf(out, out.length * 2);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(BinaryCodec.HEADER_SIZE + len);
+        buf.put(BinaryCodec.MAGIC).put(frame.get(start + 1)).put((byte) (frame.get(start + 2) | BinaryCodec.FLAG_DEFLATE))
+                .putInt(len).put(out, 0, len).flip();
+        rawBytes += payload;
+        compressedBytes += len;
+        frames++;
+        return buf;
+    }
+
+    /**
+     * deflate のネイティブのバッファを解放する。以後は圧縮せずにそのまま返す
+     */
+    public void close() {
+        closed = true;
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+    }
+
+    public long getRawBytes() {
+        return rawBytes;
+    }
+
+    public long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    public long getCompressedFrames() {
+        return frames;
+    }
+
+    /**
+     * 圧縮後 / 圧縮前の比（まだ1つも圧縮していなければ 1）
+     */
+    public double getRatio() {
+        long raw = rawBytes;
+        return raw == 0 ? 1.0 : (double) compressedBytes / raw;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("圧縮 %d フレーム, %d → %d バイト (%.1f%%)", frames, rawBytes, compressedBytes,
+                getRatio() * 100);
+    }
+}
@@ -0,0 +1,206 @@
+package protocol;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * 受信したバイト列を少しずつ渡してフレームを取り出すデコーダ
+ * 形式が未指定なら最初の1バイトで判別する（MAGIC ならバイナリ、それ以外は行形式）
+ * 受け取ったデータにフレームがまるごと含まれている間はコピーせずに直接解析し、
+ * 途中で切れた残りだけを内部バッファに保持する（待機中の接続はバッファを持たない）
+ * 圧縮したフレーム（FLAG_DEFLATE）は接続ごとに1つの inflate ストリームで順に伸長する
+ * （最初の圧縮フレームが届いたときに作るので、圧縮を使わない接続は持たない。読み終えたら close で解放する）
+ */
+public class FrameDecoder {
+    private final int maxFrameSize;
+    private WireFormat format;
+
+    private byte[] buf;
+    private int len;
+    // 行形式で、改行がないことを確認済みのバイト数
+    private int scanned;
+
+    private Inflater inflater;
+    private byte[] inflated;
+    private boolean closed;
+    // 圧縮フレームの、受信したペイロードと伸長後のペイロードの合計
+    private volatile long compressedBytes;
+    private volatile long inflatedBytes;
+
+    public FrameDecoder(int maxFrameSize) {
+        this(null, maxFrameSize);
+    }
+
+    public FrameDecoder(WireFormat format, int maxFrameSize) {
+        this.format = format;
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * 判別済みの形式（まだ何も受信していなければ null）
+     */
+    public WireFormat getFormat() {
+        return format;
+    }
+
+    public void feed(byte[] bytes, int off, int n, Consumer<Frame> handler) throws ProtocolException {
+        feed(ByteBuffer.wrap(bytes, off, n), handler);
+    }
+
+    /**
+     * in の残りをすべて消費し、完成したフレームを handler に渡す
+     */
+    public void feed(ByteBuffer in, Consumer<Frame> handler) throws ProtocolException {
+        if (len == 0) {
+            parse(in, handler);
+            if (in.hasRemaining()) {
+                scanned = format == WireFormat.LINE ? in.remaining() : 0;
+                append(in);
+            }
+            return;
+        }
+        append(in);
+        ByteBuffer view = ByteBuffer.wrap(buf, 0, len);
+        parse(view, handler);
+        int rest = view.remaining();
+        if (rest == 0) {
+            buf = null;
+            len = 0;
+            scanned = 0;
+        } else {
+            System.arraycopy(buf, view.position(), buf, 0, rest);
+            len = rest;
+            if (format == WireFormat.LINE) scanned = rest;
+        }
+    }
+
+    private void parse(ByteBuffer src, Consumer<Frame> handler) throws ProtocolException {
+        while (src.hasRemaining()) {
+            if (format == null) {
+                format = src.get(src.position()) == BinaryCodec.MAGIC ? WireFormat.BINARY : WireFormat.LINE;
+            }
+            Frame frame;
+            if (format == WireFormat.LINE) {
+                int start = src.position();
+                int nl = indexOf(src, start + scanned, (byte) '\n');
+                if (nl < 0) {
+                    if (src.remaining() > maxFrameSize) throw tooLarge(src.remaining());
+                    return;
+                }
+                scanned = 0;
+                int end = nl > start && src.get(nl - 1) == '\r' ? nl - 1 : nl;
+                byte[] line = new byte[end - start];
+                src.get(line);
+                src.position(nl + 1);
+                frame = LineCodec.fromLine(new String(line, LineCodec.CHARSET));
+            } else {
+                if (src.remaining() < BinaryCodec.HEADER_SIZE) return;
+                int start = src.position();
+                if (src.get(start) != BinaryCodec.MAGIC) throw new ProtocolException("MAGIC が一致しません");
+                if (src.get(start + 1) != BinaryCodec.VERSION) {
+                    throw new ProtocolException("未対応のバージョンです: " + src.get(start + 1));
+                }
+                int payloadLength = src.getInt(start + 3);
+                if (payloadLength < 0 || payloadLength > maxFrameSize) throw tooLarge(payloadLength);
+                if (src.remaining() < (long) BinaryCodec.HEADER_SIZE + payloadLength) return;
+                ByteBuffer payload = src.duplicate();
+                payload.position(start + BinaryCodec.HEADER_SIZE).limit(start + BinaryCodec.HEADER_SIZE + payloadLength);
+                src.position(payload.limit());
+                if ((src.get(start + 2) & BinaryCodec.FLAG_DEFLATE) != 0) payload = inflate(payload);
+                frame = BinaryCodec.decodePayload(payload);
+            }
+            if (frame != null) handler.accept(frame);
+        }
+    }
+
+    // 圧縮したペイロードを伸長する。返すバッファは次の伸長で上書きされる
+    private ByteBuffer inflate(ByteBuffer payload) throws ProtocolException {
+        if (closed) throw new ProtocolException("デコーダは閉じています");
+        if (inflater == null) {
+            inflater = new Inflater(true);
+            inflated = new byte[8192];
+        }
+        compressedBytes += payload.remaining();
+        inflater.setInput(payload);
+        int len = 0;
+        try {
+            while (true) {
+                int n = inflater.inflate(inflated, len, inflated.length - len);
+                len += n;
+                if (len < inflated.length && inflater.needsInput()) break;
+                if (n == 0 && len < inflated.length) throw new ProtocolException("圧縮データが不正です");
+                if (len == inflated.length) {
+                    if (len >= maxFrameSize) throw tooLarge(len);
+                    inflated = Arrays.copyOf(inflated, (int) Math.min(maxFrameSize, inflated.length * 2L));
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new ProtocolException("圧縮データが不正です: " + e.getMessage());
+        }
+        inflatedBytes += len;
+        return ByteBuffer.wrap(inflated, 0, len);
+    }
+
+    /**
+     * 伸長のネイティブのバッファを解放する（feed と同じ受信側のスレッドから、読み終えた後に呼ぶ）
+     */
+    public void close() {
+        closed = true;
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+    }
+
+    /**
+     * 受信途中のフレームを組み立て終えるまでに必要なバッファの大きさ（途中のフレームがなければ 0）
+     * バイナリ形式はヘッダが届いた時点でフレーム全体の大きさ、行形式はそれまでに受け取った分
+     */
+    public int getPendingSize() {
+        if (format == WireFormat.BINARY && len >= BinaryCodec.HEADER_SIZE) {
+            return BinaryCodec.HEADER_SIZE + ByteBuffer.wrap(buf, 0, len).getInt(3);
+        }
+        return len;
+    }
+
+    /**
+     * 受信した圧縮フレームのペイロードの合計（圧縮後）
+     */
+    public long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    /**
+     * 受信した圧縮フレームのペイロードの合計（伸長後）
+     */
+    public long getInflatedBytes() {
+        return inflatedBytes;
+    }
+
+    private void append(ByteBuffer in) throws ProtocolException {
+        int n = in.remaining();
+        if (buf == null) {
+            buf = new byte[Math.max(256, n)];
+        } else if (len + n > buf.length) {
+            if ((long) len + n > (long) maxFrameSize + BinaryCodec.HEADER_SIZE + 2) throw tooLarge(len + n);
+            buf = Arrays.copyOf(buf, (int) Math.min(Integer.MAX_VALUE - 8, Math.max(buf.length * 2L, len + n)));
+        }
+        in.get(buf, len, n);
+        len += n;
+    }
+
+    private static int indexOf(ByteBuffer src, int from, byte b) {
+        for (int i = from; i < src.limit(); i++) {
+            if (src.get(i) == b) return i;
+        }
+        return -1;
+    }
+
+    private ProtocolException tooLarge(int size) {
+        return new FrameTooLargeException("フレームが大きすぎます: " + size + " バイト（上限 " + maxFrameSize + "）");
+    }
+}
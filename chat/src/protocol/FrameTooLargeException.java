@@ -0,0 +1,12 @@
+package protocol;
+
+import java.net.ProtocolException;
+
+/**
+ * 受信中のフレームが上限の大きさを超えた（受信側はバッファにためる前に気づいて投げる）
+ */
+public class FrameTooLargeException extends ProtocolException {
+    public FrameTooLargeException(String message) {
+        super(message);
+    }
+}
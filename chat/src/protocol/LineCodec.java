@@ -0,0 +1,74 @@
+package protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * 従来の1行形式: 種別|||項目1|||...|||本文
+ * 既存クライアントと互換を保つため、文字コードは従来どおりプラットフォーム既定
+ */
+public final class LineCodec {
+    public static final Charset CHARSET = Charset.defaultCharset();
+    public static final String SEPARATOR = "|||";
+    private static final String SEPARATOR_REGEX = "\\|\\|\\|";
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(CHARSET);
+
+    private LineCodec() {}
+
+    /**
+     * フレームを1行の文字列にする（改行は含まない）
+     */
+    public static String toLine(Frame frame) {
+        StringBuilder sb = new StringBuilder(frame.getBody().length + 64);
+        sb.append(frame.getType());
+        for (int i = 0; i < frame.getFieldCount(); i++) {
+            sb.append(SEPARATOR).append(escape(frame.getField(i)));
+        }
+        sb.append(SEPARATOR);
+        if (Frame.hasBinaryBody(frame.getType())) {
+            sb.append(Base64.getEncoder().encodeToString(frame.getBody()));
+        } else {
+            sb.append(escape(frame.getBodyText()));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 1行を解析する。Base64 が壊れているなど解釈できない行は null
+     */
+    public static Frame fromLine(String line) {
+        String[] parts = line.split(SEPARATOR_REGEX, -1);
+        if (parts.length < 2) {
+            return new Frame(parts[0], null, null);
+        }
+        String type = parts[0];
+        String[] fields = new String[parts.length - 2];
+        System.arraycopy(parts, 1, fields, 0, fields.length);
+        String body = parts[parts.length - 1];
+        try {
+            byte[] bytes = Frame.hasBinaryBody(type)
+                    ? Base64.getDecoder().decode(body)
+                    : body.getBytes(StandardCharsets.UTF_8);
+            return new Frame(type, fields, bytes);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 改行付きのバイト列にする
+     */
+    public static ByteBuffer encode(Frame frame) {
+        byte[] line = toLine(frame).getBytes(CHARSET);
+        ByteBuffer buf = ByteBuffer.allocate(line.length + LINE_SEPARATOR.length);
+        buf.put(line).put(LINE_SEPARATOR).flip();
+        return buf;
+    }
+
+    // 区切り文字と改行は1行形式では運べないので置き換える
+    private static String escape(String s) {
+        return s.replace(SEPARATOR, "｜｜｜").replace("\r\n", " ").replace('\n', ' ');
+    }
+}
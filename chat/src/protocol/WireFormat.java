@@ -0,0 +1,34 @@
+package protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 接続で使う通信形式
+ */
+public enum WireFormat {
+    /** 従来の「|||」区切り1行形式（バイナリ本文は Base64） */
+    LINE,
+    /** 長さプレフィックス付きのバイナリ形式（BinaryCodec を参照） */
+    BINARY;
+
+    /**
+     * フレームをこの形式のバイト列にする
+     */
+    public ByteBuffer encode(Frame frame) {
+        return this == BINARY ? BinaryCodec.encode(frame) : LineCodec.encode(frame);
+    }
+
+    /**
+     * 複数の接続へ同じものを送るためのエンコード
+     * 読み取り専用の direct バッファを返すので、受信者ごとに duplicate して共有する（受信者ごとのコピーが起きない）
+     */
+    public ByteBuffer encodeShared(Frame frame) {
+        ByteBuffer buf = this == BINARY ? BinaryCodec.encode(frame, true) : LineCodec.encode(frame);
+        if (!buf.isDirect()) buf = ByteBuffer.allocateDirect(buf.remaining()).put(buf).flip();
+        return buf.asReadOnlyBuffer();
+    }
+
+    public static WireFormat parse(String name) {
+        return valueOf(name.trim().toUpperCase());
+    }
+}
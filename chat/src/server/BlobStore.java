@@ -0,0 +1,113 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.regex.Pattern;
+
+/**
+ * 内容のハッシュ（SHA-256）をキーにしたファイル置き場
+ * 同じ内容は誰が何度送っても1つだけ保存する
+ *   blobs/ab/abcdef0123...  （先頭2文字でディレクトリを分ける）
+ */
+class BlobStore {
+    private static final Pattern HASH = Pattern.compile("[0-9a-f]{64}");
+
+    private final Path root;
+
+    BlobStore(Path dataDir) throws IOException {
+        this.root = Files.createDirectories(dataDir.resolve("blobs"));
+    }
+
+    static boolean isHash(String s) {
+        return s != null && HASH.matcher(s).matches();
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String toHex(byte[] digest) {
+        StringBuilder sb = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 保存済みなら大きさ、なければ -1
+     */
+    long size(String hash) {
+        if (!isHash(hash)) return -1;
+        try {
+            return Files.size(path(hash));
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 受信し終えた一時ファイルを取り込む。同じ内容が既にあれば一時ファイルは消す
+     */
+    void put(String hash, Path file) throws IOException {
+        Path target = path(hash);
+        if (Files.exists(target)) {
+            Files.delete(file);
+            return;
+        }
+        Files.createDirectories(target.getParent());
+        Files.move(file, target, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * メモリ上のデータを取り込み、そのハッシュを返す（従来クライアントの1行ファイル用）
+     */
+    String put(byte[] data) throws IOException {
+        String hash = toHex(newDigest().digest(data));
+        Path target = path(hash);
+        if (!Files.exists(target)) {
+            Path tmp = createTemp(hash);
+            Files.write(tmp, data);
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+        }
+        return hash;
+    }
+
+    /**
+     * 取り込む前の内容を書く一時ファイル（取り込みで動かせるように保存先と同じディレクトリに作る）
+     */
+    Path createTemp(String hash) throws IOException {
+        Path dir = Files.createDirectories(path(hash).getParent());
+        return Files.createTempFile(dir, hash, ".tmp");
+    }
+
+    /**
+     * offset から最大 buf.remaining() バイトを読む（読めたバイト数を返す）
+     */
+    int read(String hash, long offset, ByteBuffer buf) throws IOException {
+        try (FileChannel ch = FileChannel.open(path(hash), StandardOpenOption.READ)) {
+            int total = 0;
+            while (buf.hasRemaining()) {
+                int n = ch.read(buf, offset + total);
+                if (n < 0) break;
+                total += n;
+            }
+            return total;
+        }
+    }
+
+    /**
+     * 保存先のファイル（あるかどうかは確かめない）
+     */
+    Path path(String hash) {
+        return root.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+}
@@ -1,74 +1,809 @@
 package server;
 
+import protocol.BinaryCodec;
+import protocol.ContentProof;
+import protocol.Frame;
+import protocol.WireFormat;
+
 import java.io.*;
-import java.net.*;
-import java.text.SimpleDateFormat;
+import java.net.ProtocolException;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 /**
  * シンプルなマルチクライアントチャットサーバー
+ * 接続の読み書きは ServerEngine に任せ、ここでは接続一覧と配信だけを扱う
+ * 各接続はいずれか1つのルームに属し、メッセージは送り主と同じルームの参加者にだけ配信する
  */
 public class ChatServer {
-    private static final int PORT = 12345;
-    private static final List<ClientHandler> clients = new CopyOnWriteArrayList<>();
+    private static final int DEFAULT_SEARCH_LIMIT = 20;
+    // メッセージの時刻はサーバーの時計で付ける（クライアントの時計は揃っていない）
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("'['HH:mm:ss']'");
+
+    private final ServerConfig config;
+    private final Set<Connection> clients = ConcurrentHashMap.newKeySet();
+    private final Map<String, Room> rooms = new ConcurrentHashMap<>();
+    private final ProfileRegistry profiles;
+    private final ServerMetrics metrics = new ServerMetrics(this);
+    private final IngestBudget ingest;
+    // ジャーナルがないときの通し番号（あればジャーナルの番号を使う）
+    private final AtomicLong sequence = new AtomicLong();
+    private BlobStore blobs;
+    private TransferStore transfers;
+    private Thumbnailer thumbnails;
+    private MessageJournal journal;
+    private SearchIndex search;
+    private ClusterRelay cluster;
+    private ServerEngine engine;
+
+    public ChatServer(ServerConfig config) {
+        this.config = config;
+        this.profiles = new ProfileRegistry(config.getNodeId(), config.getMaxProfiles());
+        this.ingest = new IngestBudget(config.getIngestMaxBytes());
+    }
 
     public static void main(String[] args) {
-        System.out.println("Chat Server started on port " + PORT);
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            while (true) {
-                Socket sock = serverSocket.accept();
-                ClientHandler handler = new ClientHandler(sock);
-                clients.add(handler);
-                new Thread(handler).start();
-            }
-        } catch (IOException e) {
+        ServerConfig config = ServerConfig.fromSystemProperties();
+        if (args.length > 0) config.setEngine(args[0]);
+        try {
+            new ChatServer(config).start();
+        } catch (IOException | IllegalArgumentException e) {
             System.err.println("サーバー起動エラー: " + e.getMessage());
         }
     }
 
-    static class ClientHandler implements Runnable {
-        private final Socket sock;
-        private BufferedReader in;
-        private PrintWriter out;
+    public void start() throws IOException {
+        blobs = new BlobStore(Paths.get(config.getDataDir()));
+        transfers = new TransferStore(Paths.get(config.getDataDir()), blobs, config.getMaxUploadBytes(),
+                TimeUnit.HOURS.toMillis(config.getUploadExpireHours()));
+        if (config.getThumbnailThreads() > 0) {
+            thumbnails = new Thumbnailer(Paths.get(config.getDataDir()), blobs, config.getThumbnailThreads());
+        }
+        if (config.isJournalEnabled()) {
+            // クラスタでは dataDir を共有するので、ジャーナルはノードごとに分ける
+            String dir = config.getNodeId().isEmpty() ? "journal" : "journal-" + config.getNodeId();
+            journal = MessageJournal.open(Paths.get(config.getDataDir()).resolve(dir),
+                    config.getJournalSegmentBytes(), config.getJournalMaxSegments());
+            // ジャーナルに残った短縮形式のメッセージが参照するプロフィールを同じIDで復元する
+            journal.loadProfiles(p -> profiles.restore(p.getField(0), p.getField(1), p.getField(2), p.getBody()));
+            // 上限を超えて保存されていたら、古いものを忘れてファイルも作り直す
+            if (profiles.trim(Collections.emptySet()) > 0) journal.rewriteProfiles(profileSnapshot());
+            System.out.println("ジャーナル: " + profiles.all().size() + " プロフィール, 次の通し番号 " + journal.nextSeq());
+            if (config.isSearchEnabled()) {
+                search = SearchIndex.open(journal, Paths.get(config.getDataDir()).resolve(dir).resolve("search"),
+                        config.getSearchThreads());
+            }
+        }
+        if (config.getClusterPort() > 0) {
+            cluster = new ClusterRelay(this, config);
+            cluster.start();
+        }
+        engine = ServerEngine.create(config.getEngine());
+        engine.start(this, config.getPort());
+        metrics.start(config);
+        System.out.println("Chat Server started on port " + config.getPort() + " (engine: " + engine.name() + ")");
+    }
 
-        ClientHandler(Socket s) {
-            this.sock = s;
+    public void stop() {
+        metrics.stop();
+        if (engine != null) engine.stop();
+        if (cluster != null) cluster.stop();
+        for (Connection client : clients) {
+            client.close();
+        }
+        if (thumbnails != null) thumbnails.shutdown();
+        // 索引スレッドがジャーナルを読み終えてから閉じる
+        if (search != null) search.close();
+        if (journal != null) {
             try {
-                in = new BufferedReader(new InputStreamReader(s.getInputStream()));
-                out = new PrintWriter(s.getOutputStream(), true);
+                journal.close();
             } catch (IOException e) {
-                System.err.println("クライアント接続エラー: " + e.getMessage());
+                System.err.println("ジャーナルを閉じられませんでした: " + e.getMessage());
             }
         }
+    }
 
-        public void run() {
-            try {
-                String line;
-                while ((line = in.readLine()) != null) {
-                    broadcast(line);
+    public ServerConfig getConfig() {
+        return config;
+    }
+
+    public int getClientCount() {
+        return clients.size();
+    }
+
+    ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    IngestBudget getIngestBudget() {
+        return ingest;
+    }
+
+    BlobStore getBlobs() {
+        return blobs;
+    }
+
+    Set<Connection> connections() {
+        return clients;
+    }
+
+    void register(Connection client) {
+        clients.add(client);
+        moveTo(client, Frame.DEFAULT_ROOM, false);
+    }
+
+    void unregister(Connection client) {
+        client.releaseIngest();
+        if (transfers != null) transfers.release(client);
+        Room room = client.room;
+        if (room != null) leave(client, room);
+        if (clients.remove(client)) {
+            System.out.println("クライアント切断: " + client.remoteAddress() + " (" + client.getFormat()
+                    + ", 受信 " + client.bytesIn + " バイト, 送信 " + client.bytesOut + " バイト)");
+            String compression = client.compressionStats();
+            if (compression != null) {
+                System.out.println("  " + compression);
+            }
+            long dropped = client.outbound.getDropped();
+            if (dropped > 0) {
+                System.out.println("  送信キューあふれで破棄したフレーム: " + dropped);
+            }
+        }
+    }
+
+    /**
+     * クライアントから届いたフレームを処理する（受信スレッド / イベントループから呼ばれる）
+     */
+    void handle(Connection from, Frame frame) {
+        metrics.framesIn.increment();
+        switch (frame.getType()) {
+            case Frame.HELLO:
+                handleHello(from, frame); // 形式の判別はデコーダが済ませている
+                return;
+            case Frame.PROFILE:
+                registerProfile(from, frame.getField(0), frame.getField(1), frame.getBody(), true);
+                return;
+            case Frame.TEXT:
+            case Frame.FILE:
+            case Frame.IMAGE:
+                handleMessage(from, frame);
+                return;
+            case Frame.UPLOAD:
+                handleUpload(from, frame);
+                return;
+            case Frame.CHUNK:
+                handleChunk(from, frame);
+                return;
+            case Frame.PROOF:
+                handleProof(from, frame);
+                return;
+            case Frame.DOWNLOAD:
+                handleDownload(from, frame);
+                return;
+            case Frame.SEARCH:
+                handleSearch(from, frame);
+                return;
+            case Frame.JOIN:
+                handleJoin(from, frame.getField(0), frame.getField(1));
+                return;
+            case Frame.LEAVE:
+                handleJoin(from, Frame.DEFAULT_ROOM, "");
+                return;
+            default:
+                // WELCOME や ATTACHMENT などサーバーだけが送るフレームを偽造されないよう、知らない種類は中継しない
+                System.err.println("未対応のフレームを捨てました: " + from.remoteAddress() + " " + frame.getType());
+        }
+    }
+
+    /**
+     * ルームを移る。after（最後に受け取った通し番号）があれば、送り直すのはそれより後のメッセージだけにする
+     * PROFILE 登録前（再接続の直後）なら、送り直しは登録時に行う
+     */
+    private void handleJoin(Connection from, String name, String after) {
+        if (!Room.isValidName(name)) {
+            System.err.println("不正なルーム名です: " + name);
+            return;
+        }
+        try {
+            from.resumeAfter = after.isEmpty() ? -1 : Long.parseLong(after);
+        } catch (NumberFormatException e) {
+            from.resumeAfter = -1;
+        }
+        moveTo(from, name, true);
+    }
+
+    /**
+     * 接続をルームに移す（前のルームからは抜ける）。reply なら JOIN を返し、PROFILE 登録済みなら直近のメッセージを送り直す
+     * 参加者への追加、参加時点の通し番号の記録、応答と送り直しはルームで同期して行う
+     * 配信も同じルームで同期するので、送り直したメッセージを配信でも送ることはなく、送り直しより先に新しいメッセージが届くこともない
+     */
+    private void moveTo(Connection conn, String name, boolean reply) {
+        Room old = conn.room;
+        if (old != null && !old.name.equals(name)) leave(conn, old);
+        while (true) {
+            Room room = rooms.computeIfAbsent(name, Room::new);
+            synchronized (room) {
+                if (room.removed) continue; // 空になって外されたので、作り直されたものに入る
+                if (room.members.add(conn)) {
+                    conn.room = room;
+                    // この番号より前のメッセージは送り直しの対象、以降は配信で届く
+                    conn.joinedSeq = journal != null ? journal.nextSeq() : sequence.get();
+                }
+                if (reply) {
+                    conn.sendReply(new Frame(Frame.JOIN, new String[]{name, String.valueOf(conn.joinedSeq)}, null));
+                    if (conn.profileAware) replay(conn);
                 }
+                return;
+            }
+        }
+    }
+
+    private void leave(Connection conn, Room room) {
+        synchronized (room) {
+            room.members.remove(conn);
+            removeIfEmpty(room);
+        }
+    }
+
+    // 参加者がいなくなったルームを rooms から外す（ルームで同期して呼ぶ）
+    private void removeIfEmpty(Room room) {
+        if (!room.members.isEmpty()) return;
+        room.removed = true;
+        rooms.remove(room.name, room);
+    }
+
+    /**
+     * 今いるルームの TEXT メッセージを検索して、一致したものを新しい順に返す
+     * 検索は SearchIndex のスレッドで行い、結果はそこから送る
+     */
+    private void handleSearch(Connection from, Frame frame) {
+        String query = frame.getField(0);
+        Room room = from.room;
+        long before;
+        int limit;
+        try {
+            before = frame.getField(1).isEmpty() ? Long.MAX_VALUE : Long.parseLong(frame.getField(1));
+            limit = frame.getField(2).isEmpty() ? DEFAULT_SEARCH_LIMIT : Integer.parseInt(frame.getField(2));
+        } catch (NumberFormatException e) {
+            System.err.println("不正な検索要求です: " + e.getMessage());
+            return;
+        }
+        // 結果は短縮形式で返すので、PROFILE を登録した接続だけが検索できる
+        if (search == null || room == null || !from.profileAware) {
+            from.sendReply(new Frame(Frame.SEARCH, new String[]{query, "", "0"}, null));
+            return;
+        }
+        search.submit(room.name, query, before, limit, result -> {
+            for (SearchIndex.Hit hit : result.hits) {
+                // ルームの配信と並んで動くので、送ったことにはせず（配信側で送り直してもよい）知らなければ送る
+                UserProfile author = profiles.get(hit.frame.getField(1));
+                if (author != null && !from.sentProfiles.contains(author.getId())) from.sendReply(author.toFrame());
+                from.sendReply(new Frame(Frame.SEARCH_HIT, new String[]{query, String.valueOf(hit.seq),
+                        hit.frame.getField(0), hit.frame.getField(1)}, hit.frame.getBody()));
+            }
+            from.sendReply(new Frame(Frame.SEARCH, new String[]{query,
+                    result.nextBefore > 0 ? String.valueOf(result.nextBefore) : "", String.valueOf(result.hits.size())}, null));
+        });
+    }
+
+    // クライアントが deflate に対応していれば、同じ HELLO で応じてから以降の送信を圧縮する
+    private void handleHello(Connection from, Frame frame) {
+        if (!config.isCompression() || from.getFormat() != WireFormat.BINARY) return;
+        for (int i = 1; i < frame.getFieldCount(); i++) {
+            if (BinaryCodec.DEFLATE.equals(frame.getField(i))) {
+                from.sendReply(new Frame(Frame.HELLO, new String[]{String.valueOf(BinaryCodec.VERSION),
+                        BinaryCodec.DEFLATE}, null));
+                from.enableCompression(config.getCompressThreshold());
+                return;
+            }
+        }
+    }
+
+    private void handleMessage(Connection from, Frame frame) {
+        UserProfile sender = from.profile;
+        if (!frame.isCompact()) {
+            // 従来クライアントはメッセージごとにプロフィールを送ってくるので、暗黙に登録する
+            String nickname = frame.getField(1), hobby = frame.getField(2), avatar = frame.getField(3);
+            if (sender == null || !sender.sameAs(nickname, hobby, avatar)) {
+                byte[] png;
+                try {
+                    png = Base64.getDecoder().decode(avatar);
+                } catch (IllegalArgumentException e) {
+                    png = new byte[0];
+                }
+                sender = registerProfile(from, nickname, hobby, png, false);
+            }
+        } else if (sender == null) {
+            return; // PROFILE 未登録のまま短縮形式は送れない
+        }
+        if (!Frame.TEXT.equals(frame.getType())) {
+            // 1行で送られてきたファイルも BlobStore に入れ、対応クライアントには通知だけを送る
+            storeInlineAttachment(from, sender, frame);
+            return;
+        }
+        Frame compact = new Frame(frame.getType(), new String[]{now(), sender.getId()}, frame.getBody());
+        UserProfile profile = sender;
+        Room room = from.room;
+        inOrder(from, Frame.TEXT, null, none -> broadcastMessage(room, compact, () -> profile.expand(compact)));
+    }
+
+    private void storeInlineAttachment(Connection from, UserProfile sender, Frame frame) {
+        byte[] data = frame.getBody();
+        String hash;
+        try {
+            hash = blobs.put(data);
+        } catch (IOException e) {
+            System.err.println("ファイル保存エラー: " + e.getMessage());
+            return;
+        }
+        String kind = frame.getType();
+        String mime = Frame.IMAGE.equals(kind) ? guessImageType(data) : "application/octet-stream";
+        String name = Frame.IMAGE.equals(kind) ? "image" : "file";
+        String time = now();
+        Frame legacy = sender.expand(new Frame(kind, new String[]{time, sender.getId()}, data));
+        Room room = from.room;
+        inOrder(from, kind, hash, thumbnail -> broadcastMessage(room,
+                attachmentNotice(sender, time, kind, hash, name, data.length, mime, thumbnail),
+                () -> legacy));
+    }
+
+    private static String guessImageType(byte[] data) {
+        try {
+            String type = URLConnection.guessContentTypeFromStream(new ByteArrayInputStream(data));
+            return type != null ? type : "image/*";
+        } catch (IOException e) {
+            return "image/*";
+        }
+    }
+
+    private void handleUpload(Connection from, Frame frame) {
+        UserProfile sender = from.profile;
+        if (sender == null) return;
+        String id = frame.getField(0), kind = frame.getField(1), name = frame.getField(2);
+        String mime = frame.getField(5), claimedHash = frame.getField(6);
+        if (!Frame.FILE.equals(kind) && !Frame.IMAGE.equals(kind)) {
+            System.err.println("不正な添付の種類です: " + kind);
+            return;
+        }
+        try {
+            long size = Long.parseLong(frame.getField(3));
+            TransferStore.Upload upload = transfers.begin(from, id, kind, name, size, mime);
+            if (upload.received < upload.size && blobs.size(claimedHash) == size) {
+                // 同じ内容が保存済みなら、内容を持っている証明と引き換えに本体を送らせずに完了する
+                // （ハッシュを申告しただけでは完了しない。証明を送らないクライアントはそのまま本体を送る）
+                upload.claimedHash = claimedHash;
+                upload.challenge = ContentProof.newChallenge();
+                from.sendReply(new Frame(Frame.UPLOAD_ACK,
+                        new String[]{id, String.valueOf(upload.received), upload.challenge}, null));
+                return;
+            }
+            from.sendReply(new Frame(Frame.UPLOAD_ACK, new String[]{id, String.valueOf(upload.received)}, null));
+            if (upload.received == upload.size) completeUpload(sender, upload);
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("アップロード開始エラー: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 内容の証明を確かめ、保存済みの本体と一致すれば受信途中のアップロードを捨てて完了する
+     * 一致しなければ受け取り済みの位置を返し、クライアントに本体を送らせる（チャレンジは1回しか使えない）
+     */
+    private void handleProof(Connection from, Frame frame) {
+        TransferStore.Upload upload = transfers.getUpload(from, frame.getField(0));
+        if (upload == null || upload.owner != from || upload.challenge == null) return;
+        String challenge = upload.challenge, hash = upload.claimedHash;
+        upload.challenge = null;
+        try {
+            if (blobs.size(hash) == upload.size && ContentProof.compute(challenge, upload.size, (offset, buf) -> {
+                blobs.read(hash, offset, buf);
+                if (buf.hasRemaining()) throw new IOException("保存済みのファイルが短くなりました: " + hash);
+            }).equals(frame.getField(1))) {
+                transfers.discard(upload);
+                from.sendReply(new Frame(Frame.UPLOAD_ACK, new String[]{upload.id, String.valueOf(upload.size)}, null));
+                announceAttachment(from, from.profile, upload.kind, hash, upload.name, upload.size, upload.mime);
+                return;
+            }
+            System.err.println("内容の証明が一致しません: " + from.remoteAddress() + " " + upload.id);
+        } catch (IOException e) {
+            System.err.println("内容の証明の確認エラー: " + e.getMessage());
+        }
+        from.sendReply(new Frame(Frame.UPLOAD_ACK, new String[]{upload.id, String.valueOf(upload.received)}, null));
+    }
+
+    private void handleChunk(Connection from, Frame frame) {
+        TransferStore.Upload upload = transfers.getUpload(from, frame.getField(0));
+        if (upload == null || upload.owner != from) return;
+        try {
+            long before = upload.received;
+            long received = transfers.write(upload, Long.parseLong(frame.getField(1)), frame.getBody());
+            from.sendReply(new Frame(Frame.UPLOAD_ACK, new String[]{upload.id, String.valueOf(received)}, null));
+            if (received != before && received == upload.size) completeUpload(from.profile, upload);
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("アップロードエラー: " + e.getMessage());
+        }
+    }
+
+    private void completeUpload(UserProfile sender, TransferStore.Upload upload) throws IOException {
+        String hash = transfers.complete(upload);
+        announceAttachment(upload.owner, sender, upload.kind, hash, upload.name, upload.size, upload.mime);
+    }
+
+    private static Frame attachmentNotice(UserProfile sender, String time, String kind, String hash, String name,
+                                          long size, String mime, byte[] thumbnail) {
+        return new Frame(Frame.ATTACHMENT, new String[]{time, sender.getId(), kind, hash, name,
+                String.valueOf(size), mime}, thumbnail);
+    }
+
+    /**
+     * 添付ファイルを配信する。対応クライアントにはハッシュなどの情報（画像なら縮小版も）だけを送り、本体は要求されたときに返す
+     */
+    private void announceAttachment(Connection from, UserProfile sender, String kind, String hash, String name,
+                                    long size, String mime) {
+        String time = now();
+        Room room = from.room;
+        inOrder(from, kind, hash, thumbnail -> broadcastMessage(room,
+                attachmentNotice(sender, time, kind, hash, name, size, mime, thumbnail),
+                () -> legacyAttachment(sender, time, kind, hash, name, size)));
+    }
+
+    /**
+     * from の発言を受け取った順に配信する。画像なら縮小版を作ってから（Thumbnailer のスレッドで）then を呼び、
+     * それ以外や作れなかったときは null を渡す
+     * 縮小版を待っている発言があれば、後の発言はその配信が済んでから配信する（画像の後に送った TEXT が先に届かないように）
+     */
+    private void inOrder(Connection from, String kind, String hash, Consumer<byte[]> then) {
+        boolean thumbnail = thumbnails != null && Frame.IMAGE.equals(kind);
+        CompletableFuture<Void> previous = from.delivered;
+        if (!thumbnail && previous.isDone()) {
+            then.accept(null);
+            return;
+        }
+        CompletableFuture<byte[]> image = new CompletableFuture<>();
+        if (thumbnail) {
+            thumbnails.submit(hash, image::complete);
+        } else {
+            image.complete(null);
+        }
+        from.delivered = image.thenAcceptBoth(previous, (data, done) -> {
+            try {
+                then.accept(data);
+            } catch (RuntimeException e) {
+                // 後の発言が止まらないように、失敗しても順番は進める
+                System.err.println("配信エラー: " + e);
+            }
+        });
+    }
+
+    /**
+     * 従来クライアント向けの添付ファイル。小さければ本体を載せ、大きければ案内だけを送る
+     */
+    private Frame legacyAttachment(UserProfile sender, String time, String kind, String hash, String name, long size) {
+        String[] fields = {time, sender.getNickname(), sender.getHobby(), sender.getAvatarBase64()};
+        if (size <= config.getLegacyInlineLimit()) {
+            ByteBuffer data = ByteBuffer.allocate((int) size);
+            try {
+                blobs.read(hash, 0, data);
+                return new Frame(kind, fields, data.array());
             } catch (IOException e) {
-                System.err.println("通信エラー: " + e.getMessage());
-            } finally {
-                cleanup();
+                System.err.println("ファイル読み込みエラー: " + e.getMessage());
             }
         }
+        return Frame.of(Frame.TEXT, "[ファイル] " + name + " (" + size + " バイト)", fields);
+    }
+
+    /**
+     * 要求されたオフセットから Frame.DOWNLOAD_WINDOW 個ぶんの断片を返す。続きはクライアントが再度要求する
+     */
+    private void handleDownload(Connection from, Frame frame) {
+        handleDownload(from, frame, false);
+    }
 
-        private void broadcast(String message) {
-            for (ClientHandler client : clients) {
-                client.out.println(message);
+    /**
+     * ほかのノードで送られた添付をまだ持っていなければ、ピアから取り寄せてから（fetched=true で）応じる
+     */
+    private void handleDownload(Connection from, Frame frame, boolean fetched) {
+        // クライアントは1窓ぶんを受け取ってから次を要求するので、送信キューが上限を超えるのは応答を読まずに要求を重ねたとき
+        if (from.outbound.getQueuedBytes() > config.getOutboundMaxBytes()) {
+            System.err.println("ダウンロードの応答を読まないため切断: " + from.remoteAddress());
+            from.close();
+            return;
+        }
+        String hash = frame.getField(0);
+        long size = blobs.size(hash);
+        if (size < 0 && cluster != null && !fetched && BlobStore.isHash(hash)) {
+            cluster.fetchBlob(hash).thenRun(() -> handleDownload(from, frame, true));
+            return;
+        }
+        try {
+            long offset = Long.parseLong(frame.getField(1));
+            if (size < 0 || offset < 0 || offset > size) {
+                from.sendReply(new Frame(Frame.DATA, new String[]{hash, String.valueOf(offset)}, null));
+                return;
+            }
+            for (int i = 0; i < Frame.DOWNLOAD_WINDOW && offset < size; i++) {
+                ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(Frame.CHUNK_SIZE, size - offset));
+                blobs.read(hash, offset, chunk);
+                from.sendReply(new Frame(Frame.DATA, new String[]{hash, String.valueOf(offset)}, chunk.array()));
+                offset += chunk.capacity();
+            }
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("ダウンロードエラー: " + e.getMessage());
+        }
+    }
+
+    /**
+     * プロフィールを登録する。新しい内容のときだけジャーナルに残し、ほかのノードへ中継する
+     * explicit=true（PROFILE フレームでの登録）なら、その接続を短縮形式の送信対象にする
+     * ほかの接続へは、そのプロフィールのメッセージを初めて送るときに introduce で送る
+     */
+    private UserProfile registerProfile(Connection conn, String nickname, String hobby, byte[] avatar,
+                                        boolean explicit) {
+        synchronized (profiles) {
+            UserProfile p = profiles.find(nickname, hobby, avatar);
+            boolean created = p == null;
+            if (created) {
+                p = profiles.create(nickname, hobby, avatar);
+                trimProfiles();
+            }
+            conn.profile = p;
+
+            boolean joining = explicit && !conn.profileAware;
+            if (joining) {
+                // 短縮形式への切り替えから送り直しまでをルームで同期し、切り替え後の配信が送り直しより先に届かないようにする
+                Room room = conn.room;
+                synchronized (room != null ? room : conn) {
+                    // 既知のプロフィールはまとめて送らず、送り直すメッセージの送信者のものだけを送る
+                    conn.profileAware = true;
+                    introduce(conn, p, true);
+                    conn.sendReply(new Frame(Frame.WELCOME, new String[]{p.getId()}, null));
+                    replay(conn);
+                }
+            } else if (explicit) {
+                introduce(conn, p, true);
+                conn.sendReply(new Frame(Frame.WELCOME, new String[]{p.getId()}, null));
             }
+            if (created) {
+                saveProfile(p);
+                if (cluster != null) cluster.publishProfile(p.toFrame());
+            }
+            return p;
         }
+    }
+
+    /**
+     * プロフィールの上限を超えていたら、接続中のユーザーのもの以外を古い順に忘れる（profiles で同期して呼ぶ）
+     */
+    private void trimProfiles() {
+        if (!profiles.isFull()) return;
+        Set<UserProfile> inUse = new HashSet<>();
+        for (Connection client : clients) {
+            UserProfile p = client.profile;
+            if (p != null) inUse.add(p);
+        }
+        int removed = profiles.trim(inUse);
+        if (removed > 0) System.out.println("プロフィールの上限を超えたため " + removed + " 件を忘れました");
+    }
 
-        private void cleanup() {
+    /**
+     * PROFILE 登録済みの接続がまだ受け取っていないプロフィールなら、それを参照するフレームより先に送る
+     * reply なら応答として（送信キューの上限で捨てずに）積む
+     */
+    private void introduce(Connection conn, UserProfile p, boolean reply) {
+        if (p == null || !conn.profileAware || !conn.sentProfiles.add(p.getId())) return;
+        if (reply) conn.sendReply(p.toFrame()); else conn.send(p.toFrame());
+    }
+
+    // 新しいプロフィールをジャーナルに残す（送り直すメッセージが参照できるように）
+    private void saveProfile(UserProfile p) {
+        if (journal == null) return;
+        try {
+            journal.appendProfile(p.toFrame());
+        } catch (IOException e) {
+            System.err.println("ジャーナル書き込みエラー: " + e.getMessage());
+        }
+    }
+
+    /**
+     * ほかのノードで作成されたプロフィールを同じIDで登録する（中継の受信スレッドから呼ばれる）
+     */
+    void onRemoteProfile(Frame frame) {
+        synchronized (profiles) {
+            String id = frame.getField(0);
+            if (profiles.get(id) != null) return;
+            saveProfile(profiles.restore(id, frame.getField(1), frame.getField(2), frame.getBody()));
+            trimProfiles();
+        }
+    }
+
+    /**
+     * ほかのノードから中継されたメッセージを、このノードの接続にだけ配信する（再中継はしない）
+     */
+    void onRemoteMessage(String roomName, Frame compact) {
+        UserProfile sender = profiles.get(compact.getField(1));
+        if (sender == null) return; // プロフィールはメッセージより先に届くので、上限で忘れていなければ来ない
+        deliver(roomName, compact, () -> legacyFor(sender, compact));
+    }
+
+    /**
+     * 中継の接続時にピアへ送る既知のプロフィール
+     */
+    List<Frame> profileSnapshot() {
+        synchronized (profiles) {
+            List<Frame> frames = new ArrayList<>();
+            for (UserProfile p : profiles.all()) {
+                frames.add(p.toFrame());
+            }
+            return frames;
+        }
+    }
+
+    // 短縮形式のメッセージから従来クライアント向けの完全形式を作る
+    private Frame legacyFor(UserProfile sender, Frame compact) {
+        if (!Frame.ATTACHMENT.equals(compact.getType())) return sender.expand(compact);
+        long size;
+        try {
+            size = Long.parseLong(compact.getField(5));
+        } catch (NumberFormatException e) {
+            size = 0;
+        }
+        return legacyAttachment(sender, compact.getField(0), compact.getField(2), compact.getField(3),
+                compact.getField(4), size);
+    }
+
+    private static String now() {
+        return LocalTime.now().format(TIME);
+    }
+
+    /**
+     * 今いるルームに入る前の直近のメッセージを送り直す。再接続なら最後に受け取った通し番号より後だけを送る
+     * バイナリ形式の接続にはジャーナルのマップ領域をそのまま送り、行形式の接続にだけ変換して送る
+     */
+    private void replay(Connection conn) {
+        Room room = conn.room;
+        long after = conn.resumeAfter;
+        conn.resumeAfter = -1;
+        // ジャーナルを作り直したなどで番号が合わなければ、通常の送り直しにする
+        if (after >= conn.joinedSeq) after = -1;
+        int count = after >= 0 ? config.getResumeMax() : config.getReplayCount();
+        if (journal == null || room == null || count <= 0) return;
+        for (ByteBuffer buf : journal.tail(room.name, count, after, conn.joinedSeq)) {
+            // 送信者のプロフィールを先に送るために、バイナリ形式の接続でも解析する（送るのはマップした領域のまま）
+            Frame frame;
             try {
-                if (in != null) in.close();
-                if (out != null) out.close();
-                if (sock != null && !sock.isClosed()) sock.close();
-            } catch (IOException ignored) {}
-            clients.remove(this);
-            System.out.println("クライアント切断: " + sock.getRemoteSocketAddress());
+                frame = BinaryCodec.decodePayload(buf.slice(buf.position() + BinaryCodec.HEADER_SIZE,
+                        buf.remaining() - BinaryCodec.HEADER_SIZE));
+            } catch (ProtocolException e) {
+                System.err.println("ジャーナルの読み込みエラー: " + e.getMessage());
+                continue;
+            }
+            introduce(conn, profiles.get(frame.getField(1)), true);
+            if (conn.getFormat() == WireFormat.BINARY) {
+                conn.sendReply(buf);
+            } else {
+                conn.sendReply(frame);
+            }
+        }
+    }
+
+    /**
+     * ルームの参加者全員に配信する。エンコードは通信形式ごとに1回だけ行い、
+     * 読み取り専用の direct バッファを duplicate して共有する（送信時もコピーされない）
+     */
+    void broadcast(Room room, Frame frame) {
+        if (room == null) return;
+        long start = System.nanoTime();
+        ByteBuffer[] encoded = new ByteBuffer[WireFormat.values().length];
+        for (Connection client : room.members) {
+            WireFormat format = client.getFormat();
+            ByteBuffer buf = encoded[format.ordinal()];
+            if (buf == null) {
+                buf = encoded[format.ordinal()] = format.encodeShared(frame);
+            }
+            client.send(buf.duplicate(), true);
+        }
+        metrics.fanoutNanos.record(System.nanoTime() - start);
+    }
+
+    /**
+     * このノードの接続から届いたメッセージを配信し、クラスタのピアへも中継する
+     */
+    private void broadcastMessage(Room room, Frame compact, Supplier<Frame> legacy) {
+        if (room == null) return;
+        ByteBuffer binary = deliver(room.name, compact, legacy);
+        if (cluster != null) cluster.publishMessage(room.name, binary.duplicate());
+    }
+
+    /**
+     * メッセージをこのノードのルーム参加者に配信する。PROFILE 登録済みの接続には通し番号を付けた短縮形式、
+     * 従来クライアントには legacy が作る完全形式で送る
+     * ジャーナルにはバイナリ形式の短縮形式を書き、同じバッファをバイナリ形式の接続への送信と中継にも使う
+     * 同じルームへの配信はルームで同期し、どの参加者にも通し番号の順に届くようにする
+     * （再接続したクライアントに、最後に受け取った番号より後を送り直せばよいように）
+     */
+    private ByteBuffer deliver(String roomName, Frame compact, Supplier<Frame> legacy) {
+        long start = System.nanoTime();
+        UserProfile sender = profiles.get(compact.getField(1));
+        ByteBuffer[] encoded = new ByteBuffer[WireFormat.values().length * 2];
+        while (true) {
+            // 参加者がいなくても、番号を付けるあいだに参加した接続へ届くようにルームで同期する
+            Room room = rooms.computeIfAbsent(roomName, Room::new);
+            synchronized (room) {
+                if (room.removed) continue;
+                Frame numbered = number(roomName, compact, encoded);
+                fanOut(room, numbered, sender, legacy, encoded);
+                removeIfEmpty(room);
+            }
+            break;
+        }
+        metrics.fanoutNanos.record(System.nanoTime() - start);
+        return encoded[WireFormat.BINARY.ordinal() * 2];
+    }
+
+    /**
+     * 次の通し番号を付けてバイナリ形式にし（encoded に入れる）、ジャーナルに書き足す
+     * 番号を決めてから書き足すまでに、ほかのルームの書き込みが入らないようにジャーナルで同期する
+     */
+    private Frame number(String roomName, Frame compact, ByteBuffer[] encoded) {
+        int slot = WireFormat.BINARY.ordinal() * 2;
+        if (journal == null) {
+            Frame numbered = withSeq(compact, sequence.getAndIncrement());
+            encoded[slot] = WireFormat.BINARY.encodeShared(numbered);
+            return numbered;
+        }
+        Frame numbered;
+        try {
+            synchronized (journal) {
+                numbered = withSeq(compact, journal.nextSeq());
+                encoded[slot] = WireFormat.BINARY.encodeShared(numbered);
+                if (journal.append(roomName, encoded[slot].duplicate()) < 0) {
+                    // ジャーナルに入らない大きさなら番号なしで配信する（送り直しの対象にならない）
+                    numbered = withSeq(compact, -1);
+                    encoded[slot] = WireFormat.BINARY.encodeShared(numbered);
+                }
+            }
+            if (search != null) search.notifyAppended();
+        } catch (IOException e) {
+            System.err.println("ジャーナル書き込みエラー: " + e.getMessage());
+            numbered = withSeq(compact, -1);
+            encoded[slot] = WireFormat.BINARY.encodeShared(numbered);
+        }
+        return numbered;
+    }
+
+    // 通し番号を入れた配信用のフレーム（中継されてきたものはこのノードの番号に付け替える。-1 なら空にする）
+    private static Frame withSeq(Frame compact, long seq) {
+        int index = Frame.seqIndex(compact.getType());
+        String[] fields = Arrays.copyOf(compact.getFields(), index + 1);
+        fields[index] = seq < 0 ? "" : String.valueOf(seq);
+        return new Frame(compact.getType(), fields, compact.getBody());
+    }
+
+    // 通し番号のないもの（従来クライアント向けの完全形式を含む）は、送信キューがあふれたら捨ててよい
+    // 短縮形式を受け取る接続がまだ sender のプロフィールを知らなければ、先に送る
+    private void fanOut(Room room, Frame compact, UserProfile sender, Supplier<Frame> legacy, ByteBuffer[] encoded) {
+        boolean numbered = compact.getSeq() >= 0;
+        Frame expanded = null;
+        for (Connection client : room.members) {
+            WireFormat format = client.getFormat();
+            boolean full = !client.profileAware;
+            int slot = format.ordinal() * 2 + (full ? 1 : 0);
+            ByteBuffer buf = encoded[slot];
+            if (buf == null) {
+                if (full && expanded == null) expanded = legacy.get();
+                buf = encoded[slot] = format.encodeShared(full ? expanded : compact);
+            }
+            if (!full) introduce(client, sender, false);
+            client.send(buf.duplicate(), full || !numbered);
         }
     }
 }
@@ -0,0 +1,129 @@
+package server;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ブロッキングI/Oで1接続を処理するハンドラ（ThreadEngine 用）
+ * 受信スレッドと、送信キューを書き出すライタースレッドの2本で動く
+ * 送信は共有バッファをそのまま gathering write で書くので、受信者ごとのコピーや変換はない
+ * 受信の制限にかかったら、受信スレッドが次の read の前に待つ（その間 TCP のウィンドウが閉じる）
+ */
+class ClientHandler extends Connection implements Runnable {
+    // 1回の書き込み（writev）でまとめて送るフレームの最大数
+    private static final int WRITE_BATCH = 64;
+
+    private final SocketChannel channel;
+    private final String remoteAddress;
+    // 受信予算の空きを待つ受信スレッドを起こす（Connection のロックとは分ける）
+    private final Object ingestLock = new Object();
+
+    ClientHandler(ChatServer server, SocketChannel channel) {
+        super(server);
+        this.channel = channel;
+        String address;
+        try {
+            address = String.valueOf(channel.getRemoteAddress());
+        } catch (IOException e) {
+            address = "?";
+        }
+        this.remoteAddress = address;
+    }
+
+    void start(ThreadFactory threads) {
+        threads.newThread(this).start();
+        threads.newThread(this::writeLoop).start();
+    }
+
+    public void run() {
+        try {
+            ByteBuffer buf = ByteBuffer.allocate(8192);
+            while (channel.read(buf.clear()) >= 0) {
+                onBytes(buf.flip());
+                throttle();
+            }
+        } catch (IOException e) {
+            if (channel.isOpen()) System.err.println("通信エラー: " + e.getMessage());
+        } finally {
+            cleanup();
+            closeDecoder();
+        }
+    }
+
+    // 受信の制限にかかっている間、次の読み込みを待つ
+    private void throttle() throws IOException {
+        long delay;
+        while ((delay = readDelayNanos()) != 0) {
+            try {
+                synchronized (ingestLock) {
+                    TimeUnit.NANOSECONDS.timedWait(ingestLock, delay == WAIT_INGEST ? INGEST_RECHECK_NANOS : delay);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    /**
+     * 送信キューにたまったフレームをまとめて取り出し、1回の書き込みで送る
+     */
+    private void writeLoop() {
+        ByteBuffer[] batch = new ByteBuffer[WRITE_BATCH];
+        try {
+            int n;
+            while ((n = outbound.takeBatch(batch)) > 0) {
+                for (int i = 0; i < n; i++) {
+                    batch[i] = compress(batch[i]);
+                }
+                int start = 0;
+                while (start < n) {
+                    wrote(channel.write(batch, start, n - start));
+                    while (start < n && !batch[start].hasRemaining()) {
+                        batch[start++] = null;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closeCompressor();
+        }
+    }
+
+    @Override
+    protected void onQueued() {
+        // ライタースレッドが OutboundQueue.takeBatch で待っているので何もしない
+    }
+
+    @Override
+    protected void onIngestAvailable() {
+        synchronized (ingestLock) {
+            ingestLock.notifyAll();
+        }
+    }
+
+    @Override
+    void close() {
+        outbound.close();
+        try {
+            channel.close();
+        } catch (IOException ignored) {}
+    }
+
+    @Override
+    String remoteAddress() {
+        return remoteAddress;
+    }
+
+    private void cleanup() {
+        close();
+        server.unregister(this);
+    }
+}
@@ -0,0 +1,388 @@
+package server;
+
+import protocol.BinaryCodec;
+import protocol.Frame;
+import protocol.FrameDecoder;
+import protocol.WireFormat;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 複数の ChatServer をつなぐノード間の中継
+ * 各ノードは自分の接続から届いたメッセージとプロフィールを、全ピアへ1回だけ送る
+ * 受け取ったノードは自分の接続にだけ配信し、さらに転送はしない（全ノードが互いにつながっている前提）
+ *
+ * 中継にはバイナリ形式の RELAY フレームを使う
+ *   fields: 送信元ノード, 通し番号, MESSAGE|PROFILE, ルーム名
+ *   body  : 中身のフレーム（バイナリ形式でエンコード済み）
+ * 通し番号は送信元ごとに単調増加なので、再接続などで同じメッセージが届いても捨てられる
+ * 起動時刻から始めるので、送信元が再起動しても前回より小さい番号にはならない
+ * プロフィールは同じIDを何度受け取っても結果が変わらないので、番号を見ずに受け入れる
+ *
+ * ピアへは自分から接続して送り、ピアからの接続は受信だけに使う（切れたら一定間隔でつなぎ直す）
+ * 中継の接続は設定したピアのホストからだけ受け付ける
+ *
+ * 添付の本体は中継せず、ダウンロードされたときに持っていなければピアから取り寄せる
+ *   要求: fields = 要求元ノード, 0, FETCH, ハッシュ（取り寄せごとに新しく接続して送る）
+ *   応答: fields = 応答元ノード, 大きさ, BLOB, ハッシュ。本体を CHUNK_SIZE ずつ送り、最後に本文が空のフレームを送る
+ *         （持っていなければ大きさ -1 の空のフレームだけ）
+ * 取り寄せた内容はハッシュを確かめてから BlobStore に入れる
+ */
+class ClusterRelay {
+    static final String RELAY = "RELAY";
+    static final String MESSAGE = "MESSAGE";
+    static final String PROFILE = "PROFILE";
+    static final String FETCH = "FETCH";
+    static final String BLOB = "BLOB";
+
+    private static final int LINK_QUEUE_CAPACITY = 10_000;
+    private static final long RECONNECT_MILLIS = 1000;
+    private static final int FETCH_THREADS = 2;
+    private static final int FETCH_TIMEOUT_MILLIS = 30_000;
+    // 中継するフレームは chat.maxFrameSize 以内なので、RELAY の fields と中身のヘッダのぶんだけ上限に足す
+    private static final int RELAY_OVERHEAD = 1024;
+
+    private final ChatServer server;
+    private final String nodeId;
+    private final int port;
+    private final String bindAddress;
+    private final int maxFrameSize;
+    private final long maxBlobBytes;
+    private final List<PeerLink> links = new ArrayList<>();
+    // 取り寄せ中のハッシュ（同じ添付を同時に何度も取り寄せない）
+    private final Map<String, CompletableFuture<Boolean>> fetching = new ConcurrentHashMap<>();
+    private final ExecutorService fetchers = Executors.newFixedThreadPool(FETCH_THREADS,
+            r -> daemon("chat-relay-fetch", r));
+    private final AtomicLong nextSeq = new AtomicLong(System.currentTimeMillis() << 20);
+    // 送信元ノード → 受け取り済みの最大の通し番号
+    private final Map<String, Long> lastSeen = new ConcurrentHashMap<>();
+    private ServerSocket listener;
+    private volatile boolean running;
+
+    ClusterRelay(ChatServer server, ServerConfig config) {
+        this.server = server;
+        this.nodeId = config.getNodeId();
+        this.port = config.getClusterPort();
+        this.bindAddress = config.getClusterBind();
+        this.maxFrameSize = config.getMaxFrameSize() + RELAY_OVERHEAD;
+        this.maxBlobBytes = config.getMaxUploadBytes();
+        for (String peer : config.getClusterPeers()) {
+            int colon = peer.lastIndexOf(':');
+            links.add(new PeerLink(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1))));
+        }
+    }
+
+    void start() throws IOException {
+        running = true;
+        listener = new ServerSocket(port, 50, bindAddress.isEmpty() ? null : InetAddress.getByName(bindAddress));
+        daemon("chat-relay-accept", () -> {
+            while (running) {
+                try {
+                    Socket s = listener.accept();
+                    if (!isPeer(s.getInetAddress())) {
+                        System.err.println("ピア以外からの中継の接続を拒否しました: " + s.getRemoteSocketAddress());
+                        s.close();
+                        continue;
+                    }
+                    daemon("chat-relay-in", () -> receive(s)).start();
+                } catch (IOException e) {
+                    if (running) System.err.println("中継の受け付けエラー: " + e.getMessage());
+                }
+            }
+        }).start();
+        for (PeerLink link : links) {
+            daemon("chat-relay-out", link::run).start();
+        }
+        System.out.println("ノード " + nodeId + ": 中継ポート " + port + ", ピア " + links.size());
+    }
+
+    void stop() {
+        running = false;
+        try {
+            if (listener != null) listener.close();
+        } catch (IOException ignored) {}
+        for (PeerLink link : links) {
+            link.close();
+        }
+        fetchers.shutdownNow();
+    }
+
+    // 設定したピアのホスト名が指すアドレスからの接続か（名前はそのたびに引き直す）
+    private boolean isPeer(InetAddress address) {
+        for (PeerLink link : links) {
+            try {
+                for (InetAddress peer : InetAddress.getAllByName(link.host)) {
+                    if (peer.equals(address)) return true;
+                }
+            } catch (UnknownHostException ignored) {
+                // 引けないピアからは受け付けない
+            }
+        }
+        return false;
+    }
+
+    /**
+     * このノードで配信したメッセージ（バイナリ形式の短縮形式）をピアへ送る
+     */
+    void publishMessage(String room, ByteBuffer encoded) {
+        publish(MESSAGE, room, encoded);
+    }
+
+    /**
+     * このノードで作成したプロフィールをピアへ送る
+     */
+    void publishProfile(Frame profile) {
+        publish(PROFILE, "", BinaryCodec.encode(profile));
+    }
+
+    private void publish(String kind, String room, ByteBuffer inner) {
+        if (links.isEmpty()) return;
+        byte[] body = new byte[inner.remaining()];
+        inner.duplicate().get(body);
+        // 全ピアへ同じバッファを送るので、エンコードは1回だけ
+        ByteBuffer relay = BinaryCodec.encode(new Frame(RELAY, new String[]{nodeId,
+                String.valueOf(nextSeq.getAndIncrement()), kind, room}, body));
+        for (PeerLink link : links) {
+            link.offer(relay.duplicate());
+        }
+    }
+
+    private void receive(Socket s) {
+        FrameDecoder decoder = new FrameDecoder(WireFormat.BINARY, maxFrameSize);
+        List<String> requested = new ArrayList<>();
+        try (InputStream in = s.getInputStream(); OutputStream out = new BufferedOutputStream(s.getOutputStream())) {
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                decoder.feed(buf, 0, n, frame -> {
+                    if (RELAY.equals(frame.getType()) && FETCH.equals(frame.getField(2))) {
+                        requested.add(frame.getField(3));
+                    } else {
+                        onRelay(frame);
+                    }
+                });
+                for (String hash : requested) {
+                    serveBlob(out, hash);
+                }
+                requested.clear();
+            }
+        } catch (IOException e) {
+            if (running) System.err.println("中継の受信エラー: " + e.getMessage());
+        }
+    }
+
+    // 取り寄せの要求に、添付の本体を分けて返す
+    private void serveBlob(OutputStream out, String hash) throws IOException {
+        BlobStore blobs = server.getBlobs();
+        long size = blobs.size(hash);
+        String[] fields = {nodeId, String.valueOf(size), BLOB, hash};
+        for (long offset = 0; offset < size; ) {
+            ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(Frame.CHUNK_SIZE, size - offset));
+            blobs.read(hash, offset, chunk);
+            write(out, BinaryCodec.encode(new Frame(RELAY, fields, chunk.array())));
+            offset += chunk.capacity();
+        }
+        write(out, BinaryCodec.encode(new Frame(RELAY, fields, null)));
+        out.flush();
+    }
+
+    /**
+     * 添付の本体をピアから取り寄せて BlobStore に入れる（ほかのノードで送られた添付のダウンロード用）
+     * 持っているピアが見つかるまで順に尋ね、取り込めたら true で完了する。同じハッシュの取り寄せはまとめる
+     */
+    CompletableFuture<Boolean> fetchBlob(String hash) {
+        if (links.isEmpty() || !BlobStore.isHash(hash)) return CompletableFuture.completedFuture(false);
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        CompletableFuture<Boolean> pending = fetching.putIfAbsent(hash, result);
+        if (pending != null) return pending;
+        try {
+            fetchers.execute(() -> {
+                boolean fetched = false;
+                for (PeerLink link : links) {
+                    try {
+                        fetched = fetchFrom(link, hash);
+                    } catch (IOException | NumberFormatException e) {
+                        System.err.println("ピア " + link.host + ":" + link.port + " からの取り寄せエラー: " + e.getMessage());
+                    }
+                    if (fetched) break;
+                }
+                fetching.remove(hash);
+                result.complete(fetched);
+            });
+        } catch (RejectedExecutionException e) {
+            fetching.remove(hash);
+            result.complete(false);
+        }
+        return result;
+    }
+
+    // 1つのピアに尋ねる。持っていなかったり、内容がハッシュと合わなければ false
+    private boolean fetchFrom(PeerLink link, String hash) throws IOException {
+        BlobStore blobs = server.getBlobs();
+        Path tmp = blobs.createTemp(hash);
+        try {
+            boolean complete = false;
+            try (Socket s = new Socket(); OutputStream file = Files.newOutputStream(tmp)) {
+                s.connect(new InetSocketAddress(link.host, link.port), FETCH_TIMEOUT_MILLIS);
+                s.setSoTimeout(FETCH_TIMEOUT_MILLIS);
+                OutputStream out = s.getOutputStream();
+                write(out, BinaryCodec.encode(new Frame(RELAY, new String[]{nodeId, "0", FETCH, hash}, null)));
+                out.flush();
+
+                FrameDecoder decoder = new FrameDecoder(WireFormat.BINARY, maxFrameSize);
+                List<Frame> frames = new ArrayList<>();
+                MessageDigest digest = BlobStore.newDigest();
+                long received = 0;
+                InputStream in = s.getInputStream();
+                byte[] buf = new byte[8192];
+                int n;
+                read:
+                while ((n = in.read(buf)) >= 0) {
+                    decoder.feed(buf, 0, n, frames::add);
+                    for (Frame frame : frames) {
+                        if (!BLOB.equals(frame.getField(2)) || !hash.equals(frame.getField(3))) continue;
+                        long size = Long.parseLong(frame.getField(1));
+                        if (size < 0 || (maxBlobBytes > 0 && size > maxBlobBytes)) return false;
+                        byte[] body = frame.getBody();
+                        if (body.length == 0) {
+                            complete = received == size && hash.equals(BlobStore.toHex(digest.digest()));
+                            break read;
+                        }
+                        if (received + body.length > size) return false;
+                        digest.update(body);
+                        file.write(body);
+                        received += body.length;
+                    }
+                    frames.clear();
+                }
+            }
+            if (!complete) return false;
+            blobs.put(hash, tmp);
+            return true;
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private void onRelay(Frame frame) {
+        if (!RELAY.equals(frame.getType())) return;
+        String origin = frame.getField(0);
+        if (origin.equals(nodeId)) return;
+        boolean message = MESSAGE.equals(frame.getField(2));
+        if (message && !isFresh(origin, frame.getField(1))) return;
+
+        byte[] body = frame.getBody();
+        Frame inner;
+        try {
+            inner = BinaryCodec.decodePayload(ByteBuffer.wrap(body, BinaryCodec.HEADER_SIZE,
+                    body.length - BinaryCodec.HEADER_SIZE));
+        } catch (ProtocolException | IndexOutOfBoundsException e) {
+            System.err.println("中継フレームが不正です: " + e.getMessage());
+            return;
+        }
+        if (message) {
+            server.onRemoteMessage(frame.getField(3), inner);
+        } else {
+            server.onRemoteProfile(inner);
+        }
+    }
+
+    // 受け取り済みより大きい番号のときだけ true
+    private boolean isFresh(String origin, String seqField) {
+        long seq;
+        try {
+            seq = Long.parseLong(seqField);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        boolean[] fresh = new boolean[1];
+        lastSeen.compute(origin, (k, last) -> {
+            fresh[0] = last == null || seq > last;
+            return fresh[0] ? seq : last;
+        });
+        return fresh[0];
+    }
+
+    private static void write(OutputStream out, ByteBuffer frame) throws IOException {
+        out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+    }
+
+    private static Thread daemon(String name, Runnable task) {
+        Thread t = new Thread(task, name);
+        t.setDaemon(true);
+        return t;
+    }
+
+    /**
+     * 1つのピアへの送信用の接続
+     * 送るフレームはキューに積み、専用スレッドが書き出す（つながっていない間はキューにたまる）
+     */
+    private class PeerLink {
+        final String host;
+        final int port;
+        final BlockingQueue<ByteBuffer> queue = new LinkedBlockingQueue<>(LINK_QUEUE_CAPACITY);
+        final AtomicLong dropped = new AtomicLong();
+        volatile Socket socket;
+
+        PeerLink(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        void offer(ByteBuffer frame) {
+            if (!queue.offer(frame) && dropped.getAndIncrement() % 1000 == 0) {
+                System.err.println("ピア " + host + ":" + port + " への中継があふれています");
+            }
+        }
+
+        void run() {
+            while (running) {
+                try (Socket s = new Socket(host, port)) {
+                    socket = s;
+                    s.setTcpNoDelay(true);
+                    OutputStream out = new BufferedOutputStream(s.getOutputStream());
+                    System.out.println("ピアに接続: " + host + ":" + port);
+                    // つないだ直後に既知のプロフィールを送る（ピアの再起動後もメッセージの送り主がわかるように）
+                    for (Frame profile : server.profileSnapshot()) {
+                        write(out, BinaryCodec.encode(new Frame(RELAY, new String[]{nodeId, "0", PROFILE, ""},
+                                BinaryCodec.encode(profile).array())));
+                    }
+                    out.flush();
+                    while (running) {
+                        ByteBuffer frame = queue.take();
+                        do {
+                            write(out, frame);
+                        } while ((frame = queue.poll()) != null);
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    if (!running) return;
+                    try {
+                        Thread.sleep(RECONNECT_MILLIS);
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        void close() {
+            Socket s = socket;
+            try {
+                if (s != null) s.close();
+            } catch (IOException ignored) {}
+        }
+    }
+}
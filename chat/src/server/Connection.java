@@ -0,0 +1,329 @@
+package server;
+
+import protocol.BinaryCodec;
+import protocol.Frame;
+import protocol.FrameCompressor;
+import protocol.FrameDecoder;
+import protocol.FrameTooLargeException;
+import protocol.WireFormat;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * サーバー側から見た1クライアント接続
+ * 接続エンジン（スレッド / NIO）ごとに実装が異なる
+ * 送信はすべて接続ごとの OutboundQueue を経由し、配信元のスレッドをブロックしない
+ * 通信形式（行 / バイナリ）はクライアントが最初に送ったバイトで決まる
+ * HELLO で圧縮を取り決めた接続では、書き込み側が書く直前に compress を通す
+ * （共有バッファは配信側ではそのまま積み、接続ごとの deflate ストリームは書き込み側だけが触る）
+ *
+ * 受信側の制限
+ *   フレームの大きさ   : chat.maxFrameSize を超えるフレームはためる前に気づいて切断する
+ *   件数・帯域         : 接続ごとのトークンバケット。件数を超えたフレームは捨て、帯域を超えたら読み込みを待つ
+ *   受信途中のバッファ : 全接続共有の IngestBudget から確保し、確保できなければ読み込みを止める
+ * 各エンジンは読み込みのたびに readDelayNanos を見て、次の読み込みを遅らせる
+ */
+abstract class Connection {
+    /** readDelayNanos の戻り値: 受信予算の解放を待つ（onIngestAvailable で知らせる） */
+    static final long WAIT_INGEST = -1;
+    /** 受信予算を待つ間に確保し直す間隔 */
+    static final long INGEST_RECHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    // 途中までためたまま予算を待てる時間（行形式の接続どうしが互いに待ち合うのを切る）
+    private static final long INGEST_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    protected final ChatServer server;
+    protected final OutboundQueue outbound;
+    protected final ServerMetrics metrics;
+    private final FrameDecoder decoder;
+    private final IngestBudget ingest;
+    // 0 以下の設定なら null（制限しない）
+    private final TokenBucket messageRate;
+    private final TokenBucket byteRate;
+
+    // PROFILE を登録したクライアントには短縮形式（時刻, ユーザーID）で送る
+    volatile boolean profileAware;
+    volatile UserProfile profile;
+    // この接続へ送ったプロフィールの ID（まだ送っていない送信者のプロフィールは、そのメッセージの直前に送る）
+    final Set<String> sentProfiles = ConcurrentHashMap.newKeySet();
+    // 今いるルームと、そこに入った時点のジャーナルの通し番号（これより前のメッセージを送り直す）
+    volatile Room room;
+    volatile long joinedSeq;
+    // 再接続したクライアントが JOIN で伝えた、最後に受け取った通し番号（次の送り直しで使う。なければ -1）
+    volatile long resumeAfter = -1;
+    // この接続の発言のうち最後のものの配信（縮小版を待つ画像があっても、発言を受け取った順に配信するため）
+    volatile CompletableFuture<Void> delivered = CompletableFuture.completedFuture(null);
+    // HELLO で deflate を取り決めるまでは null
+    private volatile FrameCompressor compressor;
+
+    // 受信側・送信側それぞれ1スレッドからしか更新しない
+    protected long bytesIn;
+    protected long bytesOut;
+
+    // 受信予算から確保しているバイト数（this で保護する。閉じた後は確保しない）
+    private long reserved;
+    private boolean ingestClosed;
+    // 予算を確保できずに待ち始めた時刻（受信側だけが触る）
+    private long waitingSince;
+
+    Connection(ChatServer server) {
+        this.server = server;
+        this.metrics = server.getMetrics();
+        ServerConfig config = server.getConfig();
+        this.outbound = new OutboundQueue(config.getOutboundCapacity(), config.getOutboundMaxBytes(),
+                config.getOverflowPolicy());
+        this.decoder = new FrameDecoder(config.getMaxFrameSize());
+        this.ingest = server.getIngestBudget();
+        this.messageRate = config.getMessageRate() > 0
+                ? new TokenBucket(config.getMessageRate(), config.getMessageBurst()) : null;
+        this.byteRate = config.getByteRate() > 0 ? new TokenBucket(config.getByteRate(), config.getByteBurst()) : null;
+    }
+
+    /**
+     * この接続の通信形式（まだ何も受信していなければ従来の行形式とみなす）
+     */
+    WireFormat getFormat() {
+        WireFormat format = decoder.getFormat();
+        return format != null ? format : WireFormat.LINE;
+    }
+
+    /**
+     * これ以降に書くフレームを圧縮する（HELLO の応答を積んだ後に呼ぶ）
+     */
+    void enableCompression(int threshold) {
+        if (compressor == null) compressor = new FrameCompressor(threshold);
+    }
+
+    /**
+     * 書き込み側が書く直前に呼ぶ。圧縮を取り決めていなければ buf をそのまま返す
+     */
+    protected ByteBuffer compress(ByteBuffer buf) {
+        FrameCompressor c = compressor;
+        if (c == null) return buf;
+        ByteBuffer out = c.compress(buf);
+        if (out != buf) {
+            metrics.uncompressedBytesOut.add(buf.remaining() - BinaryCodec.HEADER_SIZE);
+            metrics.compressedBytesOut.add(out.remaining() - BinaryCodec.HEADER_SIZE);
+        }
+        return out;
+    }
+
+    /**
+     * 書き込み側が、もう書かなくなった後に呼ぶ（deflate のネイティブのバッファを解放する）
+     */
+    protected void closeCompressor() {
+        FrameCompressor c = compressor;
+        if (c != null) c.close();
+    }
+
+    /**
+     * 受信側が、もう読まなくなった後に呼ぶ（inflate のネイティブのバッファを解放する）
+     */
+    protected void closeDecoder() {
+        decoder.close();
+    }
+
+    /**
+     * 圧縮の統計（送信・受信とも圧縮していなければ null）
+     */
+    String compressionStats() {
+        FrameCompressor c = compressor;
+        long in = decoder.getCompressedBytes();
+        if (c == null && in == 0) return null;
+        String stats = c != null ? "送信 " + c : "送信 圧縮なし";
+        if (in > 0) {
+            stats += String.format(", 受信 %d → %d バイト (%.1f%%)", decoder.getInflatedBytes(), in,
+                    100.0 * in / decoder.getInflatedBytes());
+        }
+        return stats;
+    }
+
+    /**
+     * 受信したバイト列を解析し、完成したフレームをサーバーに渡す
+     */
+    protected void onBytes(ByteBuffer data) throws ProtocolException {
+        bytesIn += data.remaining();
+        metrics.bytesIn.add(data.remaining());
+        if (byteRate != null) byteRate.take(data.remaining());
+        long compressed = decoder.getCompressedBytes(), inflated = decoder.getInflatedBytes();
+        try {
+            decoder.feed(data, this::received);
+        } catch (FrameTooLargeException e) {
+            metrics.oversizeFrames.increment();
+            throw e;
+        } finally {
+            if (decoder.getCompressedBytes() != compressed) {
+                metrics.compressedBytesIn.add(decoder.getCompressedBytes() - compressed);
+                metrics.uncompressedBytesIn.add(decoder.getInflatedBytes() - inflated);
+            }
+        }
+    }
+
+    private void received(Frame frame) {
+        if (messageRate != null && isRequest(frame.getType())) {
+            // 応答を待たれている要求は捨てずに受け付け、超えたぶんは次の読み込みを遅らせて返す
+            messageRate.take(1);
+        } else if (messageRate != null && isCounted(frame.getType()) && !messageRate.tryTake(1)) {
+            if (metrics.rateLimitedFrames.sum() % 1000 == 0) {
+                System.err.println("送信が速すぎるためフレームを捨てました: " + remoteAddress() + " " + frame.getType());
+            }
+            metrics.rateLimitedFrames.increment();
+            return;
+        }
+        dispatch(frame);
+    }
+
+    /**
+     * 受信したフレームを処理する。既定では受信側のスレッドでそのまま処理する
+     * （ほかの接続と受信スレッドを共有するエンジンは、ファイルの読み書きで止まらないように別スレッドに渡す）
+     */
+    protected void dispatch(Frame frame) {
+        server.handle(this, frame);
+    }
+
+    // アップロードの断片（CHUNK）と HELLO は件数に数えない（帯域の制限だけを受ける）
+    private static boolean isCounted(String type) {
+        return !Frame.CHUNK.equals(type) && !Frame.HELLO.equals(type);
+    }
+
+    // 捨てるとクライアントが応答を待ち続ける要求
+    private static boolean isRequest(String type) {
+        return Frame.DOWNLOAD.equals(type) || Frame.SEARCH.equals(type) || Frame.PROOF.equals(type);
+    }
+
+    /**
+     * 受信したバイト列を渡した後に受信側が呼ぶ。次の読み込みまで待つ時間（ナノ秒）を返す
+     *   0           : すぐ読んでよい
+     *   WAIT_INGEST : 受信途中のフレームのぶんを予算から確保できない。onIngestAvailable か
+     *                 INGEST_RECHECK_NANOS 後にもう一度呼ぶ
+     *   それ以外    : 帯域の制限を超えたので、その時間だけ待つ
+     * 予算を待ったまま INGEST_TIMEOUT_NANOS を過ぎたら ProtocolException
+     */
+    protected long readDelayNanos() throws ProtocolException {
+        if (!reserveIngest()) {
+            // 登録してから確保し直すので、その間に解放されても取りこぼさない
+            ingest.await(this);
+            if (!reserveIngest()) {
+                long now = System.nanoTime();
+                if (waitingSince == 0) {
+                    waitingSince = now;
+                    metrics.ingestPauses.increment();
+                } else if (hasReserved() && now - waitingSince > INGEST_TIMEOUT_NANOS) {
+                    metrics.ingestTimeouts.increment();
+                    throw new ProtocolException("受信バッファの空きを待ちきれませんでした");
+                }
+                return WAIT_INGEST;
+            }
+            ingest.cancel(this);
+        }
+        waitingSince = 0;
+        long delay = byteRate != null ? byteRate.delayNanos() : 0;
+        if (messageRate != null) delay = Math.max(delay, messageRate.delayNanos());
+        if (delay > 0) metrics.throttledReads.increment();
+        return delay;
+    }
+
+    // 受信途中のフレームに必要なぶんだけ確保する（減ったぶんは解放する）
+    private synchronized boolean reserveIngest() {
+        if (ingestClosed) return true;
+        long pending = decoder.getPendingSize();
+        if (pending <= reserved) {
+            ingest.release(reserved - pending);
+            reserved = pending;
+            return true;
+        }
+        if (!ingest.tryReserve(pending - reserved)) return false;
+        reserved = pending;
+        return true;
+    }
+
+    private synchronized boolean hasReserved() {
+        return reserved > 0;
+    }
+
+    /**
+     * 接続を閉じたときに、受信予算から確保していたぶんを返す
+     */
+    synchronized void releaseIngest() {
+        ingestClosed = true;
+        ingest.cancel(this);
+        ingest.release(reserved);
+        reserved = 0;
+    }
+
+    /**
+     * 受信予算に空きができた（任意のスレッドから呼ばれる。受信側を起こす）
+     */
+    protected abstract void onIngestAvailable();
+
+    /**
+     * エンコード済みのフレームを送信キューに積む（buf は共有しないこと）
+     */
+    void send(ByteBuffer buf) {
+        send(buf, false);
+    }
+
+    /**
+     * coalescible なら、COALESCE ポリシーであふれたときに捨ててよい（送り直しの対象にならない配信）
+     */
+    void send(ByteBuffer buf, boolean coalescible) {
+        int size = buf.remaining();
+        if (!outbound.offer(buf, coalescible)) {
+            System.err.println("送信が追いつかないため切断: " + remoteAddress());
+            close();
+            return;
+        }
+        queued(size);
+        onQueued();
+    }
+
+    void send(Frame frame) {
+        send(getFormat().encode(frame));
+    }
+
+    /**
+     * このクライアントの要求への応答を送る（送信キューの上限で捨てない）
+     */
+    void sendReply(Frame frame) {
+        sendReply(getFormat().encode(frame));
+    }
+
+    void sendReply(ByteBuffer buf) {
+        int size = buf.remaining();
+        outbound.add(buf);
+        queued(size);
+        onQueued();
+    }
+
+    private void queued(int size) {
+        metrics.framesOut.increment();
+        metrics.frameSizes.record(size);
+    }
+
+    /**
+     * 書き込み側がソケットへ書いたバイト数を数える
+     */
+    protected void wrote(long n) {
+        bytesOut += n;
+        metrics.bytesOut.add(n);
+    }
+
+    /**
+     * 送信キューにフレームが積まれた後に呼ばれる（書き込み側を起こす）
+     */
+    protected abstract void onQueued();
+
+    /**
+     * 接続を閉じる（何度呼んでもよい）
+     */
+    abstract void close();
+
+    /**
+     * ログ表示用の接続元アドレス
+     */
+    abstract String remoteAddress();
+}
@@ -0,0 +1,73 @@
+package server;
+
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 全接続で共有する受信メモリの予算（chat.ingest.maxBytes）
+ * 受信途中のフレームを組み立てるバッファのぶんを、組み立てを始める前に確保する
+ * nio エンジンでは、受信し終えてワーカーの処理を待っているフレームのぶんも処理が済むまで数える
+ * 確保できない接続は読み込みを止めて（TCP のウィンドウが閉じ、送り手が待つ）、ほかの接続が解放したときに再開する
+ * 予算が空なら上限より大きいフレームでも確保できるので、少なくとも1つの接続は必ず進む
+ */
+final class IngestBudget {
+    private final long limit;
+    private final AtomicLong used = new AtomicLong();
+    // 解放を待っている接続
+    private final Set<Connection> waiting = ConcurrentHashMap.newKeySet();
+
+    IngestBudget(long limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * n バイト確保できれば true（0 以下の上限は無制限）
+     */
+    boolean tryReserve(long n) {
+        while (true) {
+            long current = used.get();
+            if (limit > 0 && current > 0 && current + n > limit) return false;
+            if (used.compareAndSet(current, current + n)) return true;
+        }
+    }
+
+    /**
+     * 上限にかかわらず n バイト確保する（既にメモリ上にあるものを数えるとき用）
+     */
+    void reserve(long n) {
+        used.addAndGet(n);
+    }
+
+    /**
+     * n バイト解放し、待っている接続に知らせる
+     */
+    void release(long n) {
+        if (n <= 0) return;
+        used.addAndGet(-n);
+        for (Iterator<Connection> it = waiting.iterator(); it.hasNext(); ) {
+            Connection conn = it.next();
+            it.remove();
+            conn.onIngestAvailable();
+        }
+    }
+
+    /**
+     * 次の release で conn に知らせる（登録してから確保し直すこと。間に解放されても取りこぼさない）
+     */
+    void await(Connection conn) {
+        waiting.add(conn);
+    }
+
+    void cancel(Connection conn) {
+        waiting.remove(conn);
+    }
+
+    /**
+     * 確保されているバイト数
+     */
+    long getUsed() {
+        return used.get();
+    }
+}
@@ -0,0 +1,69 @@
+package server;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 1つのプロセス内で複数ノードのクラスタを起動する（動作確認・負荷試験用）
+ *   java server.LocalCluster [ノード数=3] [先頭のポート=12345]
+ * ノード i（1始まり）はポート 先頭+i-1 でクライアントを、先頭+100+i-1 で中継を受け付け、
+ * ほかの全ノードとつながる。そのほかの設定はシステムプロパティ chat.* に従う
+ * 別々のマシンと同じように、データは chat.dataDir/<ノード名> に分けて置く（添付の本体はピアから取り寄せる）
+ */
+public class LocalCluster {
+    private static final int RELAY_PORT_OFFSET = 100;
+
+    private final List<ChatServer> nodes = new ArrayList<>();
+
+    public LocalCluster(int size, int basePort) {
+        for (int i = 0; i < size; i++) {
+            StringBuilder peers = new StringBuilder();
+            for (int j = 0; j < size; j++) {
+                if (j == i) continue;
+                if (peers.length() > 0) peers.append(',');
+                peers.append("localhost:").append(basePort + RELAY_PORT_OFFSET + j);
+            }
+            String node = "n" + (i + 1);
+            ServerConfig config = ServerConfig.fromSystemProperties();
+            config.setDataDir(Paths.get(config.getDataDir(), node).toString())
+                    .setPort(basePort + i)
+                    .setNodeId(node)
+                    .setClusterPort(basePort + RELAY_PORT_OFFSET + i)
+                    .setClusterPeers(peers.toString());
+            nodes.add(new ChatServer(config));
+        }
+    }
+
+    public void start() throws IOException {
+        for (ChatServer node : nodes) {
+            node.start();
+        }
+    }
+
+    public void stop() {
+        for (ChatServer node : nodes) {
+            node.stop();
+        }
+    }
+
+    public List<ChatServer> getNodes() {
+        return nodes;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int basePort = args.length > 1 ? Integer.parseInt(args[1]) : ServerConfig.DEFAULT_PORT;
+        LocalCluster cluster = new LocalCluster(size, basePort);
+        try {
+            cluster.start();
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("クラスタ起動エラー: " + e.getMessage());
+            cluster.stop();
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(cluster::stop));
+        Thread.currentThread().join();
+    }
+}
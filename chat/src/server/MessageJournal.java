@@ -0,0 +1,439 @@
+package server;
+
+import protocol.BinaryCodec;
+import protocol.Frame;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * 配信したメッセージを書き足していくジャーナル
+ * セグメントファイル（journal/<先頭の通し番号>.seg）をメモリマップし、1件ずつ
+ *   i64 通し番号, u8 ルーム名の長さ, ルーム名（UTF-8）, バイナリ形式（BinaryCodec）のフレーム
+ * の順に書く。フレームは短縮形式のまま保存するので、参照するプロフィールも profiles.bin に保存する
+ * 各セグメントは通し番号 → 位置の索引、ルームごとに通し番号の一覧をメモリに持ち、
+ * 再送時はマップした領域をそのまま送る（解析し直さない）
+ * 書き込みはマップした領域へのコピーだけで、fsync はしない（OS が書き出す）
+ * 次のセグメントは裏のスレッドで前もって作ってマップしておき（*.spare）、切り替えるときは名前を変えるだけにする
+ * 古いセグメントのファイルも裏のスレッドで消すので、配信側がジャーナルで待つのはコピーの間だけ
+ */
+class MessageJournal implements Closeable {
+    private static final int SEQ_SIZE = 8;
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final int maxSegments;
+    private final List<Segment> segments = new ArrayList<>();
+    // ルーム名 → そのルームのメッセージの通し番号（昇順）
+    private final Map<String, SeqList> rooms = new HashMap<>();
+    private FileChannel profileLog;
+    private long nextSeq;
+    // 前もってマップしておいた次のセグメント（まだ用意できていなければ null）
+    private Path spareFile;
+    private MappedByteBuffer spareMap;
+    private boolean closed;
+    // 次のセグメントの準備と、古いセグメントの削除を行う
+    private final ExecutorService background = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "chat-journal");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private MessageJournal(Path dir, int segmentBytes, int maxSegments) throws IOException {
+        this.dir = Files.createDirectories(dir);
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = Math.max(1, maxSegments);
+        this.profileLog = openProfileLog();
+    }
+
+    private FileChannel openProfileLog() throws IOException {
+        return FileChannel.open(dir.resolve("profiles.bin"), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * ジャーナルを開き、既存のセグメントを読んで索引を作り直す
+     */
+    static MessageJournal open(Path dir, int segmentBytes, int maxSegments) throws IOException {
+        MessageJournal journal = new MessageJournal(dir, segmentBytes, maxSegments);
+        List<Path> files;
+        try (Stream<Path> list = Files.list(dir)) {
+            files = list.filter(p -> p.getFileName().toString().endsWith(".seg")).sorted().toList();
+        }
+        // 前回使わなかった準備済みのセグメントは捨てる
+        try (Stream<Path> list = Files.list(dir)) {
+            for (Path spare : list.filter(p -> p.getFileName().toString().endsWith(".spare")).toList()) {
+                Files.deleteIfExists(spare);
+            }
+        }
+        for (Path file : files) {
+            long firstSeq = Long.parseLong(file.getFileName().toString().replace(".seg", ""));
+            if (!journal.segments.isEmpty() && firstSeq != journal.nextSeq) {
+                // 途中が欠けていたら、それより前は捨てる（通し番号を連続させるため）
+                for (Segment old : journal.segments) {
+                    Files.deleteIfExists(old.file);
+                }
+                journal.segments.clear();
+                journal.rooms.clear();
+            }
+            Segment segment = journal.map(file, firstSeq);
+            journal.segments.add(segment);
+            for (int i = 0; i < segment.count; i++) {
+                journal.rooms.computeIfAbsent(segment.room(i), k -> new SeqList()).add(firstSeq + i);
+            }
+            journal.nextSeq = firstSeq + segment.count;
+        }
+        synchronized (journal) {
+            if (journal.segments.isEmpty()) journal.roll();
+            else journal.inBackground(journal::prepareSpare);
+        }
+        return journal;
+    }
+
+    /**
+     * 保存済みのプロフィールを読み出す（起動時に ProfileRegistry を作り直す用）
+     */
+    synchronized void loadProfiles(Consumer<Frame> handler) throws IOException {
+        long size = profileLog.size();
+        ByteBuffer buf = ByteBuffer.allocate((int) size);
+        while (buf.hasRemaining()) {
+            if (profileLog.read(buf, buf.position()) < 0) break;
+        }
+        buf.flip();
+        long valid = 0;
+        while (buf.remaining() >= BinaryCodec.HEADER_SIZE && buf.get(buf.position()) == BinaryCodec.MAGIC) {
+            int len = buf.getInt(buf.position() + 3);
+            if (len < 0 || len > buf.remaining() - BinaryCodec.HEADER_SIZE) break;
+            handler.accept(BinaryCodec.decodePayload(buf.slice(buf.position() + BinaryCodec.HEADER_SIZE, len)));
+            buf.position(buf.position() + BinaryCodec.HEADER_SIZE + len);
+            valid = buf.position();
+        }
+        // 書きかけで終わっていたら、その部分は捨てて続きから書く
+        profileLog.truncate(valid);
+        profileLog.position(valid);
+    }
+
+    synchronized void appendProfile(Frame profile) throws IOException {
+        writeFully(profileLog, BinaryCodec.encode(profile));
+    }
+
+    /**
+     * 保存済みのプロフィールを profiles だけに置き換える（忘れたプロフィールでファイルが増え続けないように、起動時に呼ぶ）
+     * 一時ファイルに書いてから置き換えるので、途中で落ちても元のファイルが残る
+     */
+    synchronized void rewriteProfiles(Collection<Frame> profiles) throws IOException {
+        Path tmp = dir.resolve("profiles.bin.tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Frame profile : profiles) {
+                writeFully(out, BinaryCodec.encode(profile));
+            }
+        }
+        profileLog.close();
+        Files.move(tmp, dir.resolve("profiles.bin"), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        profileLog = openProfileLog();
+        profileLog.position(profileLog.size());
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    /**
+     * ルームに配信したエンコード済みのフレーム（バイナリ形式）を書き足して通し番号を返す
+     * 1セグメントに収まらない大きさなら書かずに -1 を返す
+     * フレームに通し番号を入れるときは、journal で同期して nextSeq() から append までをまとめて行う
+     */
+    synchronized long append(String room, ByteBuffer frame) throws IOException {
+        byte[] name = room.getBytes(StandardCharsets.UTF_8);
+        int header = SEQ_SIZE + 1 + name.length;
+        int len = frame.remaining();
+        if (header + len > segmentBytes) return -1;
+        Segment active = segments.get(segments.size() - 1);
+        if (active.end + header + len > active.map.capacity()) active = roll();
+        int pos = active.end;
+        MappedByteBuffer map = active.map;
+        map.putLong(pos, nextSeq);
+        map.put(pos + SEQ_SIZE, (byte) name.length);
+        map.put(pos + SEQ_SIZE + 1, name);
+        // フレーム先頭の MAGIC を最後に書くので、途中で落ちても書きかけのレコードは読み込み時に無視される
+        map.put(pos + header + 1, frame, frame.position() + 1, len - 1);
+        map.put(pos + header, frame.get(frame.position()));
+        active.add(pos, header + len);
+        rooms.computeIfAbsent(room, k -> new SeqList()).add(nextSeq);
+        return nextSeq++;
+    }
+
+    /**
+     * 次に書き足すメッセージの通し番号
+     */
+    synchronized long nextSeq() {
+        return nextSeq;
+    }
+
+    /**
+     * まだ残っている最も古いメッセージの通し番号
+     */
+    synchronized long firstSeq() {
+        return segments.get(0).firstSeq;
+    }
+
+    /**
+     * 通し番号のメッセージ（古いセグメントごと消えていたり、まだ書いていなければ null）
+     */
+    synchronized Entry read(long seq) {
+        if (seq < segments.get(0).firstSeq || seq >= nextSeq) return null;
+        Segment segment = segmentOf(seq);
+        int index = (int) (seq - segment.firstSeq);
+        return new Entry(seq, segment.room(index), segment.frame(index));
+    }
+
+    /**
+     * ルームのメッセージのうち、通し番号が after より後で before より前の最後の n 件（古い順）
+     * 返すバッファはマップした領域の読み取り専用スライスなので、そのまま送信キューに積める
+     */
+    synchronized List<ByteBuffer> tail(String room, int n, long after, long before) {
+        List<ByteBuffer> result = new ArrayList<>();
+        SeqList seqs = rooms.get(room);
+        if (seqs == null) return result;
+        long oldest = segments.get(0).firstSeq;
+        for (int i = seqs.lowerIndex(before); i >= 0 && result.size() < n; i--) {
+            long seq = seqs.get(i);
+            if (seq <= after || seq < oldest) break;
+            Segment segment = segmentOf(seq);
+            result.add(segment.frame((int) (seq - segment.firstSeq)));
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    private Segment segmentOf(long seq) {
+        int lo = 0, hi = segments.size() - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (segments.get(mid).firstSeq <= seq) lo = mid; else hi = mid - 1;
+        }
+        return segments.get(lo);
+    }
+
+    @Override
+    public void close() throws IOException {
+        background.shutdown();
+        try {
+            background.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            closed = true;
+            for (Segment segment : segments) {
+                segment.map.force();
+            }
+            profileLog.close();
+            if (spareFile != null) Files.deleteIfExists(spareFile);
+            spareFile = null;
+            spareMap = null;
+        }
+    }
+
+    /**
+     * 次のセグメントに切り替える。準備済みのものがあれば名前を変えて使い、消すファイルと次の準備は裏のスレッドに任せる
+     */
+    private Segment roll() throws IOException {
+        Path file = dir.resolve(String.format("%020d.seg", nextSeq));
+        Segment segment;
+        if (spareMap != null) {
+            Files.move(spareFile, file, StandardCopyOption.ATOMIC_MOVE);
+            segment = new Segment(file, nextSeq, spareMap);
+            spareFile = null;
+            spareMap = null;
+        } else {
+            segment = map(file, nextSeq);
+        }
+        segments.add(segment);
+        List<Path> expired = new ArrayList<>();
+        while (segments.size() > maxSegments) {
+            expired.add(segments.remove(0).file);
+        }
+        // 消したセグメントのぶんは各ルームの一覧からも外す（空になったルームごと）
+        long oldest = segments.get(0).firstSeq;
+        rooms.values().removeIf(seqs -> seqs.dropBefore(oldest));
+        inBackground(() -> {
+            for (Path old : expired) {
+                try {
+                    Files.deleteIfExists(old);
+                } catch (IOException e) {
+                    System.err.println("古いセグメントの削除エラー: " + e.getMessage());
+                }
+            }
+            prepareSpare();
+        });
+        return segment;
+    }
+
+    private void inBackground(Runnable task) {
+        try {
+            background.execute(task);
+        } catch (RejectedExecutionException ignored) {
+            // 閉じた後（古いファイルは次に開いたときに残っていてもよい）
+        }
+    }
+
+    // 裏のスレッドで次のセグメントを作ってマップしておく（ジャーナルで同期するのは出来上がったものを置くときだけ）
+    private void prepareSpare() {
+        synchronized (this) {
+            if (closed || spareMap != null) return;
+        }
+        try {
+            Path file = Files.createTempFile(dir, "next", ".spare");
+            MappedByteBuffer map = mapFile(file);
+            synchronized (this) {
+                if (!closed && spareMap == null) {
+                    spareFile = file;
+                    spareMap = map;
+                    return;
+                }
+            }
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            System.err.println("ジャーナルのセグメント準備エラー: " + e.getMessage());
+        }
+    }
+
+    private Segment map(Path file, long firstSeq) throws IOException {
+        Segment segment = new Segment(file, firstSeq, mapFile(file));
+        segment.scan();
+        return segment;
+    }
+
+    private MappedByteBuffer mapFile(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            // マップ後はチャネルを閉じてもよい（マップは残る）
+            long size = Math.max(ch.size(), segmentBytes);
+            return ch.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    /**
+     * 読み出した1件（frame はマップした領域の読み取り専用スライス）
+     */
+    static final class Entry {
+        final long seq;
+        final String room;
+        final ByteBuffer frame;
+
+        Entry(long seq, String room, ByteBuffer frame) {
+            this.seq = seq;
+            this.room = room;
+            this.frame = frame;
+        }
+    }
+
+    /**
+     * 1つのセグメントファイルと、その中の各レコードの位置
+     */
+    private static final class Segment {
+        final Path file;
+        final long firstSeq;
+        final MappedByteBuffer map;
+        int[] offsets = new int[1024];
+        int count;
+        int end;
+
+        Segment(Path file, long firstSeq, MappedByteBuffer map) {
+            this.file = file;
+            this.firstSeq = firstSeq;
+            this.map = map;
+        }
+
+        void add(int pos, int length) {
+            if (count == offsets.length) offsets = Arrays.copyOf(offsets, count * 2);
+            offsets[count++] = pos;
+            end = pos + length;
+        }
+
+        // 書き込み済みのレコードを先頭から読んで索引を作る（フレーム先頭に MAGIC がない所で終わり）
+        void scan() {
+            int pos = 0;
+            while (pos + SEQ_SIZE + 1 <= map.capacity() && map.getLong(pos) == firstSeq + count) {
+                int header = SEQ_SIZE + 1 + (map.get(pos + SEQ_SIZE) & 0xFF);
+                if (pos + header + BinaryCodec.HEADER_SIZE > map.capacity()
+                        || map.get(pos + header) != BinaryCodec.MAGIC) break;
+                int len = BinaryCodec.HEADER_SIZE + map.getInt(pos + header + 3);
+                if (len < BinaryCodec.HEADER_SIZE || pos + header + len > map.capacity()) break;
+                add(pos, header + len);
+                pos += header + len;
+            }
+            end = pos;
+        }
+
+        String room(int index) {
+            int pos = offsets[index] + SEQ_SIZE;
+            byte[] name = new byte[map.get(pos) & 0xFF];
+            map.get(pos + 1, name);
+            return new String(name, StandardCharsets.UTF_8);
+        }
+
+        ByteBuffer frame(int index) {
+            int pos = offsets[index] + SEQ_SIZE;
+            pos += 1 + (map.get(pos) & 0xFF);
+            int len = BinaryCodec.HEADER_SIZE + map.getInt(pos + 3);
+            return map.slice(pos, len).asReadOnlyBuffer();
+        }
+    }
+
+    /**
+     * 昇順に並んだ通し番号の一覧
+     */
+    private static final class SeqList {
+        long[] seqs = new long[16];
+        int size;
+
+        void add(long seq) {
+            if (size == seqs.length) seqs = Arrays.copyOf(seqs, size * 2);
+            seqs[size++] = seq;
+        }
+
+        long get(int i) {
+            return seqs[i];
+        }
+
+        // seq より小さい最後の要素の位置（なければ -1）
+        int lowerIndex(long seq) {
+            int i = Arrays.binarySearch(seqs, 0, size, seq);
+            return (i >= 0 ? i : -i - 1) - 1;
+        }
+
+        // seq より前を捨て、空になったら true
+        boolean dropBefore(long seq) {
+            int n = lowerIndex(seq) + 1;
+            if (n > 0) {
+                System.arraycopy(seqs, n, seqs, 0, size - n);
+                size -= n;
+            }
+            return size == 0;
+        }
+    }
+}
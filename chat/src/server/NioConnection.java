@@ -0,0 +1,254 @@
+package server;
+
+import protocol.Frame;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * NioEngine 上の1接続
+ * 読み込みはイベントループスレッドのみ、send は任意のスレッドから呼ばれる
+ * 受信の制限にかかったら OP_READ を外し、待ち時間が過ぎるか受信予算に空きができたらイベントループで付け直す
+ *
+ * 受信したフレームの処理（ファイルの読み書きやジャーナルへの追記を含む）はイベントループでは行わず、
+ * 接続ごとの処理待ちに積んで NioEngine のワーカーで1つずつ順に処理する（同じ接続のフレームの順序は変わらない）
+ * 処理待ちが MAX_BACKLOG_BYTES を超えたら、ワーカーが追いつくまでこの接続の読み込みを止める
+ * 切断後の登録解除も処理待ちの最後に積むので、処理中のフレームとは重ならない
+ * close はワーカーからも呼ばれ、イベントループが触っている途中でキーが無効になることがあるので、
+ * 関心の付け外しは setInterest でキーが有効なときだけ行う
+ */
+class NioConnection extends Connection {
+    // 1回の書き込み（writev）でまとめて送るフレームの最大数
+    static final int WRITE_BATCH = 64;
+    // 読み込みを止める処理待ちの量と、1フレームあたりに見積もる本文以外の大きさ
+    private static final long MAX_BACKLOG_BYTES = (long) Frame.DOWNLOAD_WINDOW * Frame.CHUNK_SIZE;
+    private static final int FRAME_OVERHEAD = 256;
+    // ワーカーが1回に続けて処理するフレーム数（ほかの接続を待たせないように、超えたら積み直す）
+    private static final int DRAIN_BATCH = 16;
+    // 処理待ちの最後に積む、登録解除の印
+    private static final Frame UNREGISTER = new Frame("", null, null);
+
+    private final NioEngine engine;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final String remoteAddress;
+
+    // 送信キューから取り出して書いている途中のフレーム（batch[batchStart..batchEnd)）
+    private final ByteBuffer[] batch = new ByteBuffer[WRITE_BATCH];
+    private int batchStart;
+    private int batchEnd;
+    private final AtomicBoolean writeRequested = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    // 処理待ちのフレーム（tasks で保護する）
+    private final ArrayDeque<Frame> tasks = new ArrayDeque<>();
+    private boolean draining;
+    private long backlogBytes;
+
+    NioConnection(ChatServer server, NioEngine engine, SocketChannel channel, SelectionKey key) {
+        super(server);
+        this.engine = engine;
+        this.channel = channel;
+        this.key = key;
+        this.remoteAddress = String.valueOf(channel.socket().getRemoteSocketAddress());
+    }
+
+    void read(ByteBuffer buffer) {
+        int n;
+        try {
+            buffer.clear();
+            n = channel.read(buffer);
+        } catch (IOException e) {
+            System.err.println("通信エラー: " + e.getMessage());
+            close();
+            return;
+        }
+        if (n < 0) {
+            close();
+            return;
+        }
+        buffer.flip();
+        try {
+            onBytes(buffer);
+            long delay = readDelayNanos();
+            if (delay != 0 || isBacklogged()) {
+                setInterest(0, SelectionKey.OP_READ);
+                // 処理待ちで止めたときは、ワーカーが追いついたら requestResume で再開する
+                if (delay != 0) engine.resumeLater(this, delay == WAIT_INGEST ? INGEST_RECHECK_NANOS : delay);
+            }
+        } catch (ProtocolException e) {
+            System.err.println("プロトコルエラー: " + e.getMessage());
+            close();
+        }
+    }
+
+    /**
+     * 止めていた読み込みを、制限が解けていれば再開する（イベントループスレッドからのみ呼ぶ）
+     */
+    void resumeReading() {
+        if (closed.get()) return;
+        try {
+            long delay = readDelayNanos();
+            if (delay != 0) {
+                engine.resumeLater(this, delay == WAIT_INGEST ? INGEST_RECHECK_NANOS : delay);
+                return;
+            }
+        } catch (ProtocolException e) {
+            System.err.println("プロトコルエラー: " + e.getMessage());
+            close();
+            return;
+        }
+        if (isBacklogged()) return;
+        setInterest(SelectionKey.OP_READ, 0);
+    }
+
+    // 関心のあるイベントを付け外しする（イベントループスレッドからのみ呼ぶ。閉じた後なら何もしない）
+    private void setInterest(int add, int remove) {
+        if (!key.isValid()) return;
+        try {
+            key.interestOps((key.interestOps() | add) & ~remove);
+        } catch (CancelledKeyException ignored) {
+            // 確かめた直後にほかのスレッドが閉じた
+        }
+    }
+
+    @Override
+    protected void dispatch(Frame frame) {
+        enqueue(frame);
+    }
+
+    private void enqueue(Frame frame) {
+        int cost = cost(frame);
+        server.getIngestBudget().reserve(cost);
+        boolean start;
+        synchronized (tasks) {
+            tasks.add(frame);
+            backlogBytes += cost;
+            start = !draining;
+            draining = true;
+        }
+        if (start) engine.execute(this::drain);
+    }
+
+    /**
+     * 処理待ちのフレームを順に処理する（ワーカーのスレッドで。同時に2つのワーカーが処理することはない）
+     */
+    private void drain() {
+        for (int i = 0; i < DRAIN_BATCH; i++) {
+            Frame frame;
+            synchronized (tasks) {
+                frame = tasks.poll();
+                if (frame == null) {
+                    draining = false;
+                    return;
+                }
+            }
+            if (frame == UNREGISTER) {
+                server.unregister(this);
+            } else if (!closed.get()) {
+                try {
+                    server.handle(this, frame);
+                } catch (RuntimeException e) {
+                    System.err.println("フレームの処理エラー: " + remoteAddress() + " " + e);
+                }
+            }
+            int cost = cost(frame);
+            boolean resume;
+            synchronized (tasks) {
+                resume = backlogBytes > MAX_BACKLOG_BYTES && backlogBytes - cost <= MAX_BACKLOG_BYTES;
+                backlogBytes -= cost;
+            }
+            server.getIngestBudget().release(cost);
+            if (resume) engine.requestResume(this);
+        }
+        engine.execute(this::drain);
+    }
+
+    private boolean isBacklogged() {
+        synchronized (tasks) {
+            return backlogBytes > MAX_BACKLOG_BYTES;
+        }
+    }
+
+    private static int cost(Frame frame) {
+        return frame == UNREGISTER ? 0 : frame.getBody().length + FRAME_OVERHEAD;
+    }
+
+    @Override
+    protected void onIngestAvailable() {
+        engine.requestResume(this);
+    }
+
+    @Override
+    protected void onQueued() {
+        if (engine.inEventLoop()) {
+            flush();
+        } else if (writeRequested.compareAndSet(false, true)) {
+            engine.requestWrite(this);
+        }
+    }
+
+    /**
+     * 送信待ちのバッファを書けるだけ書く（イベントループスレッドからのみ呼ぶ）
+     * 複数のフレームを1回の gathering write で書くので、小さいフレームが続いてもシステムコールは増えない
+     */
+    void flush() {
+        writeRequested.set(false);
+        if (closed.get()) {
+            // 閉じた後はイベントループだけが圧縮・伸長のバッファを解放する（読み書きと重ならないように）
+            closeCompressor();
+            closeDecoder();
+            return;
+        }
+        try {
+            while (true) {
+                if (batchStart == batchEnd) {
+                    batchStart = 0;
+                    batchEnd = outbound.drainTo(batch);
+                    if (batchEnd == 0) break;
+                    for (int i = 0; i < batchEnd; i++) {
+                        batch[i] = compress(batch[i]);
+                    }
+                }
+                wrote(channel.write(batch, batchStart, batchEnd - batchStart));
+                while (batchStart < batchEnd && !batch[batchStart].hasRemaining()) {
+                    batch[batchStart++] = null;
+                }
+                if (batchStart < batchEnd) {
+                    setInterest(SelectionKey.OP_WRITE, 0);
+                    return;
+                }
+            }
+            setInterest(0, SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            System.err.println("通信エラー: " + e.getMessage());
+            close();
+        }
+    }
+
+    @Override
+    void close() {
+        if (!closed.compareAndSet(false, true)) return;
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException ignored) {}
+        outbound.close();
+        // 受信側の予算はすぐに返し、ルームなどからの登録解除は処理待ちのフレームの後で行う
+        releaseIngest();
+        enqueue(UNREGISTER);
+        // 圧縮・伸長のバッファはイベントループで解放する
+        onQueued();
+    }
+
+    @Override
+    String remoteAddress() {
+        return remoteAddress;
+    }
+}
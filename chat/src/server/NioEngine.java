@@ -0,0 +1,199 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Selector による単一スレッドのイベントループエンジン
+ * 待機中の接続はスレッドもバッファも持たないため、接続数が増えてもメモリはほぼ一定
+ * イベントループは読み書きとフレームの解析だけを行い、受信したフレームの処理は
+ * 共有のワーカー（chat.workers 本）に任せる（ディスクの読み書きで全接続が止まらないように）
+ */
+class NioEngine implements ServerEngine {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final Queue<NioConnection> pendingWrites = new ConcurrentLinkedQueue<>();
+    private final Queue<NioConnection> pendingResumes = new ConcurrentLinkedQueue<>();
+    // 読み込みを止めている接続の再開予定（イベントループスレッドだけが触る）
+    private final PriorityQueue<Resume> timers = new PriorityQueue<>();
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread loopThread;
+    private ExecutorService workers;
+    private volatile boolean running;
+
+    @Override
+    public void start(ChatServer server, int port) throws IOException {
+        workers = Executors.newFixedThreadPool(Math.max(1, server.getConfig().getWorkerThreads()), r -> {
+            Thread t = new Thread(r, "chat-worker");
+            t.setDaemon(true);
+            return t;
+        });
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+        loopThread = new Thread(() -> loop(server), "chat-nio");
+        loopThread.start();
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        if (selector != null) selector.wakeup();
+    }
+
+    @Override
+    public String name() {
+        return "nio";
+    }
+
+    boolean inEventLoop() {
+        return Thread.currentThread() == loopThread;
+    }
+
+    /**
+     * 受信したフレームの処理をワーカーに渡す（停止後は捨てる）
+     */
+    void execute(Runnable task) {
+        try {
+            workers.execute(task);
+        } catch (RejectedExecutionException ignored) {
+            // 停止中
+        }
+    }
+
+    /**
+     * 別スレッドから書き込み待ちを登録し、イベントループを起こす
+     */
+    void requestWrite(NioConnection conn) {
+        pendingWrites.add(conn);
+        selector.wakeup();
+    }
+
+    /**
+     * 別スレッドから読み込みの再開を頼み、イベントループを起こす
+     */
+    void requestResume(NioConnection conn) {
+        pendingResumes.add(conn);
+        selector.wakeup();
+    }
+
+    /**
+     * delayNanos 後に読み込みの再開を試す（イベントループスレッドからのみ呼ぶ）
+     */
+    void resumeLater(NioConnection conn, long delayNanos) {
+        timers.add(new Resume(System.nanoTime() + delayNanos, conn));
+    }
+
+    private void loop(ChatServer server) {
+        try {
+            while (running) {
+                Resume next = timers.peek();
+                if (next == null) {
+                    selector.select();
+                } else {
+                    long millis = TimeUnit.NANOSECONDS.toMillis(next.at - System.nanoTime());
+                    if (millis > 0) selector.select(millis); else selector.selectNow();
+                }
+                NioConnection pending;
+                while ((pending = pendingWrites.poll()) != null) {
+                    NioConnection conn = pending;
+                    guard(conn, conn::flush);
+                }
+                while ((pending = pendingResumes.poll()) != null) {
+                    NioConnection conn = pending;
+                    guard(conn, conn::resumeReading);
+                }
+                long now = System.nanoTime();
+                while ((next = timers.peek()) != null && next.at - now <= 0) {
+                    NioConnection conn = timers.poll().conn;
+                    guard(conn, conn::resumeReading);
+                }
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        accept(server);
+                    } else {
+                        NioConnection conn = (NioConnection) key.attachment();
+                        guard(conn, () -> {
+                            if (key.isReadable()) conn.read(readBuffer);
+                            if (key.isValid() && key.isWritable()) conn.flush();
+                        });
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("イベントループエラー: " + e.getMessage());
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof NioConnection) {
+                    ((NioConnection) key.attachment()).close();
+                }
+            }
+            // 閉じた接続の処理待ち（登録解除を含む）を済ませてから止める
+            workers.shutdown();
+            try {
+                serverChannel.close();
+                selector.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    // 1つの接続の処理で起きた実行時例外はその接続を閉じるだけにし、イベントループは止めない
+    // （ほかのスレッドが閉じてキーが無効になった場合の CancelledKeyException を含む）
+    private static void guard(NioConnection conn, Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            System.err.println("接続の処理エラー: " + conn.remoteAddress() + " " + e);
+            conn.close();
+        }
+    }
+
+    private void accept(ChatServer server) throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            NioConnection conn = new NioConnection(server, this, channel, key);
+            key.attach(conn);
+            server.register(conn);
+        }
+    }
+
+    /**
+     * 読み込みの再開予定（at は System.nanoTime の値）
+     */
+    private static final class Resume implements Comparable<Resume> {
+        final long at;
+        final NioConnection conn;
+
+        Resume(long at, NioConnection conn) {
+            this.at = at;
+            this.conn = conn;
+        }
+
+        @Override
+        public int compareTo(Resume o) {
+            return Long.compare(at - o.at, 0);
+        }
+    }
+}
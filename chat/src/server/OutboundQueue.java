@@ -0,0 +1,162 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * 接続ごとの上限付き送信キュー
+ * 配信側は offer で積むだけでブロックせず、書き込み側（ライタースレッド / イベントループ）がまとめて取り出す
+ * 取り出したフレームはキューから外れるので、書きかけのフレームが捨てられることはない
+ */
+class OutboundQueue {
+    private final ArrayDeque<ByteBuffer> frames = new ArrayDeque<>();
+    // frames と同じ順に、そのフレームを COALESCE で捨ててよいか
+    private final ArrayDeque<Boolean> coalescible = new ArrayDeque<>();
+    private final int capacity;
+    private final long maxBytes;
+    private final OverflowPolicy policy;
+    private long queuedBytes;
+    private long dropped;
+    private boolean closed;
+
+    OutboundQueue(int capacity, long maxBytes, OverflowPolicy policy) {
+        this.capacity = capacity;
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+    }
+
+    /**
+     * フレームを積む。あふれて切断すべきときだけ false を返す
+     * COALESCE では、キュー内の古いフレームのうち canCoalesce を付けて積んだもの（通し番号のない配信）だけを捨てる
+     * それでも入らなければ、新しいフレームも捨ててよいものなら捨て、そうでなければ（通し番号付きのメッセージ）
+     * 切断して、再接続したクライアントに送り直させる
+     */
+    synchronized boolean offer(ByteBuffer frame, boolean canCoalesce) {
+        if (closed) return true;
+        if (isFull(frame.remaining())) {
+            switch (policy) {
+                case DROP:
+                    dropped++;
+                    return true;
+                case DISCONNECT:
+                    return false;
+                case COALESCE:
+                    if (!evictCoalescible(frame.remaining())) {
+                        if (!canCoalesce) return false;
+                        dropped++;
+                        return true;
+                    }
+                    break;
+            }
+        }
+        push(frame, canCoalesce);
+        return true;
+    }
+
+    /**
+     * 上限を無視して必ず積む（要求への応答など、捨てるとクライアントが待ち続けるもの用）
+     * 上限は見ないので、キューの伸びは呼び出し側で抑える（要求の数は流量の制限で抑え、
+     * DOWNLOAD は応答を読まずに要求を重ねて上限を超えた接続を切断する）
+     */
+    synchronized void add(ByteBuffer frame) {
+        if (closed) return;
+        push(frame, false);
+    }
+
+    private void push(ByteBuffer frame, boolean canCoalesce) {
+        frames.add(frame);
+        coalescible.add(canCoalesce ? Boolean.TRUE : Boolean.FALSE);
+        queuedBytes += frame.remaining();
+        notifyAll();
+    }
+
+    // 古いものから、捨ててよいフレームを incoming が入るまで捨てる。捨てても入らなければ何も捨てずに false
+    private boolean evictCoalescible(int incoming) {
+        int count = 0;
+        long bytes = 0;
+        int evict = 0;
+        Iterator<Boolean> flags = coalescible.iterator();
+        for (ByteBuffer frame : frames) {
+            if (flags.next()) {
+                count++;
+                bytes += frame.remaining();
+                if (!isFull(frames.size() - count, queuedBytes - bytes, incoming)) {
+                    evict = count;
+                    break;
+                }
+            }
+        }
+        if (evict == 0) return false;
+        Iterator<ByteBuffer> it = frames.iterator();
+        flags = coalescible.iterator();
+        while (evict > 0) {
+            ByteBuffer frame = it.next();
+            if (!flags.next()) continue;
+            it.remove();
+            flags.remove();
+            queuedBytes -= frame.remaining();
+            dropped++;
+            evict--;
+        }
+        return true;
+    }
+
+    /**
+     * 先頭から最大 batch.length 個をまとめて取り出し、取り出した数を返す（まとめて書き出す用）
+     */
+    synchronized int drainTo(ByteBuffer[] batch) {
+        int n = 0;
+        ByteBuffer frame;
+        while (n < batch.length && (frame = frames.poll()) != null) {
+            coalescible.poll();
+            queuedBytes -= frame.remaining();
+            batch[n++] = frame;
+        }
+        return n;
+    }
+
+    /**
+     * フレームが来るまで待ってからまとめて取り出す。close 後は 0 を返す
+     */
+    synchronized int takeBatch(ByteBuffer[] batch) throws InterruptedException {
+        while (frames.isEmpty() && !closed) {
+            wait();
+        }
+        return drainTo(batch);
+    }
+
+    synchronized void close() {
+        closed = true;
+        frames.clear();
+        coalescible.clear();
+        queuedBytes = 0;
+        notifyAll();
+    }
+
+    synchronized boolean isEmpty() {
+        return frames.isEmpty();
+    }
+
+    synchronized int size() {
+        return frames.size();
+    }
+
+    synchronized long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    synchronized long getDropped() {
+        return dropped;
+    }
+
+    // 空のキューには大きなフレームでも1つは入れる（ファイル送信を常に拒否しないため）
+    private boolean isFull(int incoming) {
+        return isFull(frames.size(), queuedBytes, incoming);
+    }
+
+    private boolean isFull(int count, long bytes, int incoming) {
+        if (count == 0) return false;
+        return count >= capacity || bytes + incoming > maxBytes;
+    }
+}
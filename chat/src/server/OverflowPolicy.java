@@ -0,0 +1,21 @@
+package server;
+
+/**
+ * 送信キューがあふれたときの扱い
+ */
+public enum OverflowPolicy {
+    /** 新しいフレームを捨てる（キュー内の古いフレームは残す） */
+    DROP,
+    /** 遅いクライアントとみなして切断する */
+    DISCONNECT,
+    /**
+     * キュー内の古い配信を捨てて新しいフレームを入れる（最新の発言を優先）
+     * 捨てるのは通し番号のない配信だけで、要求への応答や通し番号付きのメッセージは捨てない
+     * （通し番号付きのメッセージが入らなければ切断し、再接続で送り直させる）
+     */
+    COALESCE;
+
+    public static OverflowPolicy parse(String name) {
+        return valueOf(name.trim().toUpperCase());
+    }
+}
@@ -0,0 +1,109 @@
+package server;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 接続中・接続済みのユーザーのプロフィール一覧
+ * 内容が同じプロフィールは1つにまとめるので、再接続しても同じIDになり、一覧は重複しない
+ * 作成と全件取得は ChatServer がこのオブジェクトで同期したうえで呼ぶ
+ * クラスタでは ID の先頭にノード名を付けるので、ノードをまたいでも重複しない
+ * 上限を超えたら、接続中のユーザーのもの以外を長く使われていない順に忘れる（忘れた ID を参照する古いメッセージは送り直せない）
+ */
+class ProfileRegistry {
+    private final Map<Integer, List<UserProfile>> byContent = new HashMap<>();
+    private final Map<String, UserProfile> byId = new ConcurrentHashMap<>();
+    private final String prefix;
+    private final int max;
+    private int nextId = 1;
+
+    ProfileRegistry(String nodeId, int max) {
+        this.prefix = nodeId.isEmpty() ? "" : nodeId + ".";
+        this.max = max;
+    }
+
+    /**
+     * ID のプロフィール（なければ null）。参照されたものは忘れにくくなる
+     */
+    UserProfile get(String id) {
+        UserProfile p = byId.get(id);
+        if (p != null) p.touch();
+        return p;
+    }
+
+    /**
+     * 同じ内容のプロフィールを探す（なければ null）
+     */
+    UserProfile find(String nickname, String hobby, byte[] avatar) {
+        List<UserProfile> candidates = byContent.get(UserProfile.contentHash(nickname, hobby, avatar));
+        if (candidates == null) return null;
+        for (UserProfile p : candidates) {
+            if (p.sameAs(nickname, hobby, avatar)) {
+                p.touch();
+                return p;
+            }
+        }
+        return null;
+    }
+
+    UserProfile create(String nickname, String hobby, byte[] avatar) {
+        return add(new UserProfile(prefix + Integer.toString(nextId++, 36), nickname, hobby, avatar));
+    }
+
+    /**
+     * 保存済み・ほかのノードのプロフィールを同じIDで登録する（ジャーナルや中継のメッセージが参照できるように）
+     */
+    UserProfile restore(String id, String nickname, String hobby, byte[] avatar) {
+        UserProfile known = byId.get(id);
+        if (known != null) return known;
+        if (id.startsWith(prefix) && id.indexOf('.', prefix.length()) < 0) {
+            try {
+                nextId = Math.max(nextId, Integer.parseInt(id.substring(prefix.length()), 36) + 1);
+            } catch (NumberFormatException ignored) {}
+        }
+        return add(new UserProfile(id, nickname, hobby, avatar));
+    }
+
+    private UserProfile add(UserProfile p) {
+        String nickname = p.getNickname(), hobby = p.getHobby();
+        byte[] avatar = p.getAvatar();
+        byContent.computeIfAbsent(UserProfile.contentHash(nickname, hobby, avatar), k -> new ArrayList<>(1)).add(p);
+        byId.put(p.getId(), p);
+        return p;
+    }
+
+    /**
+     * 上限を超えていれば、keep 以外を長く使われていない順に上限の 9 割まで忘れる（忘れた数を返す）
+     * 超えるたびに並べ替えないよう、1割ぶん余裕を空ける
+     */
+    int trim(Set<UserProfile> keep) {
+        if (max <= 0 || byId.size() <= max) return 0;
+        List<UserProfile> candidates = new ArrayList<>(byId.values());
+        candidates.removeAll(keep);
+        candidates.sort(Comparator.comparingLong(UserProfile::getLastUsed));
+        int excess = byId.size() - max * 9 / 10, removed = 0;
+        for (UserProfile p : candidates) {
+            if (removed >= excess) break;
+            remove(p);
+            removed++;
+        }
+        return removed;
+    }
+
+    private void remove(UserProfile p) {
+        byId.remove(p.getId());
+        int hash = UserProfile.contentHash(p.getNickname(), p.getHobby(), p.getAvatar());
+        List<UserProfile> same = byContent.get(hash);
+        if (same == null) return;
+        same.remove(p);
+        if (same.isEmpty()) byContent.remove(hash);
+    }
+
+    boolean isFull() {
+        return max > 0 && byId.size() > max;
+    }
+
+    Collection<UserProfile> all() {
+        return byId.values();
+    }
+}
@@ -0,0 +1,28 @@
+package server;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * 名前付きのルームとその参加者
+ * 参加・退出は並行集合への追加・削除だけなので、全接続ぶんの配列を作り直すことはない
+ * 配信はこのルームの参加者だけをたどる
+ * 参加・退出・配信はこのオブジェクトで同期する
+ */
+class Room {
+    private static final Pattern NAME = Pattern.compile("[^\\p{Cntrl}|]{1,64}");
+
+    final String name;
+    final Set<Connection> members = ConcurrentHashMap.newKeySet();
+    // 空になって rooms から外された（このオブジェクトで同期して読み書きする。外されたルームには入らず、作り直す）
+    boolean removed;
+
+    Room(String name) {
+        this.name = name;
+    }
+
+    static boolean isValidName(String name) {
+        return NAME.matcher(name).matches();
+    }
+}
@@ -0,0 +1,601 @@
+package server;
+
+import protocol.BinaryCodec;
+import protocol.Frame;
+
+import java.io.*;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * ジャーナルに保存した TEXT メッセージの全文検索用の n-gram 転置索引
+ * キーは (ルーム名のハッシュ, 1文字 または 連続する2文字)、値はそのキーを含むメッセージの通し番号（昇順）
+ *
+ * 索引は専用スレッドがジャーナルを後から読んで作るので、配信側は notifyAppended で起こすだけで待たない
+ * 新しい分はメモリに持ち、一定量たまったら変更しないファイル（search/<先頭>-<末尾>.idx）に書き出す
+ *   postings: キーごとに通し番号の差分を varint で並べたもの
+ *   dict    : キーの昇順に i64 キー, i32 件数, i32 postings 内の位置
+ *   footer  : i64 先頭の通し番号, i64 末尾の通し番号, i32 キーの数, i32 MAGIC
+ * 大きさの近い隣どうしのファイルはまとめる。通し番号の範囲が重ならないので、1件のメッセージのキーは必ず同じファイルにある
+ * 起動時はファイルの末尾の通し番号より後ろをジャーナルから索引し直す
+ *
+ * 索引は候補を絞るだけで、候補はジャーナルから読んで本当に検索語を含むか確かめる
+ */
+class SearchIndex implements Closeable {
+    /** 1ページの件数の上限 */
+    static final int MAX_LIMIT = 100;
+
+    private static final int MAGIC = 0x43534958; // "CSIX"
+    private static final int FOOTER_SIZE = 8 + 8 + 4 + 4;
+    private static final int DICT_ENTRY_SIZE = 8 + 4 + 4;
+    // メモリの分をファイルに書き出すまでの件数（通し番号の数）
+    private static final int FLUSH_POSTINGS = 4 << 20;
+    // これより大きくなるまとめ方はしない（postings の位置を int で持つため）
+    private static final long MAX_RUN_BYTES = 1L << 30;
+    // 候補の絞り込みに使うキーの数（件数の少ないものから）
+    private static final int INTERSECT_KEYS = 3;
+
+    private final MessageJournal journal;
+    private final Path dir;
+    private final Thread indexer;
+    private final ExecutorService searchers;
+    private volatile List<Run> runs;
+    private volatile boolean running = true;
+
+    // まだファイルにしていない分（this で保護する）
+    private Map<Long, SeqList> memory = new HashMap<>();
+    private long memoryFirst;
+    private int memoryPostings;
+    // 次に索引する通し番号（索引スレッドだけが触る）
+    private long next;
+
+    private SearchIndex(MessageJournal journal, Path dir, List<Run> runs, int threads) {
+        this.journal = journal;
+        this.dir = dir;
+        this.runs = runs;
+        this.next = runs.isEmpty() ? journal.firstSeq() : runs.get(runs.size() - 1).lastSeq + 1;
+        this.memoryFirst = next;
+        this.indexer = new Thread(this::indexLoop, "chat-search-index");
+        indexer.setDaemon(true);
+        this.searchers = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread t = new Thread(r, "chat-search");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * 索引を開き、ジャーナルに追いつくまでの索引を裏で始める
+     */
+    static SearchIndex open(MessageJournal journal, Path dir, int threads) throws IOException {
+        Files.createDirectories(dir);
+        List<Path> files;
+        try (Stream<Path> list = Files.list(dir)) {
+            files = list.filter(p -> p.getFileName().toString().endsWith(".idx")).sorted().toList();
+        }
+        List<Run> runs = new ArrayList<>();
+        boolean broken = false;
+        for (Path file : files) {
+            Run run = null;
+            if (!broken) {
+                try {
+                    run = Run.open(file);
+                } catch (IOException e) {
+                    // 壊れていたら、それ以降はジャーナルから作り直す（通し番号の範囲に穴をあけないため）
+                    System.err.println("検索索引を読めませんでした: " + file.getFileName() + " " + e.getMessage());
+                    broken = true;
+                }
+            }
+            // まとめ終えた後に元のファイルを消す前に落ちた場合は、範囲が重なるほうを捨てる
+            if (run == null || !runs.isEmpty() && run.firstSeq <= runs.get(runs.size() - 1).lastSeq) {
+                Files.deleteIfExists(file);
+                continue;
+            }
+            runs.add(run);
+        }
+        SearchIndex index = new SearchIndex(journal, dir, List.copyOf(runs), threads);
+        index.indexer.start();
+        return index;
+    }
+
+    /**
+     * ジャーナルに書き足したことを索引スレッドに知らせる（配信スレッドから呼ばれる。待たない）
+     */
+    void notifyAppended() {
+        LockSupport.unpark(indexer);
+    }
+
+    /**
+     * 検索を裏のスレッドで行い、結果を callback に渡す（受信スレッド / イベントループを止めない）
+     */
+    void submit(String room, String query, long before, int limit, Consumer<Result> callback) {
+        searchers.execute(() -> callback.accept(search(room, query, before, limit)));
+    }
+
+    /**
+     * ルームの TEXT メッセージのうち、通し番号が before より前で query を含むものを新しい順に limit 件まで
+     * 大文字と小文字は区別しない
+     */
+    Result search(String room, String query, long before, int limit) {
+        String needle = normalize(query);
+        limit = Math.max(1, Math.min(limit, MAX_LIMIT));
+        List<Hit> hits = new ArrayList<>();
+        if (needle.isEmpty()) return new Result(hits, 0);
+        long[] keys = keys(room.hashCode(), needle, true);
+
+        // 新しいものから順に、メモリの分 → ファイル（新しい順）
+        List<Source> sources = snapshot(keys);
+        long oldest = journal.firstSeq();
+        for (Source source : sources) {
+            if (source.first() >= before) continue;
+            if (source.last() < oldest || !collect(source, keys, room, needle, before, limit + 1, hits)) break;
+        }
+        // 1件余分に探して、次のページがあるかを決める
+        long nextBefore = 0;
+        if (hits.size() > limit) {
+            hits.remove(limit);
+            nextBefore = hits.get(limit - 1).seq;
+        }
+        return new Result(hits, nextBefore);
+    }
+
+    // source の中の候補を新しい順に確かめて hits に足す。件数に達したら false
+    private boolean collect(Source source, long[] keys, String room, String needle, long before, int want,
+                            List<Hit> hits) {
+        Integer[] order = new Integer[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            order[i] = i;
+            if (source.count(keys[i]) == 0) return true; // このファイルには含むメッセージがない
+        }
+        Arrays.sort(order, Comparator.comparingInt(i -> source.count(keys[i])));
+        long[] driver = source.postings(keys[order[0]]);
+        long[][] filters = new long[Math.min(INTERSECT_KEYS, keys.length) - 1][];
+        for (int i = 0; i < filters.length; i++) {
+            filters[i] = source.postings(keys[order[i + 1]]);
+        }
+        int from = Arrays.binarySearch(driver, before);
+        from = (from >= 0 ? from : -from - 1) - 1;
+        candidates:
+        for (int i = from; i >= 0; i--) {
+            long seq = driver[i];
+            for (long[] filter : filters) {
+                if (Arrays.binarySearch(filter, seq) < 0) continue candidates;
+            }
+            MessageJournal.Entry entry = journal.read(seq);
+            if (entry == null) return false; // ここより前はジャーナルから消えている
+            if (!entry.room.equals(room)) continue;
+            Frame frame = decode(entry.frame);
+            if (frame != null && Frame.TEXT.equals(frame.getType()) && normalize(frame.getBodyText()).contains(needle)) {
+                hits.add(new Hit(seq, frame));
+                if (hits.size() >= want) return false;
+            }
+        }
+        return true;
+    }
+
+    private static Frame decode(ByteBuffer encoded) {
+        try {
+            return BinaryCodec.decodePayload(encoded.slice(encoded.position() + BinaryCodec.HEADER_SIZE,
+                    encoded.remaining() - BinaryCodec.HEADER_SIZE));
+        } catch (ProtocolException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        searchers.shutdownNow();
+        LockSupport.unpark(indexer);
+        try {
+            indexer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void indexLoop() {
+        while (running) {
+            try {
+                long end = journal.nextSeq();
+                while (next < end && running) {
+                    indexOne(next++);
+                    if (memoryPostings >= FLUSH_POSTINGS) {
+                        flush();
+                        compact();
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                System.err.println("検索索引の更新エラー: " + e.getMessage());
+            }
+            LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+        }
+        // 止めるときに残りを書き出しておけば、次の起動で索引し直さずに済む
+        try {
+            flush();
+        } catch (IOException e) {
+            System.err.println("検索索引を書き出せませんでした: " + e.getMessage());
+        }
+    }
+
+    private void indexOne(long seq) {
+        MessageJournal.Entry entry = journal.read(seq);
+        if (entry == null) {
+            // 索引が追いつく前に古いセグメントが消えた
+            next = Math.max(next, journal.firstSeq());
+            return;
+        }
+        Frame frame = decode(entry.frame);
+        if (frame == null || !Frame.TEXT.equals(frame.getType())) return;
+        long[] keys = keys(entry.room.hashCode(), normalize(frame.getBodyText()), false);
+        synchronized (this) {
+            for (long key : keys) {
+                memory.computeIfAbsent(key, k -> new SeqList()).add(seq);
+            }
+            memoryPostings += keys.length;
+        }
+    }
+
+    // メモリの分をファイルにして、検索対象をそのファイルに切り替える
+    private void flush() throws IOException {
+        Map<Long, SeqList> flushing;
+        long first, last = next - 1;
+        synchronized (this) {
+            if (memory.isEmpty()) {
+                memoryFirst = next;
+                return;
+            }
+            flushing = memory;
+            first = memoryFirst;
+        }
+        long[] keys = new long[flushing.size()];
+        int n = 0;
+        for (long key : flushing.keySet()) {
+            keys[n++] = key;
+        }
+        Arrays.sort(keys);
+        RunWriter writer = new RunWriter(dir, first, last, keys.length);
+        for (long key : keys) {
+            SeqList list = flushing.get(key);
+            writer.add(key, list.seqs, list.size);
+        }
+        Run run = writer.finish();
+        synchronized (this) {
+            List<Run> updated = new ArrayList<>(runs);
+            updated.add(run);
+            runs = List.copyOf(updated);
+            memory = new HashMap<>();
+            memoryPostings = 0;
+            memoryFirst = next;
+        }
+    }
+
+    // 新しいほうから隣どうしを、大きさが同じくらいのうちはまとめる（ファイルの数は全体の大きさの対数に収まる）
+    // ジャーナルから消えた分はファイルごと捨てる
+    private void compact() throws IOException {
+        long oldest = journal.firstSeq();
+        List<Run> current = new ArrayList<>(runs);
+        while (!current.isEmpty() && current.get(0).lastSeq < oldest) {
+            Files.deleteIfExists(current.remove(0).file);
+        }
+        while (current.size() >= 2) {
+            Run older = current.get(current.size() - 2), newer = current.get(current.size() - 1);
+            if (older.bytes() > newer.bytes() * 2 || older.bytes() + newer.bytes() > MAX_RUN_BYTES) break;
+            Run merged = merge(older, newer, oldest);
+            current.subList(current.size() - 2, current.size()).clear();
+            current.add(merged);
+            // 検索中のスレッドが古いファイルを読んでいても、マップは残るので消してよい
+            Files.deleteIfExists(older.file);
+            Files.deleteIfExists(newer.file);
+        }
+        runs = List.copyOf(current);
+    }
+
+    private Run merge(Run older, Run newer, long oldest) throws IOException {
+        long[] keys = union(older.keys, newer.keys);
+        RunWriter writer = new RunWriter(dir, older.firstSeq, newer.lastSeq, keys.length);
+        for (long key : keys) {
+            long[] a = older.postings(key), b = newer.postings(key);
+            long[] seqs = Arrays.copyOf(a, a.length + b.length);
+            System.arraycopy(b, 0, seqs, a.length, b.length);
+            int from = 0;
+            while (from < seqs.length && seqs[from] < oldest) from++;
+            writer.add(key, Arrays.copyOfRange(seqs, from, seqs.length), seqs.length - from);
+        }
+        return writer.finish();
+    }
+
+    private static long[] union(long[] a, long[] b) {
+        long[] out = new long[a.length + b.length];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length || j < b.length) {
+            long v = j == b.length || (i < a.length && a[i] <= b[j]) ? a[i] : b[j];
+            if (i < a.length && a[i] == v) i++;
+            if (j < b.length && b[j] == v) j++;
+            out[n++] = v;
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    // メモリの分とファイルの一覧は書き出しの前後で食い違わないように同時に読む
+    private synchronized List<Source> snapshot(long[] keys) {
+        List<Source> sources = new ArrayList<>();
+        sources.add(memorySnapshot(keys));
+        for (int i = runs.size() - 1; i >= 0; i--) {
+            sources.add(runs.get(i));
+        }
+        return sources;
+    }
+
+    private Source memorySnapshot(long[] keys) {
+        Map<Long, long[]> lists = new HashMap<>();
+        for (long key : keys) {
+            SeqList list = memory.get(key);
+            if (list != null) lists.put(key, Arrays.copyOf(list.seqs, list.size));
+        }
+        long first = memoryFirst;
+        return new Source() {
+            public long first() {
+                return first;
+            }
+
+            public long last() {
+                return Long.MAX_VALUE;
+            }
+
+            public int count(long key) {
+                long[] seqs = lists.get(key);
+                return seqs == null ? 0 : seqs.length;
+            }
+
+            public long[] postings(long key) {
+                return lists.getOrDefault(key, new long[0]);
+            }
+        };
+    }
+
+    /**
+     * 大文字と小文字を区別しないための正規化（長さは変えない）
+     */
+    static String normalize(String text) {
+        char[] chars = text.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(chars[i]);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * 正規化した文字列のキー（重複なし）
+     * 索引には全部の1文字と2文字を入れる。検索語が2文字以上なら2文字のキーだけで絞り込む
+     */
+    static long[] keys(int roomHash, String text, boolean query) {
+        long room = (long) roomHash << 32;
+        boolean unigrams = !query || text.length() == 1;
+        long[] keys = new long[text.length() * 2];
+        int n = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (unigrams) keys[n++] = room | c;
+            if (i + 1 < text.length()) keys[n++] = room | ((long) c << 16 | text.charAt(i + 1)) & 0xFFFFFFFFL;
+        }
+        Arrays.sort(keys, 0, n);
+        int unique = 0;
+        for (int i = 0; i < n; i++) {
+            if (unique == 0 || keys[i] != keys[unique - 1]) keys[unique++] = keys[i];
+        }
+        return Arrays.copyOf(keys, unique);
+    }
+
+    /**
+     * 検索に一致したメッセージ（ジャーナルに保存した短縮形式のフレーム）
+     */
+    static final class Hit {
+        final long seq;
+        final Frame frame;
+
+        Hit(long seq, Frame frame) {
+            this.seq = seq;
+            this.frame = frame;
+        }
+    }
+
+    /**
+     * 1ページ分の検索結果（新しい順）と、次のページの before（なければ 0）
+     */
+    static final class Result {
+        final List<Hit> hits;
+        final long nextBefore;
+
+        Result(List<Hit> hits, long nextBefore) {
+            this.hits = hits;
+            this.nextBefore = nextBefore;
+        }
+    }
+
+    /**
+     * 通し番号の範囲と、キーごとの通し番号の一覧を持つもの（メモリの分とファイル）
+     */
+    private interface Source {
+        long first();
+
+        long last();
+
+        int count(long key);
+
+        long[] postings(long key);
+    }
+
+    /**
+     * 書き出し済みの変更しない索引ファイル（dict はメモリに読み、postings はマップした領域から読む）
+     */
+    private static final class Run implements Source {
+        final Path file;
+        final long firstSeq;
+        final long lastSeq;
+        final long[] keys;
+        final int[] counts;
+        final int[] offsets;
+        final ByteBuffer data;
+
+        private Run(Path file, long firstSeq, long lastSeq, long[] keys, int[] counts, int[] offsets, ByteBuffer data) {
+            this.file = file;
+            this.firstSeq = firstSeq;
+            this.lastSeq = lastSeq;
+            this.keys = keys;
+            this.counts = counts;
+            this.offsets = offsets;
+            this.data = data;
+        }
+
+        static Run open(Path file) throws IOException {
+            ByteBuffer map;
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+                map = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            }
+            int size = map.capacity();
+            if (size < FOOTER_SIZE || map.getInt(size - 4) != MAGIC) throw new IOException("footer がありません");
+            int footer = size - FOOTER_SIZE;
+            long firstSeq = map.getLong(footer), lastSeq = map.getLong(footer + 8);
+            int keyCount = map.getInt(footer + 16);
+            int dict = footer - keyCount * DICT_ENTRY_SIZE;
+            if (keyCount < 0 || dict < 0) throw new IOException("dict が不正です");
+            long[] keys = new long[keyCount];
+            int[] counts = new int[keyCount], offsets = new int[keyCount];
+            for (int i = 0; i < keyCount; i++) {
+                int pos = dict + i * DICT_ENTRY_SIZE;
+                keys[i] = map.getLong(pos);
+                counts[i] = map.getInt(pos + 8);
+                offsets[i] = map.getInt(pos + 12);
+            }
+            return new Run(file, firstSeq, lastSeq, keys, counts, offsets, map.slice(0, dict));
+        }
+
+        long bytes() {
+            return data.capacity();
+        }
+
+        @Override
+        public long first() {
+            return firstSeq;
+        }
+
+        @Override
+        public long last() {
+            return lastSeq;
+        }
+
+        @Override
+        public int count(long key) {
+            int i = Arrays.binarySearch(keys, key);
+            return i < 0 ? 0 : counts[i];
+        }
+
+        @Override
+        public long[] postings(long key) {
+            int i = Arrays.binarySearch(keys, key);
+            if (i < 0) return new long[0];
+            long[] seqs = new long[counts[i]];
+            int pos = offsets[i];
+            long seq = firstSeq;
+            for (int j = 0; j < seqs.length; j++) {
+                long delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data.get(pos++);
+                    delta |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                seqs[j] = seq += delta;
+            }
+            return seqs;
+        }
+    }
+
+    /**
+     * 索引ファイルを書く（一時ファイルに書いてから名前を変えるので、途中で落ちても読み込まれない）
+     */
+    private static final class RunWriter {
+        final Path file;
+        final Path tmp;
+        final long firstSeq;
+        final long lastSeq;
+        final DataOutputStream out;
+        final long[] keys;
+        final int[] counts;
+        final int[] offsets;
+        byte[] scratch = new byte[1024];
+        int n;
+
+        RunWriter(Path dir, long firstSeq, long lastSeq, int keyCount) throws IOException {
+            this.file = dir.resolve(String.format("%020d-%020d.idx", firstSeq, lastSeq));
+            this.tmp = dir.resolve(file.getFileName() + ".tmp");
+            this.firstSeq = firstSeq;
+            this.lastSeq = lastSeq;
+            this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16));
+            this.keys = new long[keyCount];
+            this.counts = new int[keyCount];
+            this.offsets = new int[keyCount];
+        }
+
+        void add(long key, long[] seqs, int size) throws IOException {
+            keys[n] = key;
+            counts[n] = size;
+            offsets[n] = out.size();
+            n++;
+            // 1件あたり最大10バイト。まとめて変換してから1回で書く
+            if (scratch.length < size * 10) scratch = new byte[size * 10];
+            int pos = 0;
+            long prev = firstSeq;
+            for (int i = 0; i < size; i++) {
+                long delta = seqs[i] - prev;
+                prev = seqs[i];
+                while ((delta & ~0x7FL) != 0) {
+                    scratch[pos++] = (byte) (delta & 0x7F | 0x80);
+                    delta >>>= 7;
+                }
+                scratch[pos++] = (byte) delta;
+            }
+            out.write(scratch, 0, pos);
+        }
+
+        Run finish() throws IOException {
+            try (out) {
+                for (int i = 0; i < n; i++) {
+                    out.writeLong(keys[i]);
+                    out.writeInt(counts[i]);
+                    out.writeInt(offsets[i]);
+                }
+                out.writeLong(firstSeq);
+                out.writeLong(lastSeq);
+                out.writeInt(n);
+                out.writeInt(MAGIC);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return Run.open(file);
+        }
+    }
+
+    /**
+     * 昇順に並んだ通し番号の一覧（メモリの分）
+     */
+    private static final class SeqList {
+        long[] seqs = new long[4];
+        int size;
+
+        void add(long seq) {
+            if (size == seqs.length) seqs = Arrays.copyOf(seqs, size * 2);
+            seqs[size++] = seq;
+        }
+    }
+}
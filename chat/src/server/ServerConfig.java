@@ -0,0 +1,476 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * サーバーの起動設定（システムプロパティ chat.* から読み込む）
+ */
+public class ServerConfig {
+    public static final int DEFAULT_PORT = 12345;
+
+    private int port = DEFAULT_PORT;
+    private String engine = "thread";
+    private int workerThreads = 8;
+    private int outboundCapacity = 256;
+    private long outboundMaxBytes = 16L * 1024 * 1024;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DROP;
+    private String dataDir = "chat-data";
+    private int legacyInlineLimit = 8 * 1024 * 1024;
+    private int thumbnailThreads = 2;
+    private long maxUploadBytes = 2L * 1024 * 1024 * 1024;
+    private int uploadExpireHours = 24;
+    private boolean journalEnabled = true;
+    private int journalSegmentBytes = 64 * 1024 * 1024;
+    private int journalMaxSegments = 16;
+    private int replayCount = 50;
+    private int resumeMax = 1000;
+    private int maxProfiles = 10000;
+    private boolean searchEnabled = true;
+    private int searchThreads = 2;
+    private String nodeId = "";
+    private int clusterPort;
+    private String clusterBind = "";
+    private List<String> clusterPeers = new ArrayList<>();
+    private int maxFrameSize = 16 * 1024 * 1024;
+    private int messageRate = 20;
+    private int messageBurst = 40;
+    private long byteRate = 4L * 1024 * 1024;
+    private long byteBurst = 8L * 1024 * 1024;
+    private long ingestMaxBytes = 256L * 1024 * 1024;
+    private boolean compression = true;
+    private int compressThreshold = 64;
+    private int metricsInterval = 60;
+    private boolean metricsLog = true;
+    private boolean metricsJmx = true;
+
+    /**
+     * システムプロパティから設定を生成
+     *   -Dchat.port=12345
+     *   -Dchat.engine=thread|virtual|nio
+     *   -Dchat.workers=8                      nio エンジンで受信したフレームを処理するスレッド数
+     *   -Dchat.outbound.capacity=256          接続ごとの送信キューのフレーム数上限
+     *   -Dchat.outbound.maxBytes=16777216     接続ごとの送信キューのバイト数上限
+     *   -Dchat.outbound.policy=drop|disconnect|coalesce
+     *   -Dchat.dataDir=chat-data              受信ファイルなどの保存先
+     *   -Dchat.legacyInlineLimit=8388608      従来クライアントへファイル本体を載せて送る上限
+     *   -Dchat.thumbnail.threads=2            添付画像の縮小版を作るスレッド数（0 なら縮小版を作らない）
+     *   -Dchat.upload.maxBytes=2147483648     アップロードできる1ファイルの上限（0 なら制限しない）
+     *   -Dchat.upload.expireHours=24          更新のない受信途中のアップロードを消すまでの時間（0 なら消さない）
+     *   -Dchat.journal=true|false             配信したメッセージをジャーナルに保存するか
+     *   -Dchat.journal.segmentBytes=67108864  ジャーナルの1セグメントの大きさ
+     *   -Dchat.journal.maxSegments=16         残しておくセグメント数（超えたら古いものから消す）
+     *   -Dchat.replay=50                      参加時に送り直す直近のメッセージ数
+     *   -Dchat.resume.max=1000                再接続したクライアントへ送り直す未受信のメッセージ数の上限
+     *   -Dchat.profiles.max=10000             覚えておくプロフィール数の上限（超えたら長く使われていないものから忘れる。0 なら制限しない）
+     *   -Dchat.search=true|false              ジャーナルの TEXT メッセージを全文検索できるようにするか
+     *   -Dchat.search.threads=2               検索を行うスレッド数
+     *   -Dchat.node=n1                        クラスタ内のノード名（ユーザーIDの接頭辞になる）
+     *   -Dchat.cluster.port=12445             ノード間の中継を受け付けるポート（0 なら単独で動く）
+     *   -Dchat.cluster.peers=host:port,...    ほかのノードの中継ポート（中継の接続はこれらのホストからだけ受け付ける）
+     *   -Dchat.cluster.bind=10.0.0.1          中継を受け付けるアドレス（空ならすべてのアドレス）
+     *   -Dchat.maxFrameSize=16777216          受信する1フレームの上限（超えたら切断する）
+     *   -Dchat.rate.messages=20               接続ごとに受け付ける毎秒のフレーム数（0 なら制限しない。CHUNK と HELLO は除く）
+     *   -Dchat.rate.messageBurst=40           続けて受け付けるフレーム数
+     *   -Dchat.rate.bytes=4194304             接続ごとに読み込む毎秒のバイト数（0 なら制限しない）
+     *   -Dchat.rate.byteBurst=8388608         続けて読み込むバイト数
+     *   -Dchat.ingest.maxBytes=268435456      受信途中のフレームをためるバッファの全接続の合計の上限（0 なら制限しない）
+     *   -Dchat.compress=true|false            HELLO で deflate を求めたバイナリ形式の接続に圧縮して送るか
+     *   -Dchat.compress.threshold=64          これより小さいペイロードは圧縮しない
+     *   -Dchat.metrics.interval=60            統計を集計する間隔（秒。0 なら集計しない）
+     *   -Dchat.metrics.log=true|false         集計のたびに統計をログに1行出すか
+     *   -Dchat.metrics.jmx=true|false         統計を JMX で公開するか
+     * クラスタで添付の本体（chat.dataDir の blobs）を共有していなければ、ダウンロードされたときにピアから取り寄せる
+     */
+    public static ServerConfig fromSystemProperties() {
+        ServerConfig config = new ServerConfig();
+        config.port = Integer.getInteger("chat.port", DEFAULT_PORT);
+        config.engine = System.getProperty("chat.engine", config.engine);
+        config.workerThreads = Integer.getInteger("chat.workers", config.workerThreads);
+        config.outboundCapacity = Integer.getInteger("chat.outbound.capacity", config.outboundCapacity);
+        config.outboundMaxBytes = Long.getLong("chat.outbound.maxBytes", config.outboundMaxBytes);
+        String policy = System.getProperty("chat.outbound.policy");
+        if (policy != null) config.overflowPolicy = OverflowPolicy.parse(policy);
+        config.dataDir = System.getProperty("chat.dataDir", config.dataDir);
+        config.legacyInlineLimit = Integer.getInteger("chat.legacyInlineLimit", config.legacyInlineLimit);
+        config.thumbnailThreads = Integer.getInteger("chat.thumbnail.threads", config.thumbnailThreads);
+        config.maxUploadBytes = Long.getLong("chat.upload.maxBytes", config.maxUploadBytes);
+        config.uploadExpireHours = Integer.getInteger("chat.upload.expireHours", config.uploadExpireHours);
+        config.journalEnabled = Boolean.parseBoolean(System.getProperty("chat.journal", "true"));
+        config.journalSegmentBytes = Integer.getInteger("chat.journal.segmentBytes", config.journalSegmentBytes);
+        config.journalMaxSegments = Integer.getInteger("chat.journal.maxSegments", config.journalMaxSegments);
+        config.replayCount = Integer.getInteger("chat.replay", config.replayCount);
+        config.resumeMax = Integer.getInteger("chat.resume.max", config.resumeMax);
+        config.maxProfiles = Integer.getInteger("chat.profiles.max", config.maxProfiles);
+        config.searchEnabled = Boolean.parseBoolean(System.getProperty("chat.search", "true"));
+        config.searchThreads = Integer.getInteger("chat.search.threads", config.searchThreads);
+        config.nodeId = System.getProperty("chat.node", config.nodeId);
+        config.clusterPort = Integer.getInteger("chat.cluster.port", config.clusterPort);
+        config.setClusterPeers(System.getProperty("chat.cluster.peers", ""));
+        config.clusterBind = System.getProperty("chat.cluster.bind", config.clusterBind);
+        config.maxFrameSize = Integer.getInteger("chat.maxFrameSize", config.maxFrameSize);
+        config.messageRate = Integer.getInteger("chat.rate.messages", config.messageRate);
+        config.messageBurst = Integer.getInteger("chat.rate.messageBurst", config.messageBurst);
+        config.byteRate = Long.getLong("chat.rate.bytes", config.byteRate);
+        config.byteBurst = Long.getLong("chat.rate.byteBurst", config.byteBurst);
+        config.ingestMaxBytes = Long.getLong("chat.ingest.maxBytes", config.ingestMaxBytes);
+        config.compression = Boolean.parseBoolean(System.getProperty("chat.compress", "true"));
+        config.compressThreshold = Integer.getInteger("chat.compress.threshold", config.compressThreshold);
+        config.metricsInterval = Integer.getInteger("chat.metrics.interval", config.metricsInterval);
+        config.metricsLog = Boolean.parseBoolean(System.getProperty("chat.metrics.log", "true"));
+        config.metricsJmx = Boolean.parseBoolean(System.getProperty("chat.metrics.jmx", "true"));
+        return config;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public ServerConfig setPort(int port) {
+        this.port = port;
+        return this;
+    }
+
+    public String getEngine() {
+        return engine;
+    }
+
+    public ServerConfig setEngine(String engine) {
+        this.engine = engine;
+        return this;
+    }
+
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    public ServerConfig setWorkerThreads(int workerThreads) {
+        this.workerThreads = workerThreads;
+        return this;
+    }
+
+    public int getOutboundCapacity() {
+        return outboundCapacity;
+    }
+
+    public ServerConfig setOutboundCapacity(int outboundCapacity) {
+        this.outboundCapacity = outboundCapacity;
+        return this;
+    }
+
+    public long getOutboundMaxBytes() {
+        return outboundMaxBytes;
+    }
+
+    public ServerConfig setOutboundMaxBytes(long outboundMaxBytes) {
+        this.outboundMaxBytes = outboundMaxBytes;
+        return this;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public ServerConfig setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+        return this;
+    }
+
+    public String getDataDir() {
+        return dataDir;
+    }
+
+    public ServerConfig setDataDir(String dataDir) {
+        this.dataDir = dataDir;
+        return this;
+    }
+
+    public int getLegacyInlineLimit() {
+        return legacyInlineLimit;
+    }
+
+    public ServerConfig setLegacyInlineLimit(int legacyInlineLimit) {
+        this.legacyInlineLimit = legacyInlineLimit;
+        return this;
+    }
+
+    public int getThumbnailThreads() {
+        return thumbnailThreads;
+    }
+
+    public ServerConfig setThumbnailThreads(int thumbnailThreads) {
+        this.thumbnailThreads = thumbnailThreads;
+        return this;
+    }
+
+    public long getMaxUploadBytes() {
+        return maxUploadBytes;
+    }
+
+    public ServerConfig setMaxUploadBytes(long maxUploadBytes) {
+        this.maxUploadBytes = maxUploadBytes;
+        return this;
+    }
+
+    public int getUploadExpireHours() {
+        return uploadExpireHours;
+    }
+
+    public ServerConfig setUploadExpireHours(int uploadExpireHours) {
+        this.uploadExpireHours = uploadExpireHours;
+        return this;
+    }
+
+    public boolean isJournalEnabled() {
+        return journalEnabled;
+    }
+
+    public ServerConfig setJournalEnabled(boolean journalEnabled) {
+        this.journalEnabled = journalEnabled;
+        return this;
+    }
+
+    public int getJournalSegmentBytes() {
+        return journalSegmentBytes;
+    }
+
+    public ServerConfig setJournalSegmentBytes(int journalSegmentBytes) {
+        this.journalSegmentBytes = journalSegmentBytes;
+        return this;
+    }
+
+    public int getJournalMaxSegments() {
+        return journalMaxSegments;
+    }
+
+    public ServerConfig setJournalMaxSegments(int journalMaxSegments) {
+        this.journalMaxSegments = journalMaxSegments;
+        return this;
+    }
+
+    public int getReplayCount() {
+        return replayCount;
+    }
+
+    public ServerConfig setReplayCount(int replayCount) {
+        this.replayCount = replayCount;
+        return this;
+    }
+
+    public int getResumeMax() {
+        return resumeMax;
+    }
+
+    public ServerConfig setResumeMax(int resumeMax) {
+        this.resumeMax = resumeMax;
+        return this;
+    }
+
+    public int getMaxProfiles() {
+        return maxProfiles;
+    }
+
+    public ServerConfig setMaxProfiles(int maxProfiles) {
+        this.maxProfiles = maxProfiles;
+        return this;
+    }
+
+    public boolean isSearchEnabled() {
+        return searchEnabled;
+    }
+
+    public ServerConfig setSearchEnabled(boolean searchEnabled) {
+        this.searchEnabled = searchEnabled;
+        return this;
+    }
+
+    public int getSearchThreads() {
+        return searchThreads;
+    }
+
+    public ServerConfig setSearchThreads(int searchThreads) {
+        this.searchThreads = searchThreads;
+        return this;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public ServerConfig setNodeId(String nodeId) {
+        this.nodeId = nodeId;
+        return this;
+    }
+
+    public int getClusterPort() {
+        return clusterPort;
+    }
+
+    public ServerConfig setClusterPort(int clusterPort) {
+        this.clusterPort = clusterPort;
+        return this;
+    }
+
+    public List<String> getClusterPeers() {
+        return clusterPeers;
+    }
+
+    /**
+     * ピアの中継ポートをカンマ区切り（host:port,...）で設定する
+     */
+    public ServerConfig setClusterPeers(String peers) {
+        clusterPeers = new ArrayList<>();
+        for (String peer : peers.split(",")) {
+            if (!peer.isBlank()) clusterPeers.add(peer.trim());
+        }
+        return this;
+    }
+
+    public String getClusterBind() {
+        return clusterBind;
+    }
+
+    public ServerConfig setClusterBind(String clusterBind) {
+        this.clusterBind = clusterBind;
+        return this;
+    }
+
+    public int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+    public ServerConfig setMaxFrameSize(int maxFrameSize) {
+        this.maxFrameSize = maxFrameSize;
+        return this;
+    }
+
+    public int getMessageRate() {
+        return messageRate;
+    }
+
+    public ServerConfig setMessageRate(int messageRate) {
+        this.messageRate = messageRate;
+        return this;
+    }
+
+    public int getMessageBurst() {
+        return messageBurst;
+    }
+
+    public ServerConfig setMessageBurst(int messageBurst) {
+        this.messageBurst = messageBurst;
+        return this;
+    }
+
+    public long getByteRate() {
+        return byteRate;
+    }
+
+    public ServerConfig setByteRate(long byteRate) {
+        this.byteRate = byteRate;
+        return this;
+    }
+
+    public long getByteBurst() {
+        return byteBurst;
+    }
+
+    public ServerConfig setByteBurst(long byteBurst) {
+        this.byteBurst = byteBurst;
+        return this;
+    }
+
+    public long getIngestMaxBytes() {
+        return ingestMaxBytes;
+    }
+
+    public ServerConfig setIngestMaxBytes(long ingestMaxBytes) {
+        this.ingestMaxBytes = ingestMaxBytes;
+        return this;
+    }
+
+    public boolean isCompression() {
+        return compression;
+    }
+
+    public ServerConfig setCompression(boolean compression) {
+        this.compression = compression;
+        return this;
+    }
+
+    public int getCompressThreshold() {
+        return compressThreshold;
+    }
+
+    public ServerConfig setCompressThreshold(int compressThreshold) {
+        this.compressThreshold = compressThreshold;
+        return this;
+    }
+
+    public int getMetricsInterval() {
+        return metricsInterval;
+    }
+
+    public ServerConfig setMetricsInterval(int metricsInterval) {
+        this.metricsInterval = metricsInterval;
+        return this;
+    }
+
+    public boolean isMetricsLog() {
+        return metricsLog;
+    }
+
+    public ServerConfig setMetricsLog(boolean metricsLog) {
+        this.metricsLog = metricsLog;
+        return this;
+    }
+
+    public boolean isMetricsJmx() {
+        return metricsJmx;
+    }
+
+    public ServerConfig setMetricsJmx(boolean metricsJmx) {
+        this.metricsJmx = metricsJmx;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return "ServerConfig{" +
+                "port=" + port +
+                ", engine='" + engine + '\'' +
+                ", workerThreads=" + workerThreads +
+                ", outboundCapacity=" + outboundCapacity +
+                ", outboundMaxBytes=" + outboundMaxBytes +
+                ", overflowPolicy=" + overflowPolicy +
+                ", dataDir='" + dataDir + '\'' +
+                ", legacyInlineLimit=" + legacyInlineLimit +
+                ", thumbnailThreads=" + thumbnailThreads +
+                ", maxUploadBytes=" + maxUploadBytes +
+                ", uploadExpireHours=" + uploadExpireHours +
+                ", journalEnabled=" + journalEnabled +
+                ", journalSegmentBytes=" + journalSegmentBytes +
+                ", journalMaxSegments=" + journalMaxSegments +
+                ", replayCount=" + replayCount +
+                ", resumeMax=" + resumeMax +
+                ", maxProfiles=" + maxProfiles +
+                ", searchEnabled=" + searchEnabled +
+                ", searchThreads=" + searchThreads +
+                ", nodeId='" + nodeId + '\'' +
+                ", clusterPort=" + clusterPort +
+                ", clusterPeers=" + clusterPeers +
+                ", clusterBind='" + clusterBind + '\'' +
+                ", maxFrameSize=" + maxFrameSize +
+                ", messageRate=" + messageRate +
+                ", messageBurst=" + messageBurst +
+                ", byteRate=" + byteRate +
+                ", byteBurst=" + byteBurst +
+                ", ingestMaxBytes=" + ingestMaxBytes +
+                ", compression=" + compression +
+                ", compressThreshold=" + compressThreshold +
+                ", metricsInterval=" + metricsInterval +
+                ", metricsLog=" + metricsLog +
+                ", metricsJmx=" + metricsJmx +
+                '}';
+    }
+}
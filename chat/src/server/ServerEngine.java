@@ -0,0 +1,37 @@
+package server;
+
+import java.io.IOException;
+
+/**
+ * 接続の受け付けと読み書きを担当するエンジン
+ *   thread  : 接続ごとにプラットフォームスレッド（従来方式）
+ *   virtual : 接続ごとに仮想スレッド（Java 21 以降。それ以前はプラットフォームスレッドで代替）
+ *   nio     : Selector による単一スレッドのイベントループ
+ */
+interface ServerEngine {
+
+    /**
+     * ポートをバインドして受け付けを開始する（受け付けは別スレッドで行い、すぐに戻る）
+     */
+    void start(ChatServer server, int port) throws IOException;
+
+    /**
+     * 受け付けを停止し、すべての接続を閉じる
+     */
+    void stop();
+
+    String name();
+
+    static ServerEngine create(String name) {
+        switch (name) {
+            case "thread":
+                return new ThreadEngine(false);
+            case "virtual":
+                return new ThreadEngine(true);
+            case "nio":
+                return new NioEngine();
+            default:
+                throw new IllegalArgumentException("不明なエンジンです: " + name);
+        }
+    }
+}
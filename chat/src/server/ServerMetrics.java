@@ -0,0 +1,299 @@
+package server;
+
+import util.Histogram;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * サーバーの統計
+ * 記録側（受信・配信・書き込みの各スレッド）は LongAdder とヒストグラムに足すだけで、ロックもメモリ確保もしない
+ * 一定間隔（chat.metrics.interval 秒）ごとに区間の値を集計してログに1行出し、同じ値を JMX でも公開する
+ */
+class ServerMetrics implements ServerMetricsMXBean {
+    final LongAdder framesIn = new LongAdder();
+    final LongAdder framesOut = new LongAdder();
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder bytesOut = new LongAdder();
+    // 送信キューに積んだフレームの大きさ（バイト）
+    final Histogram frameSizes = new Histogram();
+    // 1回の配信でルームの参加者全員の送信キューに積み終えるまでの時間（ナノ秒）
+    final Histogram fanoutNanos = new Histogram();
+    // 受信側の制限にかかった回数（Connection を参照）
+    final LongAdder oversizeFrames = new LongAdder();
+    final LongAdder rateLimitedFrames = new LongAdder();
+    final LongAdder throttledReads = new LongAdder();
+    final LongAdder ingestPauses = new LongAdder();
+    final LongAdder ingestTimeouts = new LongAdder();
+    // deflate で圧縮したフレームの、圧縮前と圧縮後のペイロードの合計（送信・受信）
+    final LongAdder uncompressedBytesOut = new LongAdder();
+    final LongAdder compressedBytesOut = new LongAdder();
+    final LongAdder uncompressedBytesIn = new LongAdder();
+    final LongAdder compressedBytesIn = new LongAdder();
+
+    private final ChatServer server;
+    private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "chat-metrics");
+        t.setDaemon(true);
+        return t;
+    });
+    private ObjectName name;
+
+    // 直近の集計区間の値（tick で更新する）
+    private final long[] sizeCounts = new long[Histogram.BUCKETS];
+    private final long[] fanoutCounts = new long[Histogram.BUCKETS];
+    private long lastTick = System.nanoTime();
+    private long lastFramesIn, lastFramesOut, lastBytesIn, lastBytesOut;
+    private double framesInRate, framesOutRate, bytesInRate, bytesOutRate;
+    private long sizeP50, sizeP99;
+    private long fanoutP50, fanoutP99, fanoutMax;
+
+    ServerMetrics(ChatServer server) {
+        this.server = server;
+    }
+
+    /**
+     * 定期集計と JMX への登録を始める
+     */
+    void start(ServerConfig config) {
+        if (config.isMetricsJmx()) {
+            try {
+                name = new ObjectName("chat.server:type=Metrics,port=" + config.getPort());
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            } catch (JMException e) {
+                System.err.println("JMX に登録できませんでした: " + e.getMessage());
+                name = null;
+            }
+        }
+        int interval = config.getMetricsInterval();
+        if (interval > 0) {
+            boolean log = config.isMetricsLog();
+            ticker.scheduleAtFixedRate(() -> {
+                tick();
+                if (log) log();
+            }, interval, interval, TimeUnit.SECONDS);
+        }
+    }
+
+    void stop() {
+        ticker.shutdownNow();
+        if (name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (JMException ignored) {}
+        }
+    }
+
+    synchronized void tick() {
+        long now = System.nanoTime();
+        double seconds = Math.max(1e-9, (now - lastTick) / 1e9);
+        lastTick = now;
+        long in = framesIn.sum(), out = framesOut.sum(), bin = bytesIn.sum(), bout = bytesOut.sum();
+        framesInRate = (in - lastFramesIn) / seconds;
+        framesOutRate = (out - lastFramesOut) / seconds;
+        bytesInRate = (bin - lastBytesIn) / seconds;
+        bytesOutRate = (bout - lastBytesOut) / seconds;
+        lastFramesIn = in;
+        lastFramesOut = out;
+        lastBytesIn = bin;
+        lastBytesOut = bout;
+
+        long sizes = frameSizes.drainTo(sizeCounts);
+        sizeP50 = Histogram.percentile(sizeCounts, sizes, 0.50);
+        sizeP99 = Histogram.percentile(sizeCounts, sizes, 0.99);
+        long fanouts = fanoutNanos.drainTo(fanoutCounts);
+        fanoutP50 = Histogram.percentile(fanoutCounts, fanouts, 0.50);
+        fanoutP99 = Histogram.percentile(fanoutCounts, fanouts, 0.99);
+        fanoutMax = Histogram.percentile(fanoutCounts, fanouts, 1.0);
+    }
+
+    private synchronized void log() {
+        int clients = server.getClientCount();
+        if (clients == 0 && framesInRate == 0 && framesOutRate == 0) return;
+        System.out.printf("統計: 接続 %d, 受信 %.1f 件/s %.1f KB/s, 送信 %.1f 件/s %.1f KB/s, "
+                        + "フレーム p50 %d p99 %d バイト, 配信 p50 %.0f p99 %.0f 最大 %.0f µs, 送信待ち最大 %d%n",
+                clients, framesInRate, bytesInRate / 1024, framesOutRate, bytesOutRate / 1024,
+                sizeP50, sizeP99, fanoutP50 / 1e3, fanoutP99 / 1e3, fanoutMax / 1e3, getOutboundBacklogMax());
+        long oversize = getOversizeFrames(), limited = getRateLimitedFrames(), throttled = getThrottledReads();
+        long pauses = getIngestPauses(), timeouts = getIngestTimeouts();
+        if (oversize + limited + throttled + pauses + timeouts > 0) {
+            System.out.printf("受信制限（起動から）: 大きすぎるフレーム %d, 件数超過で破棄 %d, 帯域待ち %d, "
+                            + "受信バッファ待ち %d（打ち切り %d）, 受信途中のバッファ %d KB%n",
+                    oversize, limited, throttled, pauses, timeouts, getIngestBytes() / 1024);
+        }
+        long rawOut = getUncompressedBytesOut(), rawIn = getUncompressedBytesIn();
+        if (rawOut + rawIn > 0) {
+            System.out.printf("圧縮（起動から）: 送信 %d → %d KB (%.1f%%), 受信 %d → %d KB (%.1f%%)%n",
+                    rawOut / 1024, getCompressedBytesOut() / 1024, getCompressionRatioOut() * 100,
+                    rawIn / 1024, getCompressedBytesIn() / 1024, getCompressionRatioIn() * 100);
+        }
+    }
+
+    @Override
+    public int getConnectedClients() {
+        return server.getClientCount();
+    }
+
+    @Override
+    public long getFramesIn() {
+        return framesIn.sum();
+    }
+
+    @Override
+    public long getFramesOut() {
+        return framesOut.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public synchronized double getFramesInPerSecond() {
+        return framesInRate;
+    }
+
+    @Override
+    public synchronized double getFramesOutPerSecond() {
+        return framesOutRate;
+    }
+
+    @Override
+    public synchronized double getBytesInPerSecond() {
+        return bytesInRate;
+    }
+
+    @Override
+    public synchronized double getBytesOutPerSecond() {
+        return bytesOutRate;
+    }
+
+    @Override
+    public synchronized long getFrameSizeP50() {
+        return sizeP50;
+    }
+
+    @Override
+    public synchronized long getFrameSizeP99() {
+        return sizeP99;
+    }
+
+    @Override
+    public synchronized double getFanoutLatencyP50Micros() {
+        return fanoutP50 / 1e3;
+    }
+
+    @Override
+    public synchronized double getFanoutLatencyP99Micros() {
+        return fanoutP99 / 1e3;
+    }
+
+    @Override
+    public synchronized double getFanoutLatencyMaxMicros() {
+        return fanoutMax / 1e3;
+    }
+
+    @Override
+    public int getOutboundBacklogMax() {
+        int max = 0;
+        for (Connection client : server.connections()) {
+            max = Math.max(max, client.outbound.size());
+        }
+        return max;
+    }
+
+    @Override
+    public long getOutboundBacklogBytes() {
+        long total = 0;
+        for (Connection client : server.connections()) {
+            total += client.outbound.getQueuedBytes();
+        }
+        return total;
+    }
+
+    @Override
+    public Map<String, Integer> getOutboundBacklog() {
+        Map<String, Integer> backlog = new HashMap<>();
+        for (Connection client : server.connections()) {
+            backlog.put(client.remoteAddress(), client.outbound.size());
+        }
+        return backlog;
+    }
+
+    @Override
+    public long getOversizeFrames() {
+        return oversizeFrames.sum();
+    }
+
+    @Override
+    public long getRateLimitedFrames() {
+        return rateLimitedFrames.sum();
+    }
+
+    @Override
+    public long getThrottledReads() {
+        return throttledReads.sum();
+    }
+
+    @Override
+    public long getIngestPauses() {
+        return ingestPauses.sum();
+    }
+
+    @Override
+    public long getIngestTimeouts() {
+        return ingestTimeouts.sum();
+    }
+
+    @Override
+    public long getIngestBytes() {
+        return server.getIngestBudget().getUsed();
+    }
+
+    @Override
+    public long getUncompressedBytesOut() {
+        return uncompressedBytesOut.sum();
+    }
+
+    @Override
+    public long getCompressedBytesOut() {
+        return compressedBytesOut.sum();
+    }
+
+    @Override
+    public double getCompressionRatioOut() {
+        return ratio(compressedBytesOut.sum(), uncompressedBytesOut.sum());
+    }
+
+    @Override
+    public long getUncompressedBytesIn() {
+        return uncompressedBytesIn.sum();
+    }
+
+    @Override
+    public long getCompressedBytesIn() {
+        return compressedBytesIn.sum();
+    }
+
+    @Override
+    public double getCompressionRatioIn() {
+        return ratio(compressedBytesIn.sum(), uncompressedBytesIn.sum());
+    }
+
+    private static double ratio(long compressed, long raw) {
+        return raw == 0 ? 1.0 : (double) compressed / raw;
+    }
+}
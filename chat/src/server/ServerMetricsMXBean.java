@@ -0,0 +1,82 @@
+package server;
+
+import java.util.Map;
+
+/**
+ * JMX で公開するサーバーの統計（chat.server:type=Metrics,port=<ポート>）
+ * 件数・バイト数は起動からの合計、毎秒の値と分布は直近の集計区間（chat.metrics.interval）のもの
+ */
+public interface ServerMetricsMXBean {
+    int getConnectedClients();
+
+    long getFramesIn();
+
+    long getFramesOut();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    double getFramesInPerSecond();
+
+    double getFramesOutPerSecond();
+
+    double getBytesInPerSecond();
+
+    double getBytesOutPerSecond();
+
+    long getFrameSizeP50();
+
+    long getFrameSizeP99();
+
+    double getFanoutLatencyP50Micros();
+
+    double getFanoutLatencyP99Micros();
+
+    double getFanoutLatencyMaxMicros();
+
+    /** 送信キューに積まれているフレーム数が最も多い接続の値 */
+    int getOutboundBacklogMax();
+
+    /** 全接続の送信キューに積まれているバイト数の合計 */
+    long getOutboundBacklogBytes();
+
+    /** 接続元アドレス → 送信キューに積まれているフレーム数 */
+    Map<String, Integer> getOutboundBacklog();
+
+    /** chat.maxFrameSize を超えて切断したフレームの数 */
+    long getOversizeFrames();
+
+    /** 件数の制限（chat.rate.messages）を超えて捨てたフレームの数 */
+    long getRateLimitedFrames();
+
+    /** 帯域の制限（chat.rate.bytes）で読み込みを待たせた回数 */
+    long getThrottledReads();
+
+    /** 受信バッファの予算（chat.ingest.maxBytes）が足りず読み込みを止めた回数 */
+    long getIngestPauses();
+
+    /** 受信バッファの予算を待ちきれずに切断した回数 */
+    long getIngestTimeouts();
+
+    /** 受信途中のフレームのために確保しているバイト数（全接続の合計） */
+    long getIngestBytes();
+
+    /** 圧縮して送ったフレームの圧縮前のペイロードの合計 */
+    long getUncompressedBytesOut();
+
+    /** 圧縮して送ったフレームの圧縮後のペイロードの合計 */
+    long getCompressedBytesOut();
+
+    /** 送信の圧縮後 / 圧縮前の比（まだ1つも圧縮していなければ 1） */
+    double getCompressionRatioOut();
+
+    /** 圧縮されて届いたフレームの伸長後のペイロードの合計 */
+    long getUncompressedBytesIn();
+
+    /** 圧縮されて届いたフレームの圧縮されたペイロードの合計 */
+    long getCompressedBytesIn();
+
+    /** 受信の圧縮後 / 伸長後の比（まだ1つも受け取っていなければ 1） */
+    double getCompressionRatioIn();
+}
@@ -0,0 +1,74 @@
+package server;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 1接続1スレッドのブロッキングI/Oエンジン
+ * virtual=true の場合は仮想スレッドを使い、スレッドスタック分のメモリを接続数に比例させない
+ */
+class ThreadEngine implements ServerEngine {
+    private final boolean virtual;
+    private final ThreadFactory threads;
+    private ServerSocketChannel serverChannel;
+
+    ThreadEngine(boolean virtual) {
+        ThreadFactory factory = virtual ? virtualThreadFactory() : null;
+        if (virtual && factory == null) {
+            System.err.println("仮想スレッドが使えないため、プラットフォームスレッドで起動します");
+        }
+        this.virtual = factory != null;
+        this.threads = factory != null ? factory : Thread::new;
+    }
+
+    @Override
+    public void start(ChatServer server, int port) throws IOException {
+        // ブロッキングモードのチャネルを使う（送信で gathering write を使うため）
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        Thread acceptor = new Thread(() -> {
+            try {
+                while (serverChannel.isOpen()) {
+                    SocketChannel channel = serverChannel.accept();
+                    ClientHandler handler = new ClientHandler(server, channel);
+                    server.register(handler);
+                    handler.start(threads);
+                }
+            } catch (IOException e) {
+                if (serverChannel.isOpen()) {
+                    System.err.println("接続受け付けエラー: " + e.getMessage());
+                }
+            }
+        }, "chat-acceptor");
+        acceptor.start();
+    }
+
+    @Override
+    public void stop() {
+        try {
+            if (serverChannel != null) serverChannel.close();
+        } catch (IOException ignored) {}
+    }
+
+    @Override
+    public String name() {
+        return virtual ? "virtual" : "thread";
+    }
+
+    /**
+     * Thread.ofVirtual().factory() をリフレクションで取得する（Java 21 未満では null）
+     */
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package server;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 添付画像の縮小版（幅 WIDTH・高さ MAX_HEIGHT に収まる JPEG、透過があれば PNG）を作る上限付きのワーカー
+ * 縮小版は元の画像のハッシュで保存し、同じ画像は一度しか縮小しない
+ *   thumbs/ab/abcdef0123...  （空のファイルは画像として読めなかった印）
+ * キューがいっぱいのときや読めない画像、画素数が MAX_PIXELS を超える画像のときは縮小版なし（null）を渡す。呼び出し元は待たない
+ */
+class Thumbnailer {
+    static final int WIDTH = 200;
+    static final int MAX_HEIGHT = 600;
+    private static final int QUEUE_CAPACITY = 64;
+    // 幅か高さが縮小版のこの倍数を超える画像は間引いて読み込む（大きな写真や縦長の画像を原寸のまま展開しない）
+    private static final int SUBSAMPLE_MARGIN = 4;
+    // ヘッダの幅 × 高さがこれを超える画像は展開しない（間引いても読み込みに時間がかかりすぎる）
+    private static final long MAX_PIXELS = 100_000_000L;
+    // 縮小版に収まる大きさでこれより小さいファイルは、作り直さずにそのまま縮小版にする
+    private static final long SMALL_IMAGE = 64 * 1024;
+
+    private final BlobStore blobs;
+    private final Path root;
+    private final ThreadPoolExecutor pool;
+
+    Thumbnailer(Path dataDir, BlobStore blobs, int threads) throws IOException {
+        this.blobs = blobs;
+        this.root = Files.createDirectories(dataDir.resolve("thumbs"));
+        this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE_CAPACITY), r -> {
+            Thread t = new Thread(r, "chat-thumbnail");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * 縮小版を作って done に渡す（ワーカーのスレッドで。受け付けられなければこのスレッドで null を渡す）
+     * 作る途中で失敗しても done は必ず呼ぶ（呼び出し元は後の発言の配信をこれに続けて待っている）
+     */
+    void submit(String hash, Consumer<byte[]> done) {
+        try {
+            pool.execute(() -> {
+                byte[] data;
+                try {
+                    data = thumbnail(hash);
+                } catch (RuntimeException e) {
+                    System.err.println("縮小版の作成エラー: " + e);
+                    data = null;
+                }
+                done.accept(data);
+            });
+        } catch (RejectedExecutionException e) {
+            done.accept(null);
+        }
+    }
+
+    void shutdown() {
+        pool.shutdownNow();
+    }
+
+    private byte[] thumbnail(String hash) {
+        Path cached = root.resolve(hash.substring(0, 2)).resolve(hash);
+        try {
+            if (Files.exists(cached)) {
+                byte[] data = Files.readAllBytes(cached);
+                return data.length > 0 ? data : null;
+            }
+            byte[] data = create(blobs.path(hash));
+            Files.createDirectories(cached.getParent());
+            Path tmp = Files.createTempFile(cached.getParent(), hash, ".tmp");
+            Files.write(tmp, data != null ? data : new byte[0]);
+            Files.move(tmp, cached, StandardCopyOption.ATOMIC_MOVE);
+            return data;
+        } catch (IOException e) {
+            System.err.println("縮小版の作成エラー: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * 画像ファイルから縮小版を作る。画像として読めなければ null
+     */
+    static byte[] create(Path file) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file.toFile())) {
+            Iterator<ImageReader> readers = in == null ? null : ImageIO.getImageReaders(in);
+            if (readers == null || !readers.hasNext()) return null;
+            ImageReader reader = readers.next();
+            BufferedImage image;
+            try {
+                reader.setInput(in, true, true);
+                int width = reader.getWidth(0), height = reader.getHeight(0);
+                if ((long) width * height > MAX_PIXELS) return null;
+                if (width <= WIDTH && height <= MAX_HEIGHT && Files.size(file) <= SMALL_IMAGE
+                        && displayable(reader.getFormatName())) {
+                    return Files.readAllBytes(file);
+                }
+                ImageReadParam param = reader.getDefaultReadParam();
+                int step = Math.max(1, Math.max(width / (WIDTH * SUBSAMPLE_MARGIN),
+                        height / (MAX_HEIGHT * SUBSAMPLE_MARGIN)));
+                param.setSourceSubsampling(step, step, 0, 0);
+                image = reader.read(0, param);
+            } catch (IOException | RuntimeException e) {
+                return null; // 壊れた画像
+            } finally {
+                reader.dispose();
+            }
+            return encode(scale(image));
+        }
+    }
+
+    // クライアント（ImageIcon）がそのまま表示できる形式か
+    private static boolean displayable(String format) {
+        switch (format.toLowerCase(Locale.ROOT)) {
+            case "png":
+            case "jpeg":
+            case "jpg":
+            case "gif":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * 幅 WIDTH・高さ MAX_HEIGHT に収まるように縮める（拡大はしない）。一度に大きく縮めると粗くなるので、半分ずつ縮めてから合わせる
+     */
+    private static BufferedImage scale(BufferedImage src) {
+        double ratio = Math.min(1.0,
+                Math.min((double) WIDTH / src.getWidth(), (double) MAX_HEIGHT / src.getHeight()));
+        int width = Math.max(1, (int) Math.round(src.getWidth() * ratio));
+        int height = Math.max(1, (int) Math.round(src.getHeight() * ratio));
+        int type = src.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        BufferedImage image = src;
+        do {
+            int w = Math.max(width, image.getWidth() / 2);
+            int h = w == width ? height : Math.max(height, image.getHeight() / 2);
+            BufferedImage next = new BufferedImage(w, h, type);
+            Graphics2D g = next.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(image, 0, 0, w, h, null);
+            g.dispose();
+            image = next;
+        } while (image.getWidth() != width || image.getHeight() != height);
+        return image;
+    }
+
+    private static byte[] encode(BufferedImage image) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, image.getColorModel().hasAlpha() ? "png" : "jpg", out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,50 @@
+package server;
+
+/**
+ * トークンバケットによる流量の制限（1接続の受信側だけが使うので同期しない）
+ * 毎秒 rate ずつ burst まで貯まる。take は足りなくても借り越して消費し、返し終えるまでの時間を delayNanos で返す
+ */
+final class TokenBucket {
+    private final double perNano;
+    private final double burst;
+    private double tokens;
+    private long last = System.nanoTime();
+
+    TokenBucket(double perSecond, double burst) {
+        this.perNano = perSecond / 1e9;
+        this.burst = Math.max(1, burst);
+        this.tokens = this.burst;
+    }
+
+    /**
+     * n 個あれば消費して true、足りなければ何もせず false
+     */
+    boolean tryTake(double n) {
+        refill();
+        if (tokens < n) return false;
+        tokens -= n;
+        return true;
+    }
+
+    /**
+     * 足りなくても n 個消費する
+     */
+    void take(double n) {
+        refill();
+        tokens -= n;
+    }
+
+    /**
+     * 借り越しを返し終えるまでの時間（借り越していなければ 0）
+     */
+    long delayNanos() {
+        refill();
+        return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / perNano);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - last) * perNano);
+        last = now;
+    }
+}
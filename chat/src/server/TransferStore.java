@@ -0,0 +1,220 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * 分割アップロードを受け取り、完了したら BlobStore に取り込む
+ * 受信途中のファイルは spool/<ユーザーID>/ に置き、同じユーザーが同じ転送IDで UPLOAD すれば続きから受け取る
+ * （転送IDはクライアントが決めるので、ほかのユーザーのアップロードには触れないようにユーザーごとに分ける）
+ * 一定時間更新されなかった受信途中のファイルは消す
+ * ハッシュは受信しながら計算するので、完了時にファイルを読み直すことはない
+ * ファイル全体をメモリに載せることはない
+ */
+class TransferStore {
+    private static final Pattern SAFE_ID = Pattern.compile("[0-9A-Za-z_-]{1,64}");
+    private static final Pattern SAFE_USER = Pattern.compile("[0-9A-Za-z_-][0-9A-Za-z_.-]{0,63}");
+    // 期限切れの受信途中ファイルを探す間隔
+    private static final long EXPIRE_CHECK_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private final Path spoolDir;
+    private final BlobStore blobs;
+    private final long maxBytes;
+    private final long expireMillis;
+    // ユーザーID/転送ID → 受信途中のアップロード
+    private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+    private long lastExpireCheck;
+
+    /**
+     * maxBytes は1ファイルの上限（0 なら制限しない）、expireMillis は受信途中のファイルを残す時間（0 なら消さない）
+     */
+    TransferStore(Path dataDir, BlobStore blobs, long maxBytes, long expireMillis) throws IOException {
+        this.spoolDir = Files.createDirectories(dataDir.resolve("spool"));
+        this.blobs = blobs;
+        this.maxBytes = maxBytes;
+        this.expireMillis = expireMillis;
+        expire();
+    }
+
+    /**
+     * 受信途中のアップロード
+     */
+    static class Upload {
+        final String id;
+        final String key;
+        final Path part;
+        final String kind;
+        final String name;
+        final long size;
+        final String mime;
+        final FileChannel channel;
+        final MessageDigest digest;
+        final Connection owner;
+        long received;
+        // 同じ内容が保存済みのとき、内容の証明（PROOF）と引き換えに完了させるためのチャレンジと申告されたハッシュ
+        String challenge;
+        String claimedHash;
+
+        Upload(String id, String key, Path part, String kind, String name, long size, String mime,
+               FileChannel channel, MessageDigest digest, long received, Connection owner) {
+            this.id = id;
+            this.key = key;
+            this.part = part;
+            this.kind = kind;
+            this.name = name;
+            this.size = size;
+            this.mime = mime;
+            this.channel = channel;
+            this.digest = digest;
+            this.received = received;
+            this.owner = owner;
+        }
+    }
+
+    /**
+     * owner のユーザーのアップロードを開始する。以前の続きがあればそのオフセットから再開する
+     */
+    synchronized Upload begin(Connection owner, String id, String kind, String name, long size, String mime)
+            throws IOException {
+        if (!SAFE_ID.matcher(id).matches()) throw new IOException("不正な転送IDです: " + id);
+        String user = owner.profile.getId();
+        if (!SAFE_USER.matcher(user).matches()) throw new IOException("不正なユーザーIDです: " + user);
+        if (size < 0) throw new IOException("不正なサイズです: " + size);
+        if (maxBytes > 0 && size > maxBytes) throw new IOException("ファイルが大きすぎます: " + size + " バイト");
+        String key = user + "/" + id;
+        Upload upload = uploads.get(key);
+        if (upload != null) {
+            if (upload.owner != owner) throw new IOException("別の接続が転送中です: " + id);
+            return upload;
+        }
+        if (System.currentTimeMillis() - lastExpireCheck >= EXPIRE_CHECK_MILLIS) expire();
+        Path part = Files.createDirectories(spoolDir.resolve(user)).resolve(id + ".part");
+        FileChannel ch = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        long received = Math.min(ch.size(), size);
+        ch.truncate(received);
+        // 再開時は受け取り済みの部分をハッシュに反映しておく
+        MessageDigest digest = BlobStore.newDigest();
+        ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+        for (long pos = 0; pos < received; ) {
+            buf.clear();
+            int n = ch.read(buf, pos);
+            if (n < 0) break;
+            buf.flip();
+            digest.update(buf);
+            pos += n;
+        }
+        upload = new Upload(id, key, part, kind, name, size, mime, ch, digest, received, owner);
+        uploads.put(key, upload);
+        return upload;
+    }
+
+    /**
+     * owner のユーザーの受信途中のアップロード（なければ null）
+     */
+    Upload getUpload(Connection owner, String id) {
+        UserProfile profile = owner.profile;
+        return profile != null ? uploads.get(profile.getId() + "/" + id) : null;
+    }
+
+    /**
+     * 断片を書き込む。オフセットが受け取り済みの位置と違う断片は捨てる
+     * 戻り値は書き込み後の受け取り済みオフセット
+     */
+    long write(Upload upload, long offset, byte[] data) throws IOException {
+        synchronized (upload) {
+            if (offset != upload.received || upload.received + data.length > upload.size) {
+                return upload.received;
+            }
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            while (buf.hasRemaining()) {
+                upload.channel.write(buf, offset + buf.position());
+            }
+            upload.digest.update(data);
+            upload.received += data.length;
+            return upload.received;
+        }
+    }
+
+    /**
+     * 全体を受け取ったアップロードを BlobStore に取り込み、内容のハッシュを返す
+     */
+    String complete(Upload upload) throws IOException {
+        synchronized (upload) {
+            upload.channel.close();
+            uploads.remove(upload.key);
+            String hash = BlobStore.toHex(upload.digest.digest());
+            blobs.put(hash, upload.part);
+            return hash;
+        }
+    }
+
+    /**
+     * 送る前から内容が保存済みだったアップロードを取り消す（受信途中のデータは捨てる）
+     */
+    void discard(Upload upload) throws IOException {
+        synchronized (upload) {
+            upload.channel.close();
+            uploads.remove(upload.key);
+            Files.deleteIfExists(upload.part);
+        }
+    }
+
+    /**
+     * 切断された接続の受信途中のアップロードを閉じる（.part は残すので再接続後に再開できる）
+     */
+    synchronized void release(Connection owner) {
+        uploads.values().removeIf(upload -> {
+            if (upload.owner != owner) return false;
+            synchronized (upload) {
+                try {
+                    upload.channel.close();
+                } catch (IOException ignored) {}
+            }
+            return true;
+        });
+    }
+
+    /**
+     * expireMillis より長く更新されていない受信途中のファイルを消す（受信中のものは除く）
+     */
+    private synchronized void expire() {
+        lastExpireCheck = System.currentTimeMillis();
+        if (expireMillis <= 0) return;
+        long limit = lastExpireCheck - expireMillis;
+        List<Path> parts;
+        try (Stream<Path> files = Files.walk(spoolDir, 2)) {
+            parts = files.filter(f -> f.getFileName().toString().endsWith(".part")).collect(Collectors.toList());
+        } catch (IOException e) {
+            System.err.println("受信途中のファイルを確認できませんでした: " + e.getMessage());
+            return;
+        }
+        int removed = 0;
+        for (Path part : parts) {
+            if (isActive(part)) continue;
+            try {
+                if (Files.getLastModifiedTime(part).toMillis() < limit && Files.deleteIfExists(part)) removed++;
+            } catch (IOException e) {
+                System.err.println("受信途中のファイルを消せませんでした: " + part);
+            }
+        }
+        if (removed > 0) System.out.println("期限切れの受信途中のファイルを " + removed + " 個消しました");
+    }
+
+    private boolean isActive(Path part) {
+        for (Upload upload : uploads.values()) {
+            if (upload.part.equals(part)) return true;
+        }
+        return false;
+    }
+}
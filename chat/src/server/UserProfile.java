@@ -0,0 +1,92 @@
+package server;
+
+import protocol.Frame;
+
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * サーバーに登録されたプロフィール
+ * 内容（ニックネーム・趣味・アイコン）が同じなら同じIDを使い回す
+ */
+class UserProfile {
+    private final String id;
+    private final String nickname;
+    private final String hobby;
+    private final byte[] avatar;
+    private volatile String avatarBase64;
+    // 最後に参照された時刻（System.nanoTime。上限を超えたときに古いものから忘れるため）
+    private volatile long lastUsed = System.nanoTime();
+
+    UserProfile(String id, String nickname, String hobby, byte[] avatar) {
+        this.id = id;
+        this.nickname = nickname;
+        this.hobby = hobby;
+        this.avatar = avatar;
+    }
+
+    String getId() {
+        return id;
+    }
+
+    String getNickname() {
+        return nickname;
+    }
+
+    String getHobby() {
+        return hobby;
+    }
+
+    byte[] getAvatar() {
+        return avatar;
+    }
+
+    void touch() {
+        lastUsed = System.nanoTime();
+    }
+
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+    /**
+     * 従来クライアント向けの Base64 アイコン（初回だけエンコードする）
+     */
+    String getAvatarBase64() {
+        String b64 = avatarBase64;
+        if (b64 == null) {
+            b64 = avatarBase64 = Base64.getEncoder().encodeToString(avatar);
+        }
+        return b64;
+    }
+
+    boolean sameAs(String nickname, String hobby, byte[] avatar) {
+        return this.nickname.equals(nickname) && this.hobby.equals(hobby) && Arrays.equals(this.avatar, avatar);
+    }
+
+    /**
+     * クライアントに通知する PROFILE フレーム
+     */
+    Frame toFrame() {
+        return new Frame(Frame.PROFILE, new String[]{id, nickname, hobby}, avatar);
+    }
+
+    /**
+     * 短縮形式のメッセージを従来の完全形式に戻す
+     */
+    Frame expand(Frame compact) {
+        return new Frame(compact.getType(),
+                new String[]{compact.getField(0), nickname, hobby, getAvatarBase64()}, compact.getBody());
+    }
+
+    /**
+     * 従来クライアントの完全形式メッセージと同じ内容か（Base64 のまま比較してデコードを省く）
+     */
+    boolean sameAs(String nickname, String hobby, String avatarBase64) {
+        return this.nickname.equals(nickname) && this.hobby.equals(hobby) && getAvatarBase64().equals(avatarBase64);
+    }
+
+    static int contentHash(String nickname, String hobby, byte[] avatar) {
+        return (nickname.hashCode() * 31 + hobby.hashCode()) * 31 + Arrays.hashCode(avatar);
+    }
+}
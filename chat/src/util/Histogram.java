@@ -0,0 +1,58 @@
+package util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 値の分布を数える固定バケットのヒストグラム（記録時にメモリを確保しない）
+ * 0〜7 はそのまま、それ以上は2の累乗ごとの区間を8等分したバケットに数えるので、誤差は 1/8 以内
+ * 記録は任意のスレッドから、集計は drainTo で区間ごとに取り出して行う
+ * サーバーの統計（server.ServerMetrics）と負荷試験クライアント（client.LoadGenerator）の遅延の集計で共有する
+ */
+public class Histogram {
+    public static final int BUCKETS = 62 * 8;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    public void record(long value) {
+        counts.incrementAndGet(bucket(Math.max(0, value)));
+    }
+
+    /**
+     * 前回からの件数を into に取り出して0に戻し、合計件数を返す
+     */
+    public long drainTo(long[] into) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            into[i] = counts.getAndSet(i, 0);
+            total += into[i];
+        }
+        return total;
+    }
+
+    /**
+     * drainTo で取り出した件数から p（0〜1）の位置の値を求める（バケットの上限で返す。件数0なら0）
+     */
+    public static long percentile(long[] counts, long total, double p) {
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(total * p));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) return upperBound(i);
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    static int bucket(long value) {
+        if (value < 8) return (int) value;
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        return Math.min(BUCKETS - 1, (exp - 2) * 8 + (int) ((value >>> (exp - 3)) & 7));
+    }
+
+    // バケットに入る最大の値
+    static long upperBound(int bucket) {
+        if (bucket < 8) return bucket;
+        int exp = bucket / 8 + 2;
+        return ((8L + bucket % 8 + 1) << (exp - 3)) - 1;
+    }
+}